@@ -0,0 +1,272 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.cf.uaa.stub.CfStubServer;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the plugin against the in-process stub server with concurrent users for a fixed duration, then reports
+ * the throughput and the latency percentiles.
+ *
+ * Scenarios:
+ * <ul>
+ *     <li>{@code login}: the browser round trip of {@code commenceLogin} to UAA's authorize endpoint, then the
+ *     server side of {@code finishLogin}: token exchange, user profile and organizations.</li>
+ *     <li>{@code lookup}: {@link CfUaaSecurityRealm#loadUserByUsername(String)}, through the user cache.</li>
+ *     <li>{@code lookup-uncached}: {@link CfApiUtil#loadUserByUsername(String)}, every call reaching the stub.</li>
+ * </ul>
+ *
+ * Options, as {@code --name=value}: {@code scenario} (login), {@code threads} (50), {@code users} (1000),
+ * {@code organizations} (50), {@code organizations-api} ({@code v2} or {@code v3}, v2), {@code roles} (grant role
+ * authorities, false), {@code latency} and {@code jitter} in milliseconds (20 and 10), {@code warmup} and
+ * {@code duration} in seconds (10 and 30).
+ */
+public class LoadTest {
+
+    private static final String REDIRECT_URI = "http://jenkins.example.com/securityRealm/finishLogin";
+
+    private final String scenario;
+    private final int threads;
+    private final int users;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private final CfStubServer server;
+    private final CfApiUtil api;
+    private final UserDetailsCache userCache;
+
+    private final AtomicLong errors = new AtomicLong();
+
+    LoadTest(final Map<String, String> options) throws IOException {
+        scenario = option(options, "scenario", "login");
+        threads = Integer.parseInt(option(options, "threads", "50"));
+        users = Integer.parseInt(option(options, "users", "1000"));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup", "10")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "30")));
+
+        server = new CfStubServer(Integer.parseInt(option(options, "organizations", "50")))
+                .setLatency(Long.parseLong(option(options, "latency", "20")),
+                        Long.parseLong(option(options, "jitter", "10")))
+                .start();
+        // same settings as a realm with the default configuration.
+        final CfHttpClient http = new CfHttpClient(CfUaaSecurityRealm.DEFAULT_MAX_CONNECTIONS,
+                CfUaaSecurityRealm.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+                CfUaaSecurityRealm.DEFAULT_IDLE_CONNECTION_TIMEOUT);
+        http.configureRateLimits(Double.parseDouble(option(options, "uaa-rate", "0")),
+                Double.parseDouble(option(options, "cc-rate", "0")));
+        http.configureRetries(RetryPolicy.DEFAULT_MAX_RETRIES, Boolean.parseBoolean(option(options, "hedge", "false")),
+                RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT);
+        api = new CfApiUtil("jenkins", "secret", server.getUrl(), server.getUrl(), server.getUrl(),
+                http,
+                new UserIdCache(CfUaaSecurityRealm.DEFAULT_USER_ID_CACHE_SIZE,
+                        TimeUnit.HOURS.toMillis(CfUaaSecurityRealm.DEFAULT_USER_ID_CACHE_TTL)));
+        api.setOrganizationsApi(OrganizationsApi.valueOf(option(options, "organizations-api", "v2").toUpperCase()));
+        api.setRoleAuthorities(Boolean.parseBoolean(option(options, "roles", "false")));
+        userCache = new UserDetailsCache(CfUaaSecurityRealm.DEFAULT_USER_CACHE_SIZE,
+                CfUaaSecurityRealm.DEFAULT_USER_CACHE_TTL, CfUaaSecurityRealm.DEFAULT_USER_NOT_FOUND_TTL,
+                CfUaaSecurityRealm.DEFAULT_USER_CACHE_REFRESH_AFTER, CfUaaSecurityRealm.DEFAULT_REFRESH_THREADS,
+                CfUaaSecurityRealm.DEFAULT_STALE_GRACE_PERIOD);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Options must be given as --name=value: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        final LoadTest test = new LoadTest(options);
+        try {
+            test.run();
+        } finally {
+            test.close();
+        }
+        System.exit(0);
+    }
+
+    void run() throws InterruptedException {
+        final Callable<?> call = scenario();
+        final List<Samples> samples = new ArrayList<Samples>(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+        for (int i = 0; i < threads; i++) {
+            final Samples threadSamples = new Samples();
+            samples.add(threadSamples);
+            final Thread worker = new Thread("LoadTest-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        drive(call, threadSamples, measureFrom, end);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+        System.out.printf("%s: %d threads, %d users, warm-up %ds, measuring %ds%n", scenario, threads, users,
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        done.await();
+        report(Samples.merge(samples));
+    }
+
+    void close() {
+        userCache.close();
+        api.close();
+        server.stop();
+    }
+
+    private Callable<?> scenario() {
+        if ("login".equals(scenario)) {
+            return new Callable<Object>() {
+                public Object call() throws IOException {
+                    return api.authenticate(authorize(randomUser()), REDIRECT_URI);
+                }
+            };
+        }
+        if ("lookup".equals(scenario)) {
+            return new Callable<UserDetails>() {
+                public UserDetails call() {
+                    final String userName = randomUser();
+                    return userCache.get(userName, new Callable<UserDetails>() {
+                        public UserDetails call() {
+                            return api.loadUserByUsername(userName);
+                        }
+                    });
+                }
+            };
+        }
+        if ("lookup-uncached".equals(scenario)) {
+            return new Callable<UserDetails>() {
+                public UserDetails call() {
+                    return api.loadUserByUsername(randomUser());
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown scenario " + scenario
+                + ", expected one of login, lookup or lookup-uncached");
+    }
+
+    private void drive(final Callable<?> call, final Samples samples, final long measureFrom, final long end) {
+        long now = System.nanoTime();
+        while (now < end) {
+            final long started = now;
+            boolean failed = false;
+            try {
+                call.call();
+            } catch (Exception e) {
+                failed = true;
+            }
+            now = System.nanoTime();
+            if (started >= measureFrom) {
+                if (failed) {
+                    errors.incrementAndGet();
+                } else {
+                    samples.add(now - started);
+                }
+            }
+        }
+    }
+
+    private String randomUser() {
+        return "user-" + ThreadLocalRandom.current().nextInt(users) + "@example.com";
+    }
+
+    /**
+     * What the browser does between {@code commenceLogin} and {@code finishLogin}: follows the redirect to the
+     * authorize endpoint and reads the authorization code from the redirect back to Jenkins.
+     */
+    private String authorize(final String userName) throws IOException {
+        final URL url = new URL(server.getUrl() + "/oauth/authorize?client_id=jenkins&response_type=code"
+                + "&redirect_uri=" + URLEncoder.encode(REDIRECT_URI, "UTF-8")
+                + "&login_hint=" + URLEncoder.encode(userName, "UTF-8"));
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        try {
+            final String location = connection.getHeaderField("Location");
+            if (connection.getResponseCode() != 302 || location == null) {
+                throw new IOException("Unexpected authorize response " + connection.getResponseCode());
+            }
+            final int code = location.indexOf("code=");
+            final int next = location.indexOf('&', code);
+            return URLDecoder.decode(location.substring(code + 5, next > 0 ? next : location.length()), "UTF-8");
+        } finally {
+            connection.getInputStream().close();
+        }
+    }
+
+    private void report(final long[] latencies) {
+        final double seconds = durationNanos / 1e9;
+        System.out.printf("requests    %d (%d errors)%n", latencies.length, errors.get());
+        System.out.printf("throughput  %.1f requests/s%n", latencies.length / seconds);
+        if (latencies.length > 0) {
+            System.out.printf("latency     p50 %.2fms, p99 %.2fms, p999 %.2fms, max %.2fms%n",
+                    percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    latencies[latencies.length - 1] / 1e6);
+        }
+        if ("lookup".equals(scenario)) {
+            System.out.println("user cache  " + userCache);
+        }
+    }
+
+    /** Nearest-rank percentile of sorted latencies, in milliseconds. */
+    private static double percentile(final long[] sorted, final double fraction) {
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank - 1, 0)] / 1e6;
+    }
+
+    private static String option(final Map<String, String> options, final String name, final String defaultValue) {
+        final String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /** Latencies recorded by one thread, in nanoseconds. */
+    private static final class Samples {
+
+        private long[] values = new long[1 << 14];
+        private int size;
+
+        void add(final long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /** All the latencies of the given threads, sorted. */
+        static long[] merge(final List<Samples> samples) {
+            int total = 0;
+            for (Samples s : samples) {
+                total += s.size;
+            }
+            final long[] merged = new long[total];
+            int offset = 0;
+            for (Samples s : samples) {
+                System.arraycopy(s.values, 0, merged, offset, s.size);
+                offset += s.size;
+            }
+            Arrays.sort(merged);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.cf.uaa.stub.CfStubServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A complete {@link CfApiUtil#loadUserByUsername(String)} run against the in-process stub server: SCIM user id
+ * search followed by the paginated organization listing. The user cache of the realm is bypassed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadUserBenchmark {
+
+    private static final String USER_NAME = "jane.doe@example.com";
+
+    @Param({"1", "50", "1000", "10000"})
+    public int organizations;
+
+    private CfStubServer server;
+    private UserIdCache userIds;
+    private CfApiUtil api;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new CfStubServer(organizations).start();
+        userIds = new UserIdCache(CfUaaSecurityRealm.DEFAULT_USER_ID_CACHE_SIZE, TimeUnit.DAYS.toMillis(1));
+        api = new CfApiUtil("jenkins", "secret", server.getUrl(), server.getUrl(), server.getUrl(),
+                new CfHttpClient(20, 10, 60), userIds);
+    }
+
+    @TearDown
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    /** User id unknown: the SCIM search and the organization listing. */
+    @Benchmark
+    public UserDetails loadUserByUsername() {
+        userIds.invalidate(USER_NAME);
+        return api.loadUserByUsername(USER_NAME);
+    }
+
+    /** User id already known: only the organization listing. */
+    @Benchmark
+    public UserDetails loadUserByUsernameKnownUserId() {
+        return api.loadUserByUsername(USER_NAME);
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.jenkinsci.plugins.cf.uaa.models.CfResources;
+import org.jenkinsci.plugins.cf.uaa.models.Organization;
+import org.jenkinsci.plugins.cf.uaa.stub.CfPayloads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization of a {@code CfResources<Organization>} listing, fully bound versus streamed.
+ *
+ * The listing holds all the organizations in a single page, which is the worst case for the memory held while
+ * parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrganizationParsingBenchmark {
+
+    @Param({"1", "50", "1000", "10000"})
+    public int organizations;
+
+    private byte[] listing;
+
+    @Setup
+    public void setUp() {
+        final List<String> names = new ArrayList<String>(organizations);
+        for (int i = 0; i < organizations; i++) {
+            names.add("org-" + i);
+        }
+        listing = CfPayloads.organizationsPage(names, 1, organizations, "/v2/users/some-user/organizations")
+                .getBytes(CfPayloads.UTF8);
+    }
+
+    @Benchmark
+    public CfResources<Organization> databind() throws IOException {
+        return CfJson.ORGANIZATIONS.readValue(listing);
+    }
+
+    @Benchmark
+    public CfJson.OrganizationPage streaming() throws IOException {
+        return CfJson.readOrganizations(new ByteArrayInputStream(listing));
+    }
+}
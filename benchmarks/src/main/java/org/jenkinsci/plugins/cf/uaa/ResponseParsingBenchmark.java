@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.jenkinsci.plugins.cf.uaa.models.ClientAccessToken;
+import org.jenkinsci.plugins.cf.uaa.models.SearchResults;
+import org.jenkinsci.plugins.cf.uaa.models.UaaUserProfile;
+import org.jenkinsci.plugins.cf.uaa.models.UserAccessToken;
+import org.jenkinsci.plugins.cf.uaa.stub.CfPayloads;
+import org.jenkinsci.plugins.cf.uaa.stub.CfStubServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization of the small UAA responses: tokens, SCIM user search and userinfo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    private byte[] clientToken;
+    private byte[] userToken;
+    private byte[] userSearch;
+    private byte[] userInfo;
+
+    @Setup
+    public void setUp() {
+        final String userName = "jane.doe@example.com";
+        final String userId = CfStubServer.userId(userName);
+        clientToken = CfPayloads.clientToken().getBytes(CfPayloads.UTF8);
+        userToken = CfPayloads.userToken(userName, userId).getBytes(CfPayloads.UTF8);
+        userSearch = CfPayloads.userSearch(Collections.singletonList(userName), Collections.singletonList(userId),
+                1, 1).getBytes(CfPayloads.UTF8);
+        userInfo = CfPayloads.userInfo(userName, userId).getBytes(CfPayloads.UTF8);
+    }
+
+    @Benchmark
+    public ClientAccessToken clientAccessToken() throws IOException {
+        return CfJson.CLIENT_TOKEN.readValue(clientToken);
+    }
+
+    @Benchmark
+    public UserAccessToken userAccessToken() throws IOException {
+        return CfJson.USER_TOKEN.readValue(userToken);
+    }
+
+    @Benchmark
+    public SearchResults<Map<String, Object>> userSearchResults() throws IOException {
+        return CfJson.USER_SEARCH.readValue(userSearch);
+    }
+
+    @Benchmark
+    public UaaUserProfile userProfile() throws IOException {
+        return CfJson.USER_PROFILE.readValue(userInfo);
+    }
+}
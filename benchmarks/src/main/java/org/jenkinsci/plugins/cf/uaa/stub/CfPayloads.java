@@ -0,0 +1,375 @@
+package org.jenkinsci.plugins.cf.uaa.stub;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds UAA and Cloud Controller response bodies shaped like the real ones, with every field the APIs send.
+ */
+public final class CfPayloads {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String JWT_HEADER = "eyJhbGciOiJSUzI1NiIsImtpZCI6ImxlZ2FjeS10b2tlbi1rZXkifQ";
+
+    private static final Pattern USER_NAME_CLAIM = Pattern.compile("\"user_name\":\"([^\"]*)\"");
+
+    private static final String QUOTA_GUID = "c6b2a5b6-63ba-4d89-9a32-3e3c4b8a9a1e";
+
+    private static final int ORGANIZATION_USER = 0;
+    private static final int ORGANIZATION_MANAGER = 1;
+    private static final int SPACE_DEVELOPER = 2;
+    private static final String[] ROLE_TYPES = {"organization_user", "organization_manager", "space_developer"};
+
+    private CfPayloads() {
+    }
+
+    /** A client_credentials grant response, with a JWT-sized access token. */
+    public static String clientToken() {
+        return "{\"access_token\":\"" + fakeJwt() + "\",\"token_type\":\"bearer\",\"expires_in\":43199,"
+                + "\"scope\":\"scim.read cloud_controller.admin scim.userids uaa.resource\","
+                + "\"jti\":\"" + UUID.randomUUID() + "\"}";
+    }
+
+    /**
+     * An authorization_code or refresh_token grant response. Both tokens carry the user claims, so that the
+     * user they were issued to can be told from them.
+     */
+    public static String userToken(final String userName, final String userId) {
+        return "{\"access_token\":\"" + userJwt(userName, userId) + "\",\"token_type\":\"bearer\","
+                + "\"refresh_token\":\"" + userJwt(userName, userId) + "\",\"expires_in\":599,"
+                + "\"scope\":\"openid oauth.approvals scim.me cloud_controller.read\","
+                + "\"jti\":\"" + UUID.randomUUID() + "\",\"user_name\":\"" + userName + "\","
+                + "\"user_id\":\"" + userId + "\"}";
+    }
+
+    /** A {@code /userinfo} response. */
+    public static String userInfo(final String userName, final String userId) {
+        return "{\"user_id\":\"" + userId + "\",\"user_name\":\"" + userName + "\","
+                + "\"given_name\":\"Jane\",\"family_name\":\"Doe\",\"name\":\"Jane Doe\","
+                + "\"email\":\"" + userName + "\",\"phone_number\":null,\"previous_logon_time\":1458132458000}";
+    }
+
+    /** A {@code /token_keys} response without any key, so that tokens are never verified locally. */
+    public static String tokenKeys() {
+        return "{\"keys\":[]}";
+    }
+
+    /** A SCIM {@code /Users} search response, with one resource per user id. */
+    public static String userSearch(final List<String> userNames, final List<String> userIds,
+                                    final int startIndex, final int totalResults) {
+        final StringBuilder json = new StringBuilder("{\"resources\":[");
+        for (int i = 0; i < userIds.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(userIds.get(i)).append("\",\"userName\":\"")
+                    .append(userNames.get(i)).append("\"}");
+        }
+        return json.append("],\"startIndex\":").append(startIndex)
+                .append(",\"itemsPerPage\":").append(Math.max(userIds.size(), 1))
+                .append(",\"totalResults\":").append(totalResults)
+                .append(",\"schemas\":[\"urn:scim:schemas:core:1.0\"]}")
+                .toString();
+    }
+
+    /**
+     * One page of a Cloud Controller v2 organization listing.
+     *
+     * @param names        the names of all the organizations of the listing.
+     * @param page         the page number, starting at 1.
+     * @param perPage      the results-per-page.
+     * @param path         the listing path, used to build the next and previous urls.
+     */
+    public static String organizationsPage(final List<String> names, final int page, final int perPage,
+                                           final String path) {
+        final int total = names.size();
+        final int totalPages = Math.max(1, (total + perPage - 1) / perPage);
+        final StringBuilder json = new StringBuilder(256 + perPage * 1024);
+        json.append("{\"total_results\":").append(total)
+                .append(",\"total_pages\":").append(totalPages)
+                .append(",\"prev_url\":").append(page > 1 ? pageUrl(path, page - 1, perPage) : "null")
+                .append(",\"next_url\":").append(page < totalPages ? pageUrl(path, page + 1, perPage) : "null")
+                .append(",\"resources\":[");
+        final int from = (page - 1) * perPage;
+        final int to = Math.min(total, from + perPage);
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                json.append(',');
+            }
+            appendOrganization(json, names.get(i), i);
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendOrganization(final StringBuilder json, final String name, final int index) {
+        final String guid = new UUID(0x5ca1ab1eL, index).toString();
+        final String url = "/v2/organizations/" + guid;
+        json.append("{\"metadata\":{\"guid\":\"").append(guid)
+                .append("\",\"url\":\"").append(url)
+                .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":\"2016-02-11T08:37:51Z\"},")
+                .append("\"entity\":{\"name\":\"").append(name)
+                .append("\",\"billing_enabled\":false,\"quota_definition_guid\":\"").append(QUOTA_GUID)
+                .append("\",\"status\":\"").append(index % 20 == 19 ? "suspended" : "active")
+                .append("\",\"quota_definition_url\":\"/v2/quota_definitions/").append(QUOTA_GUID)
+                .append("\",\"spaces_url\":\"").append(url).append("/spaces")
+                .append("\",\"domains_url\":\"").append(url).append("/domains")
+                .append("\",\"private_domains_url\":\"").append(url).append("/private_domains")
+                .append("\",\"users_url\":\"").append(url).append("/users")
+                .append("\",\"managers_url\":\"").append(url).append("/managers")
+                .append("\",\"billing_managers_url\":\"").append(url).append("/billing_managers")
+                .append("\",\"auditors_url\":\"").append(url).append("/auditors")
+                .append("\",\"app_events_url\":\"").append(url).append("/app_events")
+                .append("\",\"space_quota_definitions_url\":\"").append(url).append("/space_quota_definitions")
+                .append("\"}}");
+    }
+
+    /**
+     * One page of a Cloud Controller v3 {@code /v3/organizations} listing.
+     *
+     * @param names   the names of all the organizations of the listing.
+     * @param page    the page number, starting at 1.
+     * @param perPage the per_page.
+     * @param url     the listing url, without query, used to build the pagination links.
+     */
+    public static String v3OrganizationsPage(final List<String> names, final int page, final int perPage,
+                                             final String url) {
+        final StringBuilder json = new StringBuilder(256 + perPage * 768);
+        appendV3Pagination(json, names.size(), page, perPage, url, "");
+        json.append(",\"resources\":[");
+        final int from = (page - 1) * perPage;
+        final int to = Math.min(names.size(), from + perPage);
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                json.append(',');
+            }
+            appendV3Organization(json, url.substring(0, url.indexOf("/v3/")), names.get(i), i);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * One page of a Cloud Controller v3 {@code /v3/roles} listing of the given user, including the organizations
+     * and, if asked, the spaces the roles refer to.
+     *
+     * The user is an organization_user of each organization. With {@code allRoles}, it is also an
+     * organization_manager of every tenth one and a space_developer of the {@code dev} space of each one.
+     */
+    public static String v3RolesPage(final String userId, final List<String> names, final boolean allRoles,
+                                     final int page, final int perPage, final String url) {
+        final String base = url.substring(0, url.indexOf("/v3/"));
+        final List<int[]> roles = new ArrayList<int[]>();
+        for (int i = 0; i < names.size(); i++) {
+            roles.add(new int[]{ORGANIZATION_USER, i});
+            if (allRoles && i % 10 == 0) {
+                roles.add(new int[]{ORGANIZATION_MANAGER, i});
+            }
+            if (allRoles) {
+                roles.add(new int[]{SPACE_DEVELOPER, i});
+            }
+        }
+        final StringBuilder json = new StringBuilder(256 + perPage * 1536);
+        appendV3Pagination(json, roles.size(), page, perPage, url,
+                "&user_guids=" + userId + (allRoles ? "&include=organization,space" : "&include=organization"));
+        json.append(",\"resources\":[");
+        final int from = (page - 1) * perPage;
+        final int to = Math.min(roles.size(), from + perPage);
+        final Set<Integer> organizations = new TreeSet<Integer>();
+        final Set<Integer> spaces = new TreeSet<Integer>();
+        for (int r = from; r < to; r++) {
+            if (r > from) {
+                json.append(',');
+            }
+            final int type = roles.get(r)[0];
+            final int i = roles.get(r)[1];
+            final String guid = new UUID(0x401eL, r).toString();
+            final String organizationGuid = new UUID(0x5ca1ab1eL, i).toString();
+            final String spaceGuid = new UUID(0x5ace5L, i).toString();
+            json.append("{\"guid\":\"").append(guid)
+                    .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":\"2016-02-11T08:37:51Z\",")
+                    .append("\"type\":\"").append(ROLE_TYPES[type]).append("\",\"relationships\":{")
+                    .append("\"user\":{\"data\":{\"guid\":\"").append(userId).append("\"}},");
+            if (type == SPACE_DEVELOPER) {
+                spaces.add(i);
+                json.append("\"organization\":{\"data\":null},")
+                        .append("\"space\":{\"data\":{\"guid\":\"").append(spaceGuid).append("\"}}},");
+            } else {
+                json.append("\"organization\":{\"data\":{\"guid\":\"").append(organizationGuid).append("\"}},")
+                        .append("\"space\":{\"data\":null}},");
+            }
+            organizations.add(i);
+            json.append("\"links\":{\"self\":{\"href\":\"").append(base).append("/v3/roles/").append(guid)
+                    .append("\"},\"user\":{\"href\":\"").append(base).append("/v3/users/").append(userId)
+                    .append("\"}}}");
+        }
+        json.append("],\"included\":{\"organizations\":[");
+        boolean first = true;
+        for (int i : organizations) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendV3Organization(json, base, names.get(i), i);
+        }
+        json.append(']');
+        if (allRoles) {
+            json.append(",\"spaces\":[");
+            first = true;
+            for (int i : spaces) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                appendV3Space(json, base, i);
+            }
+            json.append(']');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * A Cloud Controller v2 {@code /v2/users/:guid/summary} response, with the same roles as
+     * {@link #v3RolesPage(String, List, boolean, int, int, String)} lists with {@code allRoles}.
+     */
+    public static String userSummary(final String userId, final List<String> names) {
+        final StringBuilder json = new StringBuilder(1024 + names.size() * 2048);
+        json.append("{\"metadata\":{\"guid\":\"").append(userId)
+                .append("\",\"url\":\"/v2/users/").append(userId)
+                .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":null},")
+                .append("\"entity\":{\"admin\":false,\"active\":true,\"default_space_guid\":null,")
+                .append("\"organizations\":[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendSummaryOrganization(json, names.get(i), i);
+        }
+        json.append("],\"managed_organizations\":[");
+        for (int i = 0; i < names.size(); i += 10) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendSummaryOrganization(json, names.get(i), i);
+        }
+        json.append("],\"billing_managed_organizations\":[],\"audited_organizations\":[],\"spaces\":[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            final String guid = new UUID(0x5ace5L, i).toString();
+            json.append("{\"metadata\":{\"guid\":\"").append(guid)
+                    .append("\",\"url\":\"/v2/spaces/").append(guid)
+                    .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":null},")
+                    .append("\"entity\":{\"name\":\"dev\",\"organization_guid\":\"")
+                    .append(new UUID(0x5ca1ab1eL, i))
+                    .append("\",\"space_quota_definition_guid\":null,\"allow_ssh\":true}}");
+        }
+        return json.append("],\"managed_spaces\":[],\"audited_spaces\":[]}}").toString();
+    }
+
+    private static void appendSummaryOrganization(final StringBuilder json, final String name, final int index) {
+        final String guid = new UUID(0x5ca1ab1eL, index).toString();
+        json.append("{\"metadata\":{\"guid\":\"").append(guid)
+                .append("\",\"url\":\"/v2/organizations/").append(guid)
+                .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":null},")
+                .append("\"entity\":{\"name\":\"").append(name)
+                .append("\",\"billing_enabled\":false,\"status\":\"")
+                .append(index % 20 == 19 ? "suspended" : "active")
+                .append("\",\"spaces\":[],\"quota_definition\":{\"metadata\":{\"guid\":\"").append(QUOTA_GUID)
+                .append("\"},\"entity\":{\"name\":\"default\",\"non_basic_services_allowed\":true,")
+                .append("\"total_services\":100,\"memory_limit\":10240}},\"managers\":[]}}");
+    }
+
+    private static void appendV3Space(final StringBuilder json, final String base, final int index) {
+        final String guid = new UUID(0x5ace5L, index).toString();
+        final String organizationGuid = new UUID(0x5ca1ab1eL, index).toString();
+        json.append("{\"guid\":\"").append(guid)
+                .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":\"2016-02-11T08:37:51Z\",")
+                .append("\"name\":\"dev\",\"relationships\":{\"organization\":{\"data\":{\"guid\":\"")
+                .append(organizationGuid).append("\"}},\"quota\":{\"data\":null}},")
+                .append("\"metadata\":{\"labels\":{},\"annotations\":{}},\"links\":{")
+                .append("\"self\":{\"href\":\"").append(base).append("/v3/spaces/").append(guid)
+                .append("\"},\"organization\":{\"href\":\"").append(base).append("/v3/organizations/")
+                .append(organizationGuid).append("\"}}}");
+    }
+
+    private static void appendV3Pagination(final StringBuilder json, final int total, final int page,
+                                           final int perPage, final String url, final String query) {
+        final int totalPages = Math.max(1, (total + perPage - 1) / perPage);
+        json.append("{\"pagination\":{\"total_results\":").append(total)
+                .append(",\"total_pages\":").append(totalPages)
+                .append(",\"first\":").append(v3PageLink(url, 1, perPage, query))
+                .append(",\"last\":").append(v3PageLink(url, totalPages, perPage, query))
+                .append(",\"next\":").append(page < totalPages ? v3PageLink(url, page + 1, perPage, query) : "null")
+                .append(",\"previous\":").append(page > 1 ? v3PageLink(url, page - 1, perPage, query) : "null")
+                .append('}');
+    }
+
+    private static String v3PageLink(final String url, final int page, final int perPage, final String query) {
+        return "{\"href\":\"" + url + "?page=" + page + "&per_page=" + perPage + query + "\"}";
+    }
+
+    private static void appendV3Organization(final StringBuilder json, final String base, final String name,
+                                             final int index) {
+        final String guid = new UUID(0x5ca1ab1eL, index).toString();
+        final String url = base + "/v3/organizations/" + guid;
+        json.append("{\"guid\":\"").append(guid)
+                .append("\",\"created_at\":\"2016-01-26T22:20:04Z\",\"updated_at\":\"2016-02-11T08:37:51Z\",")
+                .append("\"name\":\"").append(name)
+                .append("\",\"suspended\":").append(index % 20 == 19)
+                .append(",\"relationships\":{\"quota\":{\"data\":{\"guid\":\"").append(QUOTA_GUID)
+                .append("\"}}},\"metadata\":{\"labels\":{},\"annotations\":{}},\"links\":{")
+                .append("\"self\":{\"href\":\"").append(url)
+                .append("\"},\"domains\":{\"href\":\"").append(url).append("/domains")
+                .append("\"},\"default_domain\":{\"href\":\"").append(url).append("/domains/default")
+                .append("\"},\"quota\":{\"href\":\"").append(base).append("/v3/organization_quotas/").append(QUOTA_GUID)
+                .append("\"}}}");
+    }
+
+    private static String pageUrl(final String path, final int page, final int perPage) {
+        return "\"" + path + "?order-direction=asc&page=" + page + "&results-per-page=" + perPage + "\"";
+    }
+
+    /**
+     * The user name in the claims of a token built by {@link #userToken(String, String)}, null if there is none.
+     */
+    public static String userName(final String jwt) {
+        final String[] parts = jwt.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        final Matcher matcher = USER_NAME_CLAIM.matcher(new String(Base64.decodeBase64(parts[1]), UTF8));
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /** An unsigned token of the size of a UAA one, only meant to be passed around. */
+    private static String fakeJwt() {
+        final StringBuilder token = new StringBuilder(JWT_HEADER).append('.');
+        for (int i = 0; i < 12; i++) {
+            token.append(UUID.randomUUID().toString().replace("-", ""));
+        }
+        return token.append(".c2lnbmF0dXJl").toString();
+    }
+
+    /** An unsigned token with the claims UAA puts in user tokens. */
+    private static String userJwt(final String userName, final String userId) {
+        final long now = System.currentTimeMillis() / 1000;
+        final String claims = "{\"jti\":\"" + UUID.randomUUID().toString().replace("-", "") + "\","
+                + "\"sub\":\"" + userId + "\",\"scope\":[\"openid\",\"oauth.approvals\",\"scim.me\","
+                + "\"cloud_controller.read\"],\"client_id\":\"jenkins\",\"cid\":\"jenkins\","
+                + "\"grant_type\":\"authorization_code\",\"user_id\":\"" + userId + "\","
+                + "\"origin\":\"uaa\",\"user_name\":\"" + userName + "\",\"email\":\"" + userName + "\","
+                + "\"auth_time\":" + now + ",\"rev_sig\":\"2ff51e4c\",\"iat\":" + now + ","
+                + "\"exp\":" + (now + 599) + ",\"iss\":\"http://localhost:8080/uaa/oauth/token\","
+                + "\"zid\":\"uaa\",\"aud\":[\"jenkins\",\"openid\",\"oauth\",\"scim\",\"cloud_controller\"]}";
+        return JWT_HEADER + "." + Base64.encodeBase64URLSafeString(claims.getBytes(UTF8)) + ".c2lnbmF0dXJl";
+    }
+}
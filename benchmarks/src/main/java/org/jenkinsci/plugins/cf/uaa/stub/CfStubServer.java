@@ -0,0 +1,317 @@
+package org.jenkinsci.plugins.cf.uaa.stub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for UAA and the Cloud Controller, serving the endpoints called by the plugin.
+ *
+ * Every user exists, its id is derived from its name, and it is a member of the same organizations. The
+ * authorization code handed out by {@code /oauth/authorize} is the name of the user to log in, taken from the
+ * {@code login_hint} parameter.
+ *
+ * The organizations are served by both the v2 and the v3 API. Besides its memberships, every user is a manager of
+ * every tenth organization and a developer of the {@code dev} space of each one.
+ *
+ * Each response can be delayed by a fixed latency plus a random jitter, to mimic a remote server.
+ */
+public class CfStubServer {
+
+    private static final Pattern USER_NAME_FILTER = Pattern.compile("userName eq \"([^\"]*)\"");
+
+    private static final Pattern USER_ORGANIZATIONS = Pattern.compile("/v2/users/([^/]+)/organizations");
+
+    private static final Pattern USER_SUMMARY = Pattern.compile("/v2/users/([^/]+)/summary");
+
+    private static final String NOT_FOUND = "{\"code\":10000,\"error_code\":\"CF-NotFound\"}";
+
+    private static final String UNAUTHORIZED = "{\"error\":\"unauthorized\"}";
+
+    private final List<String> organizations;
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param organizationsPerUser number of organizations every user is a member of.
+     */
+    public CfStubServer(final int organizationsPerUser) {
+        final List<String> names = new ArrayList<String>(organizationsPerUser);
+        for (int i = 0; i < organizationsPerUser; i++) {
+            names.add("org-" + i);
+        }
+        this.organizations = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Delays every response, can be changed while the server runs.
+     *
+     * @param latencyMillis minimum delay.
+     * @param jitterMillis  upper bound of the random delay added to it.
+     */
+    public CfStubServer setLatency(final long latencyMillis, final long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /** Starts the server on a random local port. */
+    public CfStubServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/oauth/authorize", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final Map<String, String> query = query(exchange);
+                final String userName = query.containsKey("login_hint") ? query.get("login_hint") : "user";
+                final StringBuilder location = new StringBuilder(query.get("redirect_uri"))
+                        .append("?code=").append(URLEncoder.encode(userName, "UTF-8"));
+                if (query.containsKey("state")) {
+                    location.append("&state=").append(URLEncoder.encode(query.get("state"), "UTF-8"));
+                }
+                exchange.getResponseHeaders().set("Location", location.toString());
+                respond(exchange, 302, "");
+            }
+        }));
+        server.createContext("/oauth/token", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final Map<String, String> form = form(exchange);
+                final String grantType = form.get("grant_type");
+                if ("authorization_code".equals(grantType)) {
+                    final String userName = form.get("code");
+                    respond(exchange, 200, CfPayloads.userToken(userName, userId(userName)));
+                } else if ("refresh_token".equals(grantType)) {
+                    final String userName = CfPayloads.userName(form.get("refresh_token"));
+                    if (userName == null) {
+                        respond(exchange, 401, "{\"error\":\"invalid_token\"}");
+                        return;
+                    }
+                    respond(exchange, 200, CfPayloads.userToken(userName, userId(userName)));
+                } else {
+                    respond(exchange, 200, CfPayloads.clientToken());
+                }
+            }
+        }));
+        server.createContext("/token_keys", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, 200, CfPayloads.tokenKeys());
+            }
+        }));
+        server.createContext("/userinfo", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String userName = bearerUserName(exchange);
+                if (userName == null) {
+                    respond(exchange, 401, UNAUTHORIZED);
+                    return;
+                }
+                respond(exchange, 200, CfPayloads.userInfo(userName, userId(userName)));
+            }
+        }));
+        server.createContext("/Users", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final Map<String, String> query = query(exchange);
+                final String filter = query.get("filter");
+                final Matcher matcher = USER_NAME_FILTER.matcher(filter != null ? filter : "");
+                final List<String> names = new ArrayList<String>();
+                while (matcher.find()) {
+                    names.add(matcher.group(1));
+                }
+                // SCIM pagination: 1-based start index, all the remaining results by default.
+                final int startIndex = Math.max(intParam(query, "startIndex", 1), 1);
+                final int count = intParam(query, "count", names.size());
+                final int from = Math.min(startIndex - 1, names.size());
+                final List<String> page = names.subList(from, Math.min(names.size(), from + Math.max(count, 0)));
+                final List<String> ids = new ArrayList<String>(page.size());
+                for (String name : page) {
+                    ids.add(userId(name));
+                }
+                respond(exchange, 200, CfPayloads.userSearch(page, ids, startIndex, names.size()));
+            }
+        }));
+        server.createContext("/v2/organizations", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (bearerUserName(exchange) == null) {
+                    respond(exchange, 401, UNAUTHORIZED);
+                    return;
+                }
+                respondOrganizations(exchange, "/v2/organizations");
+            }
+        }));
+        server.createContext("/v2/users/", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String path = exchange.getRequestURI().getPath();
+                final Matcher summary = USER_SUMMARY.matcher(path);
+                if (summary.matches()) {
+                    respond(exchange, 200, CfPayloads.userSummary(summary.group(1), organizations));
+                    return;
+                }
+                if (!USER_ORGANIZATIONS.matcher(path).matches()) {
+                    respond(exchange, 404, NOT_FOUND);
+                    return;
+                }
+                respondOrganizations(exchange, path);
+            }
+        }));
+        server.createContext("/v3/organizations", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (bearerUserName(exchange) == null) {
+                    respond(exchange, 401, UNAUTHORIZED);
+                    return;
+                }
+                final Map<String, String> query = query(exchange);
+                respond(exchange, 200, CfPayloads.v3OrganizationsPage(organizations, intParam(query, "page", 1),
+                        intParam(query, "per_page", 50), getUrl() + "/v3/organizations"));
+            }
+        }));
+        server.createContext("/v3/roles", delayed(new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final Map<String, String> query = query(exchange);
+                final String userId = query.get("user_guids");
+                final String include = query.get("include");
+                if (userId == null || !"organization".equals(include) && !"organization,space".equals(include)) {
+                    respond(exchange, 400, "{\"errors\":[{\"code\":10008,\"title\":\"CF-UnprocessableEntity\"}]}");
+                    return;
+                }
+                respond(exchange, 200, CfPayloads.v3RolesPage(userId, organizations, include.endsWith("space"),
+                        intParam(query, "page", 1), intParam(query, "per_page", 50), getUrl() + "/v3/roles"));
+            }
+        }));
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /** Base url of the server, to use as UAA, login and API endpoint. */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** The user id the server returns for the given user name. */
+    public static String userId(final String userName) {
+        return UUID.nameUUIDFromBytes(userName.getBytes(CfPayloads.UTF8)).toString();
+    }
+
+    private HttpHandler delayed(final HttpHandler handler) {
+        return new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final long jitter = jitterMillis;
+                final long delay = latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        exchange.close();
+                        return;
+                    }
+                }
+                handler.handle(exchange);
+            }
+        };
+    }
+
+    private void respondOrganizations(final HttpExchange exchange, final String path) throws IOException {
+        final Map<String, String> query = query(exchange);
+        final int page = intParam(query, "page", 1);
+        final int perPage = intParam(query, "results-per-page", 50);
+        respond(exchange, 200, CfPayloads.organizationsPage(organizations, page, perPage, path));
+    }
+
+    /** The user a bearer token built by {@link CfPayloads#userToken(String, String)} was issued to. */
+    private static String bearerUserName(final HttpExchange exchange) {
+        final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "bearer ", 0, 7)) {
+            return null;
+        }
+        return CfPayloads.userName(authorization.substring(7).trim());
+    }
+
+    static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        drain(exchange.getRequestBody());
+        final byte[] bytes = body.getBytes(CfPayloads.UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Reads the request body to the end, so the connection can be kept alive. */
+    private static void drain(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[1024];
+        try {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static Map<String, String> query(final HttpExchange exchange) throws UnsupportedEncodingException {
+        return decode(exchange.getRequestURI().getRawQuery());
+    }
+
+    /** The parameters of an url encoded form body. */
+    static Map<String, String> form(final HttpExchange exchange) throws IOException {
+        final InputStream in = exchange.getRequestBody();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, read);
+        }
+        return decode(new String(body.toByteArray(), CfPayloads.UTF8));
+    }
+
+    private static Map<String, String> decode(final String raw) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<String, String>();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    static int intParam(final Map<String, String> query, final String name, final int defaultValue) {
+        final String value = query.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
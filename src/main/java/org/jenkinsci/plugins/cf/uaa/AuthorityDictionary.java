@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.security.SecurityRealm;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers the authority names granted by the realm, and keeps a single {@link GrantedAuthority} for each.
+ *
+ * The names are organizations and roles, shared by most users, so the dictionary stays in the thousands of entries
+ * while thousands of users are cached; {@link AuthoritySet} only holds the numbers. Names are never removed, an
+ * organization renamed or deleted keeps its number until Jenkins restarts.
+ */
+final class AuthorityDictionary {
+
+    /** Number of {@link SecurityRealm#AUTHENTICATED_AUTHORITY}, which every user has. */
+    static final int AUTHENTICATED = 0;
+
+    private static final ConcurrentHashMap<String, Integer> IDS = new ConcurrentHashMap<String, Integer>();
+
+    /** The authorities by number, grown by doubling. */
+    private static volatile GrantedAuthority[] authorities = new GrantedAuthority[256];
+
+    private static int size;
+
+    static {
+        authorities[AUTHENTICATED] = SecurityRealm.AUTHENTICATED_AUTHORITY;
+        IDS.put(SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority(), AUTHENTICATED);
+        size = 1;
+    }
+
+    private AuthorityDictionary() {
+    }
+
+    /** The number of the given name, assigned on first use. */
+    static int intern(final String name) {
+        final Integer id = IDS.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (AuthorityDictionary.class) {
+            final Integer raced = IDS.get(name);
+            if (raced != null) {
+                return raced;
+            }
+            GrantedAuthority[] grown = authorities;
+            if (size == grown.length) {
+                grown = new GrantedAuthority[size * 2];
+                System.arraycopy(authorities, 0, grown, 0, size);
+            }
+            grown[size] = new GrantedAuthorityImpl(name);
+            // the authority is published before its number, a reader finding the number finds the authority.
+            authorities = grown;
+            IDS.put(name, size);
+            return size++;
+        }
+    }
+
+    /** The number of the given name, or -1 if no user was ever granted it. */
+    static int lookup(final String name) {
+        final Integer id = IDS.get(name);
+        return id != null ? id : -1;
+    }
+
+    /** The authority of the given number. */
+    static GrantedAuthority get(final int id) {
+        return authorities[id];
+    }
+
+    /** Number of distinct authorities granted since Jenkins started. */
+    static int size() {
+        return IDS.size();
+    }
+}
@@ -0,0 +1,148 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.acegisecurity.GrantedAuthority;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of authorities, held as their {@link AuthorityDictionary} numbers.
+ *
+ * Sets are interned, the users of the same organizations and roles share one instance. A set whose numbers are
+ * dense enough is a bitset, otherwise a sorted array of numbers, whichever is smaller; both take a few bytes per
+ * authority instead of an object each. Membership is a lookup in the dictionary plus a bit test, or a binary search
+ * for the sparse sets.
+ *
+ * {@link hudson.security.SecurityRealm#AUTHENTICATED_AUTHORITY} is always part of the set.
+ */
+final class AuthoritySet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Interner<AuthoritySet> SETS = Interners.newWeakInterner();
+
+    /** The numbers as a bitset, {@code null} for a sparse set. */
+    private final long[] bits;
+
+    /** The sorted numbers, {@code null} for a dense set. */
+    private final int[] ids;
+
+    private final int size;
+
+    private final int hash;
+
+    private AuthoritySet(final long[] bits, final int[] ids, final int size) {
+        this.bits = bits;
+        this.ids = ids;
+        this.size = size;
+        this.hash = bits != null ? Arrays.hashCode(bits) : Arrays.hashCode(ids);
+    }
+
+    /** The set of the authenticated authority and the given authority names. */
+    static AuthoritySet of(final Collection<String> names) {
+        final int[] ids = new int[names.size() + 1];
+        ids[0] = AuthorityDictionary.AUTHENTICATED;
+        int count = 1;
+        for (String name : names) {
+            ids[count++] = AuthorityDictionary.intern(name);
+        }
+        Arrays.sort(ids);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || ids[size - 1] != ids[i]) {
+                ids[size++] = ids[i];
+            }
+        }
+        final int words = ids[size - 1] / 64 + 1;
+        if (words * 2 <= size) {
+            final long[] bits = new long[words];
+            for (int i = 0; i < size; i++) {
+                bits[ids[i] >>> 6] |= 1L << ids[i];
+            }
+            return SETS.intern(new AuthoritySet(bits, null, size));
+        }
+        return SETS.intern(new AuthoritySet(null, Arrays.copyOf(ids, size), size));
+    }
+
+    boolean contains(final String name) {
+        final int id = AuthorityDictionary.lookup(name);
+        if (id < 0) {
+            return false;
+        }
+        if (bits != null) {
+            final int word = id >>> 6;
+            return word < bits.length && (bits[word] & 1L << id) != 0;
+        }
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** The authorities of the set, each the single instance the dictionary keeps for its name. */
+    GrantedAuthority[] toArray() {
+        final GrantedAuthority[] authorities = new GrantedAuthority[size];
+        if (bits == null) {
+            for (int i = 0; i < size; i++) {
+                authorities[i] = AuthorityDictionary.get(ids[i]);
+            }
+            return authorities;
+        }
+        int i = 0;
+        for (int word = 0; word < bits.length; word++) {
+            long remaining = bits[word];
+            while (remaining != 0) {
+                authorities[i++] = AuthorityDictionary.get(word * 64 + Long.numberOfTrailingZeros(remaining));
+                remaining &= remaining - 1;
+            }
+        }
+        return authorities;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AuthoritySet)) {
+            return false;
+        }
+        final AuthoritySet other = (AuthoritySet) o;
+        return hash == other.hash && Arrays.equals(bits, other.bits) && Arrays.equals(ids, other.ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /** The numbers are only meaningful in this JVM, the names are serialized instead. */
+    private Object writeReplace() throws ObjectStreamException {
+        final GrantedAuthority[] authorities = toArray();
+        final String[] names = new String[authorities.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = authorities[i].getAuthority();
+        }
+        return new SerializedForm(names);
+    }
+
+    private static final class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String[] names;
+
+        SerializedForm(final String[] names) {
+            this.names = names;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return of(Arrays.asList(names));
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.XmlFile;
+import jenkins.util.Timer;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the user id cache and the user cache to a binary file in the Jenkins home directory, and loads them back
+ * after a restart, so that the users active before the restart are resolved without calling UAA or the Cloud
+ * Controller.
+ *
+ * The file is written to a temporary file renamed over the previous one, so a crash never leaves a partial
+ * snapshot, and only when the caches changed since the last save. It is read in one go and checked as it is
+ * parsed: a corrupted file is logged and deleted, and nothing of it is restored. The entries keep the time they were
+ * used or resolved at: the ones that expired in the meantime are left out, the others expire as if Jenkins had not
+ * restarted.
+ *
+ * Layout, big-endian: magic, version, save time, then the authority names, the user ids, and the users with the
+ * indexes of their authorities in the names. UUID user ids take 16 bytes. A file of another version is ignored.
+ */
+class CacheSnapshot {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(CacheSnapshot.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** {@code CFUA}. */
+    private static final int MAGIC = 0x43465541;
+
+    private static final int VERSION = 1;
+
+    private static final byte UUID_ID = 0;
+    private static final byte STRING_ID = 1;
+
+    /** Smallest size of a saved user id: name length, last use, type and id length. */
+    private static final int MIN_USER_ID_BYTES = 4 + 8 + 1 + 4;
+
+    /** Smallest size of a saved user: name length, load time and number of authorities. */
+    private static final int MIN_USER_BYTES = 4 + 8 + 4;
+
+    /** The caches are saved at most once per this delay. */
+    private static final long SAVE_INTERVAL_SECONDS = 60;
+
+    private final File file;
+    private final UserIdCache userIds;
+    private final UserDetailsCache users;
+
+    private ScheduledFuture<?> saver;
+    private long savedModifications = -1;
+
+    CacheSnapshot(final File file, final UserIdCache userIds, final UserDetailsCache users) {
+        this.file = file;
+        this.userIds = userIds;
+        this.users = users;
+    }
+
+    /** The snapshot file, in the Jenkins home directory. */
+    static File defaultFile(final File rootDir) {
+        return new File(rootDir, CacheSnapshot.class.getName() + ".bin");
+    }
+
+    /** Loads the saved caches, then saves them regularly. */
+    synchronized void start() {
+        load();
+        savedModifications = modifications();
+        saver = Timer.get().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                save(false);
+            }
+        }, SAVE_INTERVAL_SECONDS, SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Stops the regular saves and saves the caches a last time. */
+    void close() {
+        synchronized (this) {
+            if (saver != null) {
+                saver.cancel(false);
+                saver = null;
+            }
+        }
+        save(true);
+    }
+
+    private long modifications() {
+        return userIds.getModificationCount() + users.getModificationCount();
+    }
+
+    private synchronized void save(final boolean force) {
+        final long modifications = modifications();
+        if (!force && modifications == savedModifications) {
+            return;
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            final int count = write(temp);
+            if (!temp.renameTo(file)) {
+                // renaming over an existing file fails on Windows.
+                if (!file.delete() || !temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp + " to " + file);
+                }
+            }
+            savedModifications = modifications;
+            LOG.fine("Saved " + count + " UAA users to " + file);
+            deleteLegacyFile();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to save the UAA user caches to " + file, e);
+            if (temp.exists() && !temp.delete()) {
+                LOG.fine("Failed to delete " + temp);
+            }
+        }
+    }
+
+    /** @return the number of users written. */
+    private int write(final File target) throws IOException {
+        final Map<String, UserIdCache.Entry> ids = userIds.snapshot();
+        final Map<String, UserDetailsCache.Entry> details = users.snapshot();
+
+        final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        final List<String> names = new ArrayList<String>();
+        final Map<String, int[]> authorities = new HashMap<String, int[]>();
+        for (Map.Entry<String, UserDetailsCache.Entry> e : details.entrySet()) {
+            final UserDetails user = e.getValue().getDetails();
+            if (!(user instanceof CfUserDetails)) {
+                continue;
+            }
+            final GrantedAuthority[] granted = user.getAuthorities();
+            final int[] indexesOfUser = new int[granted.length];
+            for (int i = 0; i < granted.length; i++) {
+                final String name = granted[i].getAuthority();
+                Integer index = indexes.get(name);
+                if (index == null) {
+                    index = names.size();
+                    indexes.put(name, index);
+                    names.add(name);
+                }
+                indexesOfUser[i] = index;
+            }
+            authorities.put(e.getKey(), indexesOfUser);
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(names.size());
+            for (String name : names) {
+                writeString(out, name);
+            }
+            out.writeInt(ids.size());
+            for (Map.Entry<String, UserIdCache.Entry> e : ids.entrySet()) {
+                writeString(out, e.getKey());
+                out.writeLong(e.getValue().getLastUsed());
+                final UUID uuid = parseUuid(e.getValue().getId());
+                if (uuid != null) {
+                    out.writeByte(UUID_ID);
+                    out.writeLong(uuid.getMostSignificantBits());
+                    out.writeLong(uuid.getLeastSignificantBits());
+                } else {
+                    out.writeByte(STRING_ID);
+                    writeString(out, e.getValue().getId());
+                }
+            }
+            out.writeInt(authorities.size());
+            for (Map.Entry<String, int[]> e : authorities.entrySet()) {
+                writeString(out, e.getKey());
+                out.writeLong(details.get(e.getKey()).getLoadedAt());
+                out.writeInt(e.getValue().length);
+                for (int index : e.getValue()) {
+                    out.writeInt(index);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return authorities.size();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            loadLegacyFile();
+            return;
+        }
+        final ByteBuffer in;
+        try {
+            in = readFile();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to load the UAA user caches from " + file, e);
+            return;
+        }
+        try {
+            if (in.getInt() != MAGIC) {
+                LOG.warning(file + " is not a UAA user cache snapshot, ignoring it");
+                return;
+            }
+            final int version = in.getInt();
+            if (version != VERSION) {
+                LOG.info("Ignoring " + file + ", saved in version " + version + " of the format");
+                return;
+            }
+            in.getLong();
+            final String[] names = new String[readCount(in, 4)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readString(in);
+            }
+
+            // everything is read before anything is restored, so a corrupted file leaves the caches untouched.
+            final List<String> idUsers = new ArrayList<String>();
+            final List<String> ids = new ArrayList<String>();
+            final List<Long> lastUses = new ArrayList<Long>();
+            final int idCount = readCount(in, MIN_USER_ID_BYTES);
+            for (int i = 0; i < idCount; i++) {
+                idUsers.add(readString(in));
+                lastUses.add(in.getLong());
+                ids.add(in.get() == UUID_ID ? new UUID(in.getLong(), in.getLong()).toString() : readString(in));
+            }
+            final List<String> userNames = new ArrayList<String>();
+            final List<CfUserDetails> details = new ArrayList<CfUserDetails>();
+            final List<Long> loadTimes = new ArrayList<Long>();
+            final int userCount = readCount(in, MIN_USER_BYTES);
+            for (int i = 0; i < userCount; i++) {
+                final String userName = readString(in);
+                loadTimes.add(in.getLong());
+                final String[] granted = new String[readCount(in, 4)];
+                for (int j = 0; j < granted.length; j++) {
+                    granted[j] = names[in.getInt()];
+                }
+                userNames.add(userName);
+                details.add(new CfUserDetails(userName, AuthoritySet.of(Arrays.asList(granted))));
+            }
+
+            for (int i = 0; i < idCount; i++) {
+                userIds.restore(idUsers.get(i), ids.get(i), lastUses.get(i));
+            }
+            for (int i = 0; i < userCount; i++) {
+                users.restore(userNames.get(i), details.get(i), loadTimes.get(i));
+            }
+            LOG.fine("Loaded " + idCount + " UAA user ids and " + userCount + " users from " + file);
+        } catch (IOException e) {
+            deleteCorrupted(e);
+        } catch (RuntimeException e) {
+            // a truncated file underflows, an out of range authority index overflows the names.
+            deleteCorrupted(e);
+        }
+    }
+
+    /** Reads the whole file into memory. */
+    private ByteBuffer readFile() throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large, " + size + " bytes");
+            }
+            final ByteBuffer in = ByteBuffer.allocate((int) size);
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            in.flip();
+            return in;
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void deleteCorrupted(final Exception e) {
+        LOG.log(Level.WARNING, "Corrupted UAA user cache snapshot " + file + ", deleting it", e);
+        if (!file.delete()) {
+            LOG.warning("Failed to delete " + file);
+        }
+    }
+
+    /** The user ids saved by earlier versions, as XML, are imported once. */
+    @SuppressWarnings("unchecked")
+    private void loadLegacyFile() {
+        final XmlFile legacy = legacyFile();
+        if (!legacy.exists()) {
+            return;
+        }
+        try {
+            final Map<String, UserIdCache.Entry> saved = (Map<String, UserIdCache.Entry>) legacy.read();
+            for (Map.Entry<String, UserIdCache.Entry> e : saved.entrySet()) {
+                userIds.restore(e.getKey(), e.getValue().getId(), e.getValue().getLastUsed());
+            }
+            LOG.info("Imported " + saved.size() + " UAA user ids from " + legacy);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to import the UAA user ids from " + legacy, e);
+        } catch (ClassCastException e) {
+            LOG.log(Level.WARNING, "Unexpected content in " + legacy, e);
+        }
+    }
+
+    private void deleteLegacyFile() {
+        final File legacy = legacyFile().getFile();
+        if (legacy.exists() && !legacy.delete()) {
+            LOG.fine("Failed to delete " + legacy);
+        }
+    }
+
+    private XmlFile legacyFile() {
+        return new XmlFile(new File(file.getParentFile(), UserIdCache.class.getName() + ".xml"));
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer in) throws IOException {
+        final byte[] bytes = new byte[readCount(in, 1)];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Reads the number of items that follow, checking that it is not negative and that the rest of the file can
+     * hold that many.
+     *
+     * @param minBytes the smallest size of an item.
+     */
+    private static int readCount(final ByteBuffer in, final int minBytes) throws IOException {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minBytes) {
+            throw new IOException("Invalid count " + count + " at offset " + (in.position() - 4) + ", "
+                    + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    /** The user id as a UUID, if it is one in canonical form, so that it is written back identical. */
+    private static UUID parseUuid(final String id) {
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            final UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
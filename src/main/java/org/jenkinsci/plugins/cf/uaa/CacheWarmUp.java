@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the user cache with the details of the users expected to come back after a restart, before the builds and
+ * API clients ask for them all at once.
+ *
+ * The user ids are resolved first with batched SCIM searches, then the organizations of at most
+ * {@code concurrency} users are requested at a time. The warm-up stops as soon as a circuit breaker opens, the
+ * users it did not reach are then resolved on demand as usual.
+ */
+class CacheWarmUp implements CacheWarmUpMXBean {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(CacheWarmUp.class.getName());
+
+    /** Progress is logged each time this fraction of the users is done. */
+    private static final int PROGRESS_STEPS = 10;
+
+    enum State { RUNNING, DONE, ABORTED, CANCELLED }
+
+    private final CfApiUtil api;
+    private final UserDetailsCache cache;
+    private final List<String> userNames;
+    private final int concurrency;
+
+    private volatile List<String> pending;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger resolved = new AtomicInteger();
+    private final AtomicInteger notFound = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private volatile State state = State.RUNNING;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    CacheWarmUp(final CfApiUtil api, final UserDetailsCache cache, final List<String> userNames,
+                final int concurrency) {
+        this.api = api;
+        this.cache = cache;
+        this.userNames = userNames;
+        this.concurrency = concurrency;
+    }
+
+    /** Starts the warm-up, the work is done on the HTTP client threads. */
+    void start() {
+        startedAt = System.nanoTime();
+        LOG.info("Warming up the user cache with " + userNames.size() + " users");
+        if (userNames.isEmpty()) {
+            finish(State.DONE);
+            return;
+        }
+        Futures.addCallback(api.getUserIdsAsync(userNames), new FutureCallback<Map<String, String>>() {
+            public void onSuccess(final Map<String, String> userIds) {
+                final List<String> known = new ArrayList<String>();
+                for (String userName : userNames) {
+                    if (userIds.containsKey(userName)) {
+                        known.add(userName);
+                    } else {
+                        notFound.incrementAndGet();
+                    }
+                }
+                pending = known;
+                LOG.fine("Resolved the ids of " + known.size() + " users, fetching their organizations");
+                final int workers = Math.min(concurrency, known.size());
+                running.set(workers);
+                if (workers == 0) {
+                    finish(State.DONE);
+                }
+                for (int i = 0; i < workers; i++) {
+                    loadNext();
+                }
+            }
+
+            public void onFailure(final Throwable t) {
+                LOG.log(Level.WARNING, "Cache warm-up aborted, couldn't resolve the user ids", t);
+                finish(State.ABORTED);
+            }
+        });
+    }
+
+    /** Stops the warm-up, the users already being resolved are still cached. */
+    void cancel() {
+        finish(State.CANCELLED);
+    }
+
+    public String getState() {
+        return state.name();
+    }
+
+    public int getUserCount() {
+        return userNames.size();
+    }
+
+    public int getResolvedCount() {
+        return resolved.get();
+    }
+
+    public int getNotFoundCount() {
+        return notFound.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    public long getElapsedMillis() {
+        final long end = state == State.RUNNING ? System.nanoTime() : finishedAt;
+        return TimeUnit.NANOSECONDS.toMillis(end - startedAt);
+    }
+
+    /** Each worker resolves one user at a time, taking the next one once done. */
+    private void loadNext() {
+        final int index = next.getAndIncrement();
+        if (state != State.RUNNING || index >= pending.size()) {
+            if (running.decrementAndGet() == 0) {
+                finish(State.DONE);
+            }
+            return;
+        }
+        final String userName = pending.get(index);
+        Futures.addCallback(api.loadUserByUsernameAsync(userName), new FutureCallback<UserDetails>() {
+            public void onSuccess(final UserDetails details) {
+                cache.putIfAbsent(userName, details);
+                progress(resolved.incrementAndGet());
+                loadNext();
+            }
+
+            public void onFailure(final Throwable t) {
+                if (t instanceof UsernameNotFoundException) {
+                    notFound.incrementAndGet();
+                } else if (t instanceof CircuitBreaker.OpenException) {
+                    LOG.warning("Cache warm-up aborted: " + t.getMessage());
+                    finish(State.ABORTED);
+                } else {
+                    failed.incrementAndGet();
+                    LOG.log(Level.FINE, "Cache warm-up couldn't resolve " + userName, t);
+                }
+                loadNext();
+            }
+        });
+    }
+
+    private void progress(final int done) {
+        final int step = Math.max(pending.size() / PROGRESS_STEPS, 1);
+        if (done % step == 0 && done < pending.size()) {
+            LOG.info("Warming up the user cache: " + done + "/" + pending.size() + " users resolved");
+        }
+    }
+
+    private synchronized void finish(final State outcome) {
+        if (state != State.RUNNING) {
+            return;
+        }
+        finishedAt = System.nanoTime();
+        state = outcome;
+        LOG.info("User cache warm-up " + outcome.name().toLowerCase() + ": " + this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d users resolved, %d not found, %d failed in %dms", getResolvedCount(),
+                getUserCount(), getNotFoundCount(), getFailedCount(), getElapsedMillis());
+    }
+}
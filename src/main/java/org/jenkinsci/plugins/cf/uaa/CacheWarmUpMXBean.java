@@ -0,0 +1,23 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * Progress of the {@link CacheWarmUp}, as published over JMX.
+ */
+public interface CacheWarmUpMXBean {
+
+    /** One of {@code RUNNING}, {@code DONE}, {@code ABORTED} or {@code CANCELLED}. */
+    String getState();
+
+    /** Number of users to warm up. */
+    int getUserCount();
+
+    /** Users whose details were resolved and cached. */
+    int getResolvedCount();
+
+    /** Users UAA does not know anymore. */
+    int getNotFoundCount();
+
+    int getFailedCount();
+
+    long getElapsedMillis();
+}
@@ -0,0 +1,24 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.acegisecurity.AuthenticationServiceException;
+
+/**
+ * Raised when UAA or the Cloud Controller answers with an unexpected HTTP status.
+ */
+class CfApiException extends AuthenticationServiceException {
+
+    private final int status;
+
+    CfApiException(final String msg, final int status) {
+        super(msg + " - response code: " + status);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isUnauthorized() {
+        return status == 401;
+    }
+}
@@ -1,55 +1,77 @@
 package org.jenkinsci.plugins.cf.uaa;
 
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
-import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
-import com.sun.jersey.api.client.filter.LoggingFilter;
-import com.sun.jersey.api.representation.Form;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import hudson.security.GroupDetails;
-import hudson.security.SecurityRealm;
 import org.acegisecurity.AuthenticationServiceException;
 import org.acegisecurity.GrantedAuthority;
-import org.acegisecurity.GrantedAuthorityImpl;
-import org.acegisecurity.userdetails.User;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
 import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.message.BasicNameValuePair;
 import org.jenkinsci.plugins.cf.uaa.models.AccessToken;
 import org.jenkinsci.plugins.cf.uaa.models.CfGroupDetails;
-import org.jenkinsci.plugins.cf.uaa.models.CfResource;
-import org.jenkinsci.plugins.cf.uaa.models.CfResources;
 import org.jenkinsci.plugins.cf.uaa.models.ClientAccessToken;
-import org.jenkinsci.plugins.cf.uaa.models.Organization;
 import org.jenkinsci.plugins.cf.uaa.models.SearchResults;
+import org.jenkinsci.plugins.cf.uaa.models.TokenKeys;
 import org.jenkinsci.plugins.cf.uaa.models.UaaUserProfile;
 import org.jenkinsci.plugins.cf.uaa.models.UserAccessToken;
 
-import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * Client of the UAA and Cloud Controller APIs.
+ *
+ * Every call has a non-blocking {@code ...Async} variant returning a {@link ListenableFuture}, completed on a
+ * worker thread of {@link CfHttpClient}; the blocking methods wait for it. Independent calls, such as the
+ * profile and the organizations of a user logging in, or the pages of an organization listing, are issued together
+ * without holding a thread each.
+ */
 class CfApiUtil {
 
     /** Used for logging purposes. */
     private static final Logger LOG = Logger.getLogger(CfApiUtil.class.getName());
 
-    private static final Function<String, GrantedAuthority> GROUP_NAME_TO_GRANTED_AUTHORITY
-            = new Function<String, GrantedAuthority>() {
-        public GrantedAuthority apply(String organization) {
-            return new GrantedAuthorityImpl(organization);
-        }
-    };
+    /** The Cloud Controller v2 API caps results-per-page to 100. */
+    static final int DEFAULT_RESULTS_PER_PAGE = 100;
+    static final int DEFAULT_PAGE_FETCH_CONCURRENCY = 4;
+
+    static final long DEFAULT_LOGIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Bulk SCIM searches are split so their URL stays under this length, which proxies commonly accept. */
+    private static final int MAX_SEARCH_URL_LENGTH = 2000;
+
+    /** Length of the URL-encoded {@code " or "} joining two clauses of a bulk SCIM filter. */
+    private static final int OR_LENGTH = 4;
 
     private String clientId;
     private String clientSecret;
@@ -57,68 +79,454 @@ class CfApiUtil {
     private String loginServerEndpoint;
     private String apiServerEndpoint;
 
+    private final CfHttpClient http;
+    private final UserIdCache userIds;
+
+    private final SingleFlight<String, String> userIdLookups = new SingleFlight<String, String>();
+    private final SingleFlight<String, List<String>> organizationLookups = new SingleFlight<String, List<String>>();
+
+    /** Verifies user tokens locally when set, saving the call to /userinfo. */
+    private UaaTokenVerifier tokenVerifier;
+
+    /** Time spent in each step of the logins. */
+    private final Map<LoginPhase, LatencyHistogram> loginPhases = createLoginPhases();
+
+    private long loginTimeoutMillis = DEFAULT_LOGIN_TIMEOUT_MILLIS;
+
+    private int resultsPerPage = DEFAULT_RESULTS_PER_PAGE;
+    private int pageFetchConcurrency = DEFAULT_PAGE_FETCH_CONCURRENCY;
+
+    private final OrganizationBackend v2Organizations = new V2OrganizationBackend();
+    private volatile OrganizationBackend organizationBackend = v2Organizations;
+
+    /** Grants organization and space role authorities besides the organization names when set. */
+    private volatile boolean roleAuthorities;
+
+    private final ClientTokenHolder clientToken = new ClientTokenHolder(
+            new AsyncFunction<RateLimiter.Priority, ClientAccessToken>() {
+                public ListenableFuture<ClientAccessToken> apply(final RateLimiter.Priority priority) {
+                    return getClientAccessTokenAsync(priority);
+                }
+            });
+
     public CfApiUtil(final String clientId, final String clientSecret, final String uaaServerEndpoint,
-                     final String loginServerEndpoint, final String apiServerEndpoint) {
+                     final String loginServerEndpoint, final String apiServerEndpoint, final CfHttpClient http,
+                     final UserIdCache userIds) {
         this.clientId = clientId;
         this.clientSecret = clientSecret;
         this.uaaServerEndpoint = uaaServerEndpoint;
         this.loginServerEndpoint = loginServerEndpoint;
         this.apiServerEndpoint = apiServerEndpoint;
+        this.http = http;
+        this.userIds = userIds;
+    }
+
+    /**
+     * Enables or disables the local verification of user tokens against the UAA token keys.
+     */
+    void setLocalTokenVerification(final boolean enabled) {
+        this.tokenVerifier = enabled ? new UaaTokenVerifier(uaaServerEndpoint,
+                new Callable<ListenableFuture<TokenKeys>>() {
+                    public ListenableFuture<TokenKeys> call() {
+                        return getTokenKeysAsync();
+                    }
+                }) : null;
+    }
+
+    /** Sets how long a login can take at most, once the user is back from the UAA login page. */
+    void setLoginTimeout(final long loginTimeoutMillis) {
+        this.loginTimeoutMillis = loginTimeoutMillis;
+    }
+
+    /** Selects the Cloud Controller API the organization memberships are read from. */
+    void setOrganizationsApi(final OrganizationsApi organizationsApi) {
+        this.organizationBackend = organizationsApi == OrganizationsApi.V3
+                ? new V3OrganizationBackend(http, apiServerEndpoint, v2Organizations)
+                : v2Organizations;
+    }
+
+    /**
+     * Enables or disables the {@code org:role} and {@code org/space:role} authorities. They are read with the client
+     * token, so a login then waits for the profile to know whose roles to read.
+     */
+    void setRoleAuthorities(final boolean enabled) {
+        this.roleAuthorities = enabled;
+    }
+
+    /** Sets how organization listings are paginated. */
+    void setPagination(final int resultsPerPage, final int pageFetchConcurrency) {
+        this.resultsPerPage = resultsPerPage;
+        this.pageFetchConcurrency = pageFetchConcurrency;
     }
 
     public ClientAccessToken getClientAccessToken() {
-        ClientConfig clientConfig = new DefaultClientConfig();
-        Client client = Client.create(clientConfig);
-        client.addFilter(new HTTPBasicAuthFilter(clientId, clientSecret));
-        WebResource webResource = client.resource(uaaServerEndpoint + "/oauth/token");
-        Form form = new Form();
-        form.add("client_id", clientId);
-        form.add("grant_type", "client_credentials");
-        form.add("response_type", "token");
+        return CfFutures.await(getClientAccessTokenAsync());
+    }
 
-        ClientResponse response = webResource
-                .accept("application/json")
-                .type(MediaType.APPLICATION_FORM_URLENCODED_TYPE)
-                .post(ClientResponse.class, form);
+    public ListenableFuture<ClientAccessToken> getClientAccessTokenAsync() {
+        return getClientAccessTokenAsync(RateLimiter.Priority.INTERACTIVE);
+    }
+
+    /** Requests a client token at the priority of the call that needs it. */
+    ListenableFuture<ClientAccessToken> getClientAccessTokenAsync(final RateLimiter.Priority priority) {
+        final List<NameValuePair> form = new ArrayList<NameValuePair>();
+        form.add(new BasicNameValuePair("client_id", clientId));
+        form.add(new BasicNameValuePair("grant_type", "client_credentials"));
+        form.add(new BasicNameValuePair("response_type", "token"));
 
-        return getTokenFromResponse(response, ClientAccessToken.class);
+        return getTokenAsync(uaaServerEndpoint + "/oauth/token", form, ClientAccessToken.class, priority);
     }
 
     public UserAccessToken getAccessTokenByAuthorizationCode(final String authorizationCode, final String redirectUri) {
-        ClientConfig clientConfig = new DefaultClientConfig();
-        Client client = Client.create(clientConfig);
-        client.addFilter(new HTTPBasicAuthFilter(clientId, clientSecret));
-        WebResource webResource = client.resource(loginServerEndpoint + "/oauth/token");
-        Form form = new Form();
-        form.add("client_id", clientId);
-        form.add("redirect_uri", redirectUri);
-        form.add("grant_type", "authorization_code");
-        form.add("code", authorizationCode);
+        return CfFutures.await(getAccessTokenByAuthorizationCodeAsync(authorizationCode, redirectUri));
+    }
+
+    public ListenableFuture<UserAccessToken> getAccessTokenByAuthorizationCodeAsync(final String authorizationCode,
+                                                                                   final String redirectUri) {
+        final List<NameValuePair> form = new ArrayList<NameValuePair>();
+        form.add(new BasicNameValuePair("client_id", clientId));
+        form.add(new BasicNameValuePair("redirect_uri", redirectUri));
+        form.add(new BasicNameValuePair("grant_type", "authorization_code"));
+        form.add(new BasicNameValuePair("code", authorizationCode));
+
+        return getTokenAsync(loginServerEndpoint + "/oauth/token", form, UserAccessToken.class,
+                RateLimiter.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Exchanges a refresh token for a new access token, issued to the same user. Session renewals do not keep the
+     * user waiting, the exchange has the background priority.
+     */
+    public UserAccessToken refreshAccessToken(final String refreshToken) {
+        return CfFutures.await(refreshAccessTokenAsync(refreshToken));
+    }
 
-        ClientResponse response = webResource
-                .accept("application/json")
-                .type(MediaType.APPLICATION_FORM_URLENCODED_TYPE)
-                .post(ClientResponse.class, form);
+    public ListenableFuture<UserAccessToken> refreshAccessTokenAsync(final String refreshToken) {
+        final List<NameValuePair> form = new ArrayList<NameValuePair>();
+        form.add(new BasicNameValuePair("client_id", clientId));
+        form.add(new BasicNameValuePair("grant_type", "refresh_token"));
+        form.add(new BasicNameValuePair("refresh_token", refreshToken));
 
-        return getTokenFromResponse(response, UserAccessToken.class);
+        return getTokenAsync(loginServerEndpoint + "/oauth/token", form, UserAccessToken.class,
+                RateLimiter.Priority.BACKGROUND);
     }
 
     public UserDetails loadUserByUsername(final String userName) {
-        final ClientAccessToken accessToken = getClientAccessToken();
-        final String userId = getUserId(userName, accessToken);
-        LOG.fine("loadUserByUsername user details for " + userName + " -> " + userId);
+        return CfFutures.await(loadUserByUsernameAsync(userName));
+    }
+
+    public ListenableFuture<UserDetails> loadUserByUsernameAsync(final String userName) {
+        return withClientToken(RateLimiter.Priority.BACKGROUND, new AsyncFunction<ClientAccessToken, UserDetails>() {
+            public ListenableFuture<UserDetails> apply(final ClientAccessToken accessToken) {
+                return loadUserByUsernameAsync(userName, accessToken);
+            }
+        });
+    }
+
+    /** Returns the UAA user id of the given user, or {@code null} if there is no such user. */
+    public String getUserId(final String userName) {
+        return CfFutures.await(getUserIdAsync(userName));
+    }
 
-        final List authorities = Lists.newArrayList(
-                new GrantedAuthority[]{SecurityRealm.AUTHENTICATED_AUTHORITY}
-        );
-        authorities.addAll(
-                Lists.transform(
-                        getOrganizations( "/v2/users/" + userId + "/organizations", accessToken),
-                        GROUP_NAME_TO_GRANTED_AUTHORITY)
-        );
+    public ListenableFuture<String> getUserIdAsync(final String userName) {
+        final String known = userIds.get(userName);
+        if (known != null) {
+            return Futures.immediateFuture(known);
+        }
+        return withClientToken(RateLimiter.Priority.BACKGROUND, new AsyncFunction<ClientAccessToken, String>() {
+            public ListenableFuture<String> apply(final ClientAccessToken accessToken) {
+                return lookupUserIdAsync(userName, accessToken);
+            }
+        });
+    }
 
-        return new User(userName, "RANDOM_PASSWORD", true, true, true, true, Iterables.toArray(authorities, GrantedAuthority.class)
-        );
+    /**
+     * Resolves the UAA user ids of many users at once.
+     *
+     * The names missing from the user id cache are joined into {@code userName eq "a" or userName eq "b"} filters,
+     * as many per SCIM search as fit in {@link #MAX_SEARCH_URL_LENGTH}, with at most {@link #pageFetchConcurrency}
+     * searches in flight.
+     *
+     * @return the user ids by user name, the names UAA does not know are left out.
+     */
+    public Map<String, String> getUserIds(final Collection<String> userNames) {
+        return CfFutures.await(getUserIdsAsync(userNames));
+    }
+
+    public ListenableFuture<Map<String, String>> getUserIdsAsync(final Collection<String> userNames) {
+        final Map<String, String> known = new HashMap<String, String>();
+        final List<String> unknown = new ArrayList<String>();
+        for (String userName : new LinkedHashSet<String>(userNames)) {
+            final String userId = userIds.get(userName);
+            if (userId != null) {
+                known.put(userName, userId);
+            } else {
+                unknown.add(userName);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return Futures.immediateFuture(known);
+        }
+        final List<List<String>> batches = searchBatches(unknown);
+        LOG.fine("Resolving " + unknown.size() + " user ids with " + batches.size() + " SCIM searches");
+
+        // each lane runs its share of the batches one after the other, bounding the searches in flight.
+        final int lanes = Math.min(pageFetchConcurrency, batches.size());
+        final List<ListenableFuture<Map<String, String>>> results
+                = new ArrayList<ListenableFuture<Map<String, String>>>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            results.add(searchUserIdsAsync(batches, lane, lanes, new HashMap<String, String>()));
+        }
+        return Futures.transform(Futures.allAsList(results),
+                new Function<List<Map<String, String>>, Map<String, String>>() {
+                    public Map<String, String> apply(final List<Map<String, String>> found) {
+                        for (Map<String, String> each : found) {
+                            known.putAll(each);
+                        }
+                        return known;
+                    }
+                });
+    }
+
+    /** Number of user id and organization lookups that were served by a concurrent identical lookup. */
+    long getCoalescedCount() {
+        return userIdLookups.getCoalescedCount() + organizationLookups.getCoalescedCount();
+    }
+
+    Collection<CircuitBreaker> getCircuitBreakers() {
+        return http.getCircuitBreakers();
+    }
+
+    Collection<EndpointMetrics> getEndpointMetrics() {
+        return http.getMetrics();
+    }
+
+    Collection<RateLimiter> getRateLimiters() {
+        return http.getRateLimiters();
+    }
+
+    LatencyHistogram getLoginPhaseLatency(final LoginPhase phase) {
+        return loginPhases.get(phase);
+    }
+
+    UserIdCache getUserIdCache() {
+        return userIds;
+    }
+
+    /**
+     * Records the time spent in a login phase since the given {@link System#nanoTime()}.
+     *
+     * @return the end of the phase, as a start for the next one.
+     */
+    long recordLoginPhase(final LoginPhase phase, final long startNanos) {
+        final long now = System.nanoTime();
+        loginPhases.get(phase).record(TimeUnit.NANOSECONDS.toMillis(now - startNanos));
+        return now;
+    }
+
+    /** Releases the resources held by this instance. */
+    public void close() {
+        clientToken.close();
+        http.close();
+    }
+
+    /**
+     * Runs a call with the client token. If the cached token was revoked or expired earlier than announced, the
+     * call is retried once with a fresh one. A new token is requested at the priority of the call.
+     */
+    private <T> ListenableFuture<T> withClientToken(final RateLimiter.Priority priority,
+                                                    final AsyncFunction<ClientAccessToken, T> call) {
+        return Futures.transform(clientToken.getAsync(priority), new AsyncFunction<ClientAccessToken, T>() {
+            public ListenableFuture<T> apply(final ClientAccessToken accessToken) throws Exception {
+                return CfFutures.withFallback(call.apply(accessToken), new CfFutures.Fallback<T>() {
+                    public ListenableFuture<T> create(final Throwable failure) {
+                        if (!(failure instanceof CfApiException) || !((CfApiException) failure).isUnauthorized()) {
+                            return Futures.immediateFailedFuture(failure);
+                        }
+                        LOG.fine("Client token rejected, requesting a new one");
+                        clientToken.invalidate(accessToken);
+                        return Futures.transform(clientToken.getAsync(priority), call);
+                    }
+                });
+            }
+        });
+    }
+
+    private ListenableFuture<UserDetails> loadUserByUsernameAsync(final String userName,
+                                                                  final ClientAccessToken accessToken) {
+        final String knownUserId = userIds.get(userName);
+        final ListenableFuture<String> userId = knownUserId != null
+                ? Futures.immediateFuture(knownUserId)
+                : lookupUserIdAsync(userName, accessToken);
+
+        final ListenableFuture<UserDetails> details = Futures.transform(userId,
+                new AsyncFunction<String, UserDetails>() {
+                    public ListenableFuture<UserDetails> apply(final String id) {
+                        if (id == null) {
+                            throw new UsernameNotFoundException("No UAA user named " + userName);
+                        }
+                        LOG.fine("loadUserByUsername user details for " + userName + " -> " + id);
+                        final ListenableFuture<List<String>> authorities = roleAuthorities
+                                ? getUserRolesAsync(id, accessToken, RateLimiter.Priority.BACKGROUND)
+                                : getUserOrganizationsAsync(id, accessToken);
+                        return Futures.transform(authorities,
+                                new Function<List<String>, UserDetails>() {
+                                    public UserDetails apply(final List<String> organizations) {
+                                        return new CfUserDetails(userName, AuthoritySet.of(organizations));
+                                    }
+                                });
+                    }
+                });
+        if (knownUserId == null) {
+            return details;
+        }
+        return CfFutures.withFallback(details, new CfFutures.Fallback<UserDetails>() {
+            public ListenableFuture<UserDetails> create(final Throwable failure) {
+                if (failure instanceof CfApiException && ((CfApiException) failure).getStatus() == 404) {
+                    // the user was deleted and possibly recreated under the same name, look the id up again.
+                    userIds.invalidate(userName);
+                    return loadUserByUsernameAsync(userName, accessToken);
+                }
+                return Futures.immediateFailedFuture(failure);
+            }
+        });
+    }
+
+    /**
+     * Server side part of the login: exchanges the authorization code for a token, then resolves the profile and
+     * the authorities of the user it was issued to.
+     *
+     * The whole login is bounded by the login timeout.
+     */
+    public UsernamePasswordAuthenticationToken authenticate(final String authorizationCode, final String redirectUri) {
+        return login(authorizationCode, redirectUri).getAuthentication();
+    }
+
+    /**
+     * Same as {@link #authenticate(String, String)}, keeping the refresh token UAA granted along with the
+     * authentication so that the login can be renewed.
+     */
+    UaaSession login(final String authorizationCode, final String redirectUri) {
+        final ListenableFuture<UaaSession> login = loginAsync(authorizationCode, redirectUri);
+        try {
+            return CfFutures.await(login, loginTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            login.cancel(true);
+            LOG.warning("Login didn't complete within " + loginTimeoutMillis + "ms");
+            throw new AuthenticationServiceException("Login didn't complete within " + loginTimeoutMillis + "ms", e);
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #authenticate(String, String)}, without the login timeout. The profile and the
+     * organizations only need the token, they are requested concurrently.
+     */
+    public ListenableFuture<UsernamePasswordAuthenticationToken> authenticateAsync(final String authorizationCode,
+                                                                                  final String redirectUri) {
+        return Futures.transform(loginAsync(authorizationCode, redirectUri),
+                new Function<UaaSession, UsernamePasswordAuthenticationToken>() {
+                    public UsernamePasswordAuthenticationToken apply(final UaaSession login) {
+                        return login.getAuthentication();
+                    }
+                });
+    }
+
+    ListenableFuture<UaaSession> loginAsync(final String authorizationCode, final String redirectUri) {
+        final long start = System.nanoTime();
+        return Futures.transform(getAccessTokenByAuthorizationCodeAsync(authorizationCode, redirectUri),
+                new AsyncFunction<UserAccessToken, UaaSession>() {
+                    public ListenableFuture<UaaSession> apply(final UserAccessToken token) {
+                        final long exchanged = recordLoginPhase(LoginPhase.TOKEN_EXCHANGE, start);
+                        if (LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("UAA's UserAccount Token: " + token.getAccessToken());
+                        }
+                        return resolveLogin(token, null, exchanged);
+                    }
+                });
+    }
+
+    /**
+     * Renews a login with its refresh token: requests a new access token, then resolves the profile and the
+     * authorities again, as a login does.
+     */
+    ListenableFuture<UaaSession> renewAsync(final UaaSession previous) {
+        final long start = System.nanoTime();
+        return Futures.transform(refreshAccessTokenAsync(previous.getRefreshToken()),
+                new AsyncFunction<UserAccessToken, UaaSession>() {
+                    public ListenableFuture<UaaSession> apply(final UserAccessToken token) {
+                        final long refreshed = recordLoginPhase(LoginPhase.TOKEN_REFRESH, start);
+                        return resolveLogin(token, previous.getRefreshToken(), refreshed);
+                    }
+                });
+    }
+
+    /**
+     * @param previousRefreshToken the refresh token to keep if UAA did not issue a new one with the token.
+     */
+    private ListenableFuture<UaaSession> resolveLogin(final UserAccessToken token, final String previousRefreshToken,
+                                                      final long exchanged) {
+        final ListenableFuture<UaaUserProfile> profile
+                = timed(LoginPhase.USER_INFO, exchanged, getUserProfileAsync(token));
+        final ListenableFuture<GrantedAuthority[]> authorities = timed(LoginPhase.ORGANIZATIONS, exchanged,
+                roleAuthorities ? getRoleAuthoritiesAsync(profile) : getUserGrantedAuthoritiesAsync(token));
+
+        final ListenableFuture<UaaSession> login = Futures.transform(
+                Futures.<Object>allAsList(profile, authorities),
+                new Function<List<Object>, UaaSession>() {
+                    public UaaSession apply(final List<Object> results) {
+                        final UaaUserProfile userProfile = (UaaUserProfile) results.get(0);
+                        token.setUserId(userProfile.getUserId());
+                        token.setUserName(userProfile.getUserName());
+                        return new UaaSession(
+                                new UsernamePasswordAuthenticationToken(userProfile.getEmail(), "",
+                                        (GrantedAuthority[]) results.get(1)),
+                                token.getRefreshToken() != null ? token.getRefreshToken() : previousRefreshToken,
+                                token.getExpiresIn());
+                    }
+                });
+        login.addListener(new Runnable() {
+            public void run() {
+                // no-op once done, stops the listing when the profile could not be resolved or the login timed out.
+                profile.cancel(true);
+                authorities.cancel(true);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return login;
+    }
+
+    /** The role authorities of the user logging in, read with the client token once the profile is known. */
+    private ListenableFuture<GrantedAuthority[]> getRoleAuthoritiesAsync(
+            final ListenableFuture<UaaUserProfile> profile) {
+        return Futures.transform(profile, new AsyncFunction<UaaUserProfile, GrantedAuthority[]>() {
+            public ListenableFuture<GrantedAuthority[]> apply(final UaaUserProfile userProfile) {
+                return withClientToken(RateLimiter.Priority.INTERACTIVE,
+                        new AsyncFunction<ClientAccessToken, GrantedAuthority[]>() {
+                            public ListenableFuture<GrantedAuthority[]> apply(final ClientAccessToken accessToken) {
+                                return Futures.transform(getUserRolesAsync(userProfile.getUserId(), accessToken,
+                                        RateLimiter.Priority.INTERACTIVE),
+                                        new Function<List<String>, GrantedAuthority[]>() {
+                                            public GrantedAuthority[] apply(final List<String> roles) {
+                                                return toAuthorities(roles);
+                                            }
+                                        });
+                            }
+                        });
+            }
+        });
+    }
+
+    /** Records the time spent in a login phase once the given call succeeds. */
+    private <T> ListenableFuture<T> timed(final LoginPhase phase, final long startNanos,
+                                          final ListenableFuture<T> call) {
+        Futures.addCallback(call, new FutureCallback<T>() {
+            public void onSuccess(final T result) {
+                recordLoginPhase(phase, startNanos);
+            }
+
+            public void onFailure(final Throwable t) {
+            }
+        });
+        return call;
     }
 
     public GroupDetails loadGroupByGroupname(final String groupName) {
@@ -126,139 +534,485 @@ class CfApiUtil {
         return new CfGroupDetails(groupName);
     }
 
+    /**
+     * Returns the profile of the user the token was issued to.
+     *
+     * When local token verification is enabled, the profile is built from the token claims and UAA's
+     * {@code /userinfo} is only called if some of them are missing.
+     */
     public UaaUserProfile getUserProfile(final AccessToken accessToken)  {
-        ClientConfig clientConfig = new DefaultClientConfig();
-        Client client = Client.create(clientConfig);
-        WebResource webResource = client.resource(uaaServerEndpoint + "/userinfo");
-
-        ClientResponse response = webResource
-                .accept("application/json")
-                .header("Authorization", accessToken.getTokenType() + " " + accessToken.getAccessToken())
-                .get(ClientResponse.class);
-
-        if (response.getStatus() != 200) {
-            LOG.warning("Couldn't retrieve user profile - response code: " + response.getStatus());
-            throw new AuthenticationServiceException(
-                    "Couldn't retrieve user profile - response code: " + response.getStatus()
-            );
-        }
-        ObjectMapper mapper = new ObjectMapper();
-        UaaUserProfile userProfile = null;
-        try {
-            userProfile = mapper.readValue(response.getEntityInputStream(), UaaUserProfile.class);
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, "An exception raised while trying get user profile.", e);
-            throw new AuthenticationServiceException("An exception raised while trying get user profile.", e);
+        return CfFutures.await(getUserProfileAsync(accessToken));
+    }
+
+    public ListenableFuture<UaaUserProfile> getUserProfileAsync(final AccessToken accessToken) {
+        final UaaTokenVerifier verifier = tokenVerifier;
+        if (verifier == null) {
+            return fetchUserProfileAsync(accessToken);
         }
-        return userProfile;
+        return Futures.transform(verifier.getUserProfileAsync(accessToken.getAccessToken()),
+                new AsyncFunction<UaaUserProfile, UaaUserProfile>() {
+                    public ListenableFuture<UaaUserProfile> apply(final UaaUserProfile profile) {
+                        return profile != null ? Futures.immediateFuture(profile) : fetchUserProfileAsync(accessToken);
+                    }
+                });
+    }
+
+    private ListenableFuture<UaaUserProfile> fetchUserProfileAsync(final AccessToken accessToken) {
+        return CfFutures.wrapFailures(
+                http.getAsync(CfEndpoint.USERINFO, RateLimiter.Priority.INTERACTIVE, uaaServerEndpoint + "/userinfo",
+                        authorization(accessToken),
+                        new JsonResponseHandler<UaaUserProfile>("Couldn't retrieve user profile") {
+                            @Override
+                            protected UaaUserProfile read(final InputStream in) throws IOException {
+                                return CfJson.USER_PROFILE.readValue(in);
+                            }
+                        }),
+                LOG, "An exception raised while trying get user profile.");
+    }
+
+    /** Lists the public keys UAA signs its tokens with. */
+    public TokenKeys getTokenKeys() {
+        return CfFutures.await(getTokenKeysAsync());
+    }
+
+    public ListenableFuture<TokenKeys> getTokenKeysAsync() {
+        return CfFutures.wrapFailures(
+                http.getAsync(CfEndpoint.TOKEN_KEYS, RateLimiter.Priority.INTERACTIVE,
+                        uaaServerEndpoint + "/token_keys",
+                        null,
+                        new JsonResponseHandler<TokenKeys>("Couldn't retrieve the token keys") {
+                            @Override
+                            protected TokenKeys read(final InputStream in) throws IOException {
+                                return CfJson.TOKEN_KEYS.readValue(in);
+                            }
+                        }),
+                LOG, "An exception raised while trying get the token keys.");
     }
 
     public GrantedAuthority[] getUserGrantedAuthorities(final AccessToken accessToken) {
-        final List authorities = Lists.newArrayList(
-                new GrantedAuthority[]{SecurityRealm.AUTHENTICATED_AUTHORITY}
-        );
-        final List<String> groups = getOrganizations("/v2/organizations", accessToken);
-        authorities.addAll(Lists.transform(groups, GROUP_NAME_TO_GRANTED_AUTHORITY));
-        return Iterables.toArray(authorities, GrantedAuthority.class);
-    }
-
-    private String getUserId(final String userName, final ClientAccessToken clientToken) {
-        ClientConfig clientConfig = new DefaultClientConfig();
-        Client client = Client.create(clientConfig);
-        WebResource webResource = client.resource(uaaServerEndpoint + "/Users/")
-                .queryParam("attributes", "id")
-                .queryParam("filter", "userName eq \"" + userName + "\"");
-
-        ClientResponse response = webResource.accept("application/json")
-                .header("Authorization", clientToken.getTokenType() + " " + clientToken.getAccessToken())
-                .get(ClientResponse.class);
-
-        if (response.getStatus() != 200) {
-            LOG.warning("Couldn't retrieve user id - response code: " + response.getStatus());
-            throw new AuthenticationServiceException(
-                    "Couldn't retrieve user id - response code: " + response.getStatus()
-            );
+        return CfFutures.await(getUserGrantedAuthoritiesAsync(accessToken));
+    }
+
+    public ListenableFuture<GrantedAuthority[]> getUserGrantedAuthoritiesAsync(final AccessToken accessToken) {
+        return Futures.transform(getCurrentUserOrganizationsAsync(accessToken),
+                new Function<List<String>, GrantedAuthority[]>() {
+                    public GrantedAuthority[] apply(final List<String> organizations) {
+                        return toAuthorities(organizations);
+                    }
+                });
+    }
+
+    /** The authenticated authority and the given ones, interned by {@link AuthorityDictionary}. */
+    private static GrantedAuthority[] toAuthorities(final List<String> organizations) {
+        return AuthoritySet.of(organizations).toArray();
+    }
+
+    /**
+     * Looks the user id up, sharing the SCIM search with the concurrent lookups of the same user, and remembers it.
+     * The returned future holds {@code null} if there is no such user.
+     */
+    private ListenableFuture<String> lookupUserIdAsync(final String userName, final ClientAccessToken clientToken) {
+        final ListenableFuture<String> userId = userIdLookups.executeAsync(userName,
+                new Callable<ListenableFuture<String>>() {
+                    public ListenableFuture<String> call() {
+                        return fetchUserIdAsync(userName, clientToken);
+                    }
+                });
+        return Futures.transform(userId, new Function<String, String>() {
+            public String apply(final String id) {
+                if (id != null) {
+                    userIds.put(userName, id);
+                }
+                return id;
+            }
+        });
+    }
+
+    private ListenableFuture<String> fetchUserIdAsync(final String userName, final ClientAccessToken clientToken) {
+        return CfFutures.wrapFailures(CfFutures.start(new Callable<ListenableFuture<String>>() {
+            public ListenableFuture<String> call() throws URISyntaxException {
+                final String url = new URIBuilder(uaaServerEndpoint + "/Users/")
+                        .addParameter("attributes", "id")
+                        .addParameter("filter", userNameFilter(userName))
+                        .build().toString();
+                return http.getAsync(CfEndpoint.SCIM, RateLimiter.Priority.BACKGROUND, url,
+                        authorization(clientToken),
+                        new JsonResponseHandler<String>("Couldn't retrieve user id") {
+                            @Override
+                            protected String read(final InputStream in) throws IOException {
+                                final SearchResults<Map<String, Object>> results = CfJson.USER_SEARCH.readValue(in);
+                                if (results.getTotalResults() == 1) {
+                                    return (String) results.getResources().get(0).get("id");
+                                }
+                                return null;
+                            }
+                        });
+            }
+        }), LOG, "An exception raised while trying get user id.");
+    }
+
+    /** Splits the user names in batches whose SCIM search URL fits in {@link #MAX_SEARCH_URL_LENGTH}. */
+    private List<List<String>> searchBatches(final List<String> userNames) {
+        final int budget = MAX_SEARCH_URL_LENGTH - encodedLength(uaaServerEndpoint
+                + "/Users/?attributes=id,userName&startIndex=" + userNames.size() + "&count=" + userNames.size()
+                + "&filter=");
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        List<String> batch = new ArrayList<String>();
+        int length = 0;
+        for (String userName : userNames) {
+            final int clause = encodedLength(userNameFilter(userName));
+            if (!batch.isEmpty() && length + OR_LENGTH + clause > budget) {
+                batches.add(batch);
+                batch = new ArrayList<String>();
+                length = 0;
+            }
+            length += batch.isEmpty() ? clause : OR_LENGTH + clause;
+            batch.add(userName);
+        }
+        batches.add(batch);
+        return batches;
+    }
+
+    /** Runs the searches of every {@code step}th batch from {@code index}, one after the other. */
+    private ListenableFuture<Map<String, String>> searchUserIdsAsync(final List<List<String>> batches,
+                                                                     final int index, final int step,
+                                                                     final Map<String, String> found) {
+        if (index >= batches.size()) {
+            return Futures.immediateFuture(found);
         }
+        final ListenableFuture<Map<String, String>> batch = withClientToken(RateLimiter.Priority.BACKGROUND,
+                new AsyncFunction<ClientAccessToken, Map<String, String>>() {
+                    public ListenableFuture<Map<String, String>> apply(final ClientAccessToken accessToken) {
+                        return searchUserIdsAsync(batches.get(index), 1, accessToken, found);
+                    }
+                });
+        return Futures.transform(batch, new AsyncFunction<Map<String, String>, Map<String, String>>() {
+            public ListenableFuture<Map<String, String>> apply(final Map<String, String> ignored) {
+                return searchUserIdsAsync(batches, index + step, step, found);
+            }
+        });
+    }
+
+    /**
+     * Searches the ids of a batch of users from the given SCIM start index, following the pagination until all the
+     * results are read. The ids found are added to the map and the user id cache.
+     */
+    private ListenableFuture<Map<String, String>> searchUserIdsAsync(final List<String> userNames,
+                                                                     final int startIndex,
+                                                                     final ClientAccessToken clientToken,
+                                                                     final Map<String, String> found) {
+        final ListenableFuture<SearchResults<Map<String, Object>>> page = CfFutures.wrapFailures(
+                CfFutures.start(new Callable<ListenableFuture<SearchResults<Map<String, Object>>>>() {
+                    public ListenableFuture<SearchResults<Map<String, Object>>> call() throws URISyntaxException {
+                        final StringBuilder filter = new StringBuilder();
+                        for (String userName : userNames) {
+                            if (filter.length() > 0) {
+                                filter.append(" or ");
+                            }
+                            filter.append(userNameFilter(userName));
+                        }
+                        final String url = new URIBuilder(uaaServerEndpoint + "/Users/")
+                                .addParameter("attributes", "id,userName")
+                                .addParameter("startIndex", String.valueOf(startIndex))
+                                .addParameter("count", String.valueOf(userNames.size()))
+                                .addParameter("filter", filter.toString())
+                                .build().toString();
+                        return http.getAsync(CfEndpoint.SCIM, RateLimiter.Priority.BACKGROUND, url,
+                                authorization(clientToken),
+                                new JsonResponseHandler<SearchResults<Map<String, Object>>>(
+                                        "Couldn't retrieve user ids") {
+                                    @Override
+                                    protected SearchResults<Map<String, Object>> read(final InputStream in)
+                                            throws IOException {
+                                        return CfJson.USER_SEARCH.readValue(in);
+                                    }
+                                });
+                    }
+                }), LOG, "An exception raised while trying get user ids.");
+
+        return Futures.transform(page,
+                new AsyncFunction<SearchResults<Map<String, Object>>, Map<String, String>>() {
+                    public ListenableFuture<Map<String, String>> apply(
+                            final SearchResults<Map<String, Object>> results) {
+                        // UAA matches user names regardless of case, map them back to the names asked for.
+                        final Map<String, String> requested = new TreeMap<String, String>(
+                                String.CASE_INSENSITIVE_ORDER);
+                        for (String userName : userNames) {
+                            requested.put(userName, userName);
+                        }
+                        for (Map<String, Object> user : results.getResources()) {
+                            final Object userName = user.get("userName");
+                            final Object userId = user.get("id");
+                            if (userName instanceof String && userId instanceof String
+                                    && requested.containsKey(userName)) {
+                                found.put(requested.get(userName), (String) userId);
+                                userIds.put(requested.get(userName), (String) userId);
+                            }
+                        }
+                        final int next = startIndex + results.getResources().size();
+                        if (results.getResources().isEmpty() || next > results.getTotalResults()) {
+                            return Futures.immediateFuture(found);
+                        }
+                        return searchUserIdsAsync(userNames, next, clientToken, found);
+                    }
+                });
+    }
+
+    /** The SCIM filter matching the given user name, with the quotes and backslashes escaped. */
+    private static String userNameFilter(final String userName) {
+        return "userName eq \"" + userName.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
 
-        ObjectMapper mapper = new ObjectMapper();
-        String userId = null;
+    private static int encodedLength(final String value) {
         try {
-            SearchResults<Map<String, Object>> results = mapper.readValue(response.getEntityInputStream(),
-                    new TypeReference<SearchResults<Map<String, Object>>>() {}
-            );
-            if (results.getTotalResults() == 1) {
-                userId = (String) results.getResources().get(0).get("id");
+            return URLEncoder.encode(value, "UTF-8").length();
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> ListenableFuture<T> getTokenAsync(final String url, final List<NameValuePair> form,
+                                                  final Class<T> valueType, final RateLimiter.Priority priority) {
+        return CfFutures.wrapFailures(
+                http.postFormAsync(CfEndpoint.TOKEN, priority, url, clientId, clientSecret, form,
+                        new JsonResponseHandler<T>("Couldn't retrieve the access token") {
+                            @Override
+                            protected T read(final InputStream in) throws IOException {
+                                return CfJson.tokenReader(valueType).readValue(in);
+                            }
+                        }),
+                LOG, "An exception raised while trying get user token.");
+    }
+
+
+    /** Lists the active organizations of a user, sharing the listing with the concurrent lookups of that user. */
+    private ListenableFuture<List<String>> getUserOrganizationsAsync(final String userId,
+                                                                     final AccessToken accessToken) {
+        return organizationLookups.executeAsync(accessToken.getAccessToken() + " users/" + userId,
+                new Callable<ListenableFuture<List<String>>>() {
+                    public ListenableFuture<List<String>> call() {
+                        return organizationBackend.getUserOrganizations(userId, accessToken);
+                    }
+                });
+    }
+
+    /**
+     * Lists the organizations and roles of a user, sharing the listing with the concurrent lookups of that user at
+     * the same priority: a login does not wait for a background lookup.
+     */
+    private ListenableFuture<List<String>> getUserRolesAsync(final String userId, final AccessToken accessToken,
+                                                             final RateLimiter.Priority priority) {
+        return organizationLookups.executeAsync(accessToken.getAccessToken() + " " + priority + " roles/" + userId,
+                new Callable<ListenableFuture<List<String>>>() {
+                    public ListenableFuture<List<String>> call() {
+                        return organizationBackend.getUserRoles(userId, accessToken, priority);
+                    }
+                });
+    }
+
+    /** Lists the active organizations of the user the token was issued to. */
+    private ListenableFuture<List<String>> getCurrentUserOrganizationsAsync(final AccessToken accessToken) {
+        // the listing depends on the token, so it is part of the key.
+        return organizationLookups.executeAsync(accessToken.getAccessToken() + " current",
+                new Callable<ListenableFuture<List<String>>>() {
+                    public ListenableFuture<List<String>> call() {
+                        return organizationBackend.getCurrentUserOrganizations(accessToken);
+                    }
+                });
+    }
+
+    /**
+     * Lists the names of the active organizations found at the given Cloud Controller v2 path.
+     *
+     * The first page tells how many pages there are, the remaining ones are then requested with at most
+     * {@link #pageFetchConcurrency} requests in flight for this call. The names are listed in page order.
+     */
+    private ListenableFuture<List<String>> fetchOrganizationsAsync(final String path, final AccessToken accessToken,
+                                                                   final RateLimiter.Priority priority) {
+        return Futures.transform(getOrganizationPageAsync(path, 1, accessToken, priority),
+                new AsyncFunction<CfJson.OrganizationPage, List<String>>() {
+                    public ListenableFuture<List<String>> apply(final CfJson.OrganizationPage first) {
+                        if (first.getTotalPages() <= 1) {
+                            return Futures.immediateFuture(first.getActiveNames());
+                        }
+                        LOG.fine("Fetching " + first.getTotalPages() + " pages of organizations from " + path);
+                        return new PageFetch(path, accessToken, priority, first).start();
+                    }
+                });
+    }
+
+    private ListenableFuture<CfJson.OrganizationPage> getOrganizationPageAsync(final String path, final int page,
+                                                                              final AccessToken accessToken,
+                                                                              final RateLimiter.Priority priority) {
+        return CfFutures.wrapFailures(CfFutures.start(new Callable<ListenableFuture<CfJson.OrganizationPage>>() {
+            public ListenableFuture<CfJson.OrganizationPage> call() throws URISyntaxException {
+                final String url = new URIBuilder(apiServerEndpoint + path)
+                        .addParameter("results-per-page", String.valueOf(resultsPerPage))
+                        .addParameter("page", String.valueOf(page))
+                        .build().toString();
+                return http.getAsync(CfEndpoint.ORGANIZATIONS, priority, url, authorization(accessToken),
+                        new JsonResponseHandler<CfJson.OrganizationPage>("Couldn't retrieve user's organizations") {
+                            @Override
+                            protected CfJson.OrganizationPage read(final InputStream in) throws IOException {
+                                return CfJson.readOrganizations(in);
+                            }
+                        });
             }
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, "An exception raised while trying get user id.", e);
-            throw new AuthenticationServiceException("An exception raised while trying get user id.", e);
+        }), LOG, "An exception raised while trying get user's organizations.");
+    }
+
+    /** Lists organization memberships with the Cloud Controller v2 API. */
+    private final class V2OrganizationBackend implements OrganizationBackend {
+
+        public ListenableFuture<List<String>> getUserOrganizations(final String userId,
+                                                                   final AccessToken accessToken) {
+            return fetchOrganizationsAsync("/v2/users/" + userId + "/organizations", accessToken,
+                    RateLimiter.Priority.BACKGROUND);
+        }
+
+        public ListenableFuture<List<String>> getCurrentUserOrganizations(final AccessToken accessToken) {
+            return fetchOrganizationsAsync("/v2/organizations", accessToken, RateLimiter.Priority.INTERACTIVE);
+        }
+
+        /** Reads the user summary, which lists the organizations and spaces of every role in one response. */
+        public ListenableFuture<List<String>> getUserRoles(final String userId, final AccessToken accessToken,
+                                                           final RateLimiter.Priority priority) {
+            final ListenableFuture<UserRoles> roles = http.getAsync(CfEndpoint.ORGANIZATIONS, priority,
+                    apiServerEndpoint + "/v2/users/" + userId + "/summary", authorization(accessToken),
+                    new JsonResponseHandler<UserRoles>("Couldn't retrieve user's roles") {
+                        @Override
+                        protected UserRoles read(final InputStream in) throws IOException {
+                            return CfJson.readUserSummary(in);
+                        }
+                    });
+            return CfFutures.wrapFailures(Futures.transform(roles, new Function<UserRoles, List<String>>() {
+                public List<String> apply(final UserRoles all) {
+                    return all.getAuthorities();
+                }
+            }), LOG, "An exception raised while trying get user's roles.");
         }
-        return userId;
     }
 
-    private <T> T getTokenFromResponse(final ClientResponse response, Class<T> valueType) {
-        if (response.getStatus() != 200) {
-            LOG.warning("Couldn't retrieve the access token - response code: " + response.getStatus());
-            throw new AuthenticationServiceException(
-                    "Couldn't retrieve the access token - response code: " + response.getStatus()
-            );
+    /**
+     * Fetches the second and following pages of an organization listing, keeping at most
+     * {@link #pageFetchConcurrency} requests in flight. A page is requested each time one is received; the first
+     * failure fails the listing and cancels the pages still pending.
+     */
+    private final class PageFetch {
+
+        private final String path;
+        private final AccessToken accessToken;
+        private final RateLimiter.Priority priority;
+        private final CfJson.OrganizationPage[] pages;
+        private final List<ListenableFuture<CfJson.OrganizationPage>> pending
+                = new ArrayList<ListenableFuture<CfJson.OrganizationPage>>();
+        private final SettableFuture<List<String>> result = SettableFuture.create();
+        private int nextPage = 2;
+        private int received = 1;
+
+        PageFetch(final String path, final AccessToken accessToken, final RateLimiter.Priority priority,
+                  final CfJson.OrganizationPage first) {
+            this.path = path;
+            this.accessToken = accessToken;
+            this.priority = priority;
+            this.pages = new CfJson.OrganizationPage[first.getTotalPages()];
+            this.pages[0] = first;
         }
-        ObjectMapper mapper = new ObjectMapper();
-        T token = null;
-        try {
-            token = mapper.readValue(response.getEntityInputStream(), valueType);
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, "An exception raised while trying get user token.", e);
-            throw new AuthenticationServiceException("An exception raised while trying get user token.", e);
+
+        synchronized ListenableFuture<List<String>> start() {
+            result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled()) {
+                        cancelPending();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            fill();
+            return result;
         }
-        return token;
+
+        private synchronized void fill() {
+            while (nextPage <= pages.length && pending.size() < pageFetchConcurrency && !result.isDone()) {
+                final int page = nextPage++;
+                final ListenableFuture<CfJson.OrganizationPage> future
+                        = getOrganizationPageAsync(path, page, accessToken, priority);
+                pending.add(future);
+                Futures.addCallback(future, new FutureCallback<CfJson.OrganizationPage>() {
+                    public void onSuccess(final CfJson.OrganizationPage organizations) {
+                        received(page, future, organizations);
+                    }
+
+                    public void onFailure(final Throwable t) {
+                        if (result.setException(t)) {
+                            cancelPending();
+                        }
+                    }
+                });
+            }
+        }
+
+        private synchronized void received(final int page, final ListenableFuture<CfJson.OrganizationPage> future,
+                                           final CfJson.OrganizationPage organizations) {
+            pending.remove(future);
+            pages[page - 1] = organizations;
+            if (++received < pages.length) {
+                fill();
+                return;
+            }
+            final Set<String> names = new LinkedHashSet<String>();
+            for (CfJson.OrganizationPage each : pages) {
+                names.addAll(each.getActiveNames());
+            }
+            result.set(new ArrayList<String>(names));
+        }
+
+        private synchronized void cancelPending() {
+            for (ListenableFuture<CfJson.OrganizationPage> future
+                    : new ArrayList<ListenableFuture<CfJson.OrganizationPage>>(pending)) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+    }
+
+    static String authorization(final AccessToken accessToken) {
+        return accessToken.getTokenType() + " " + accessToken.getAccessToken();
     }
 
+    private static Map<LoginPhase, LatencyHistogram> createLoginPhases() {
+        final Map<LoginPhase, LatencyHistogram> phases = new EnumMap<LoginPhase, LatencyHistogram>(LoginPhase.class);
+        for (LoginPhase phase : LoginPhase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+        return phases;
+    }
 
-    private List<String> getOrganizations(final String path, final AccessToken accessToken) {
-        final List<String> caOrgNames = new ArrayList<String>();
+    /**
+     * Checks the response status and reads the JSON body, any other status than 200 raises a {@link CfApiException}.
+     */
+    abstract static class JsonResponseHandler<T> implements ResponseHandler<T> {
 
-        ClientConfig clientConfig = new DefaultClientConfig();
-        Client client = Client.create(clientConfig);
-        WebResource webResource = client.resource(apiServerEndpoint + path);
-        ClientResponse response = webResource
-                .accept("application/json")
-                .header("Authorization", accessToken.getTokenType() + " " + accessToken.getAccessToken())
-                .get(ClientResponse.class);
+        private final String errorMessage;
 
-        if (response.getStatus() != 200) {
-            LOG.warning("Couldn't retrieve user's organizations - response code: " + response.getStatus());
-            throw new AuthenticationServiceException(
-                    "Couldn't retrieve user's organizations - response code: " + response.getStatus()
-            );
+        JsonResponseHandler(final String errorMessage) {
+            this.errorMessage = errorMessage;
         }
 
-        ObjectMapper mapper = new ObjectMapper();
-        CfResources<Organization> result = null;
-        try {
-            result = mapper.readValue(response.getEntityInputStream(),
-                    new TypeReference<CfResources<Organization>>() {}
-            );
-
-            int totalPages = result.getTotalPages();
-            if(totalPages > 1) {
-                LOG.log(Level.WARNING, "More than 1 ("
-                                + totalPages
-                                + ") pages of organizations for users - only process the first page"
-                );
+        public T handleResponse(final HttpResponse response) throws IOException {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                LOG.warning(errorMessage + " - response code: " + status);
+                throw new CfApiException(errorMessage, status);
             }
-            List<CfResource<Organization>> caOrgs = result.getResources();
-            for (CfResource<Organization> organization : caOrgs) {
-                if ("active".equals(organization.getEntity().getStatus())) {
-                    caOrgNames.add(organization.getEntity().getName());
-                }
+            final InputStream in = response.getEntity().getContent();
+            try {
+                return read(in);
+            } finally {
+                in.close();
             }
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, "An exception raised while trying get user's organizations.", e);
-            throw new AuthenticationServiceException("An exception raised while trying get user's organizations.", e);
         }
 
-        return caOrgNames;
+        protected abstract T read(InputStream in) throws IOException;
     }
 
 }
@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * The groups of UAA and Cloud Controller endpoints called by {@link CfApiUtil}.
+ *
+ * Each group gets its own circuit breaker, since a slow SCIM search says nothing about the token endpoint. Rate
+ * limits are enforced per server though, so the groups of a server share its {@link RateLimiter}.
+ */
+enum CfEndpoint {
+
+    /** {@code /oauth/token} on UAA and the login server. */
+    TOKEN(Upstream.UAA),
+
+    /** {@code /Users} on UAA. */
+    SCIM(Upstream.UAA),
+
+    /** {@code /userinfo} on UAA. */
+    USERINFO(Upstream.UAA),
+
+    /** {@code /token_keys} on UAA, read when a token is signed with a key not seen yet. */
+    TOKEN_KEYS(Upstream.UAA),
+
+    /** Organization listings on the Cloud Controller. */
+    ORGANIZATIONS(Upstream.CLOUD_CONTROLLER);
+
+    /** The servers called. */
+    enum Upstream { UAA, CLOUD_CONTROLLER }
+
+    private final Upstream upstream;
+
+    CfEndpoint(final Upstream upstream) {
+        this.upstream = upstream;
+    }
+
+    Upstream getUpstream() {
+        return upstream;
+    }
+}
@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.acegisecurity.AuthenticationServiceException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers for the {@link ListenableFuture}s the asynchronous API of {@link CfApiUtil} returns, filling in what
+ * the Guava version bundled with Jenkins lacks.
+ *
+ * Listeners run on the thread completing the future, usually a worker thread of {@link CfHttpClient}, so nothing
+ * chained to these futures may block.
+ */
+final class CfFutures {
+
+    private CfFutures() {
+    }
+
+    /**
+     * Replaces the failure of a future with another future, like Guava's later {@code FutureFallback}.
+     */
+    interface Fallback<V> {
+
+        ListenableFuture<V> create(Throwable failure) throws Exception;
+    }
+
+    /**
+     * Waits for a future and returns its value. Runtime exceptions and errors it failed with are rethrown as they
+     * are, other failures are wrapped in an {@link AuthenticationServiceException}.
+     */
+    static <V> V await(final Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new AuthenticationServiceException("Interrupted while waiting for UAA or the Cloud Controller.", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #await(Future)}, giving up after the given time.
+     */
+    static <V> V await(final Future<V> future, final long timeout, final TimeUnit unit) throws TimeoutException {
+        try {
+            return future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new AuthenticationServiceException("Interrupted while waiting for UAA or the Cloud Controller.", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /** Starts an asynchronous call, an exception thrown while starting it fails the returned future. */
+    static <V> ListenableFuture<V> start(final Callable<ListenableFuture<V>> call) {
+        try {
+            return call.call();
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /** Completes the target the same way as the source, once the source completes. */
+    static <V> void forward(final ListenableFuture<V> source, final SettableFuture<V> target) {
+        source.addListener(new Runnable() {
+            public void run() {
+                try {
+                    target.set(Uninterruptibles.getUninterruptibly(source));
+                } catch (ExecutionException e) {
+                    target.setException(e.getCause());
+                } catch (CancellationException e) {
+                    target.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * A view of a future shared by several callers: cancelling the view does not cancel the shared future.
+     */
+    static <V> ListenableFuture<V> shared(final ListenableFuture<V> source) {
+        final SettableFuture<V> view = SettableFuture.create();
+        forward(source, view);
+        return view;
+    }
+
+    /**
+     * Returns a future completing like the input, unless it fails, in which case it completes like the future
+     * created by the fallback. Cancelling the returned future cancels the input.
+     */
+    static <V> ListenableFuture<V> withFallback(final ListenableFuture<V> input, final Fallback<V> fallback) {
+        final SettableFuture<V> result = SettableFuture.create();
+        input.addListener(new Runnable() {
+            public void run() {
+                try {
+                    result.set(Uninterruptibles.getUninterruptibly(input));
+                } catch (CancellationException e) {
+                    result.cancel(false);
+                } catch (ExecutionException e) {
+                    ListenableFuture<V> replacement;
+                    try {
+                        replacement = fallback.create(e.getCause());
+                    } catch (Exception fallbackFailure) {
+                        replacement = Futures.immediateFailedFuture(fallbackFailure);
+                    }
+                    forward(replacement, result);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled()) {
+                    input.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /**
+     * Logs the failures of a future and wraps them in an {@link AuthenticationServiceException}, unless they
+     * already are one, as the blocking API always did.
+     */
+    static <V> ListenableFuture<V> wrapFailures(final ListenableFuture<V> future, final Logger log,
+                                                final String message) {
+        return withFallback(future, new Fallback<V>() {
+            public ListenableFuture<V> create(final Throwable failure) {
+                if (failure instanceof AuthenticationServiceException) {
+                    return Futures.immediateFailedFuture(failure);
+                }
+                log.log(Level.SEVERE, message, failure);
+                return Futures.immediateFailedFuture(new AuthenticationServiceException(message, failure));
+            }
+        });
+    }
+
+    private static RuntimeException unwrap(final Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new AuthenticationServiceException(cause.getMessage(), cause);
+    }
+}
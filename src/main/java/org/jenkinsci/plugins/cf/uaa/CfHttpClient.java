@@ -0,0 +1,724 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP transport shared by all the calls made to UAA and the Cloud Controller.
+ *
+ * Connections are pooled and kept alive between requests, so only the first call to a host pays for
+ * the TCP connect and TLS handshake. Requests are non-blocking: a couple of I/O dispatcher threads serve all the
+ * calls in flight, and each call returns a future. Response bodies stream from the dispatchers to the handlers,
+ * which parse them on a bounded pool of worker threads; the futures are completed there too, so the dispatchers
+ * never run a handler or anything chained to a future.
+ *
+ * The latency, status, and response size of every call are recorded per endpoint group. Calls go through the
+ * {@link RateLimiter} of their server, which honours the {@code Retry-After} header of the 429 and 503 answers.
+ * GETs are retried and hedged according to the {@link RetryPolicy}, each attempt going through the rate limiter
+ * and the circuit breaker like any other call.
+ */
+class CfHttpClient {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(CfHttpClient.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int DEFAULT_BREAKER_FAILURE_RATE = 50;
+    static final long DEFAULT_BREAKER_SLOW_CALL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long DEFAULT_BREAKER_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private static final int SOCKET_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    /** Number of I/O dispatcher threads, they only move bytes so a couple of them serve many calls. */
+    private static final int IO_THREADS = 2;
+
+    /**
+     * Number of threads running the response handlers and the continuations of the calls. A handler waits for its
+     * body to stream in, so there are more of them than cores.
+     */
+    private static final int WORKER_THREADS = 8;
+
+    /** A response body streams through a buffer of this size, its connection is paused while the buffer is full. */
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final ExecutorService workers;
+    private final ScheduledFuture<?> evictor;
+
+    private final Map<CfEndpoint, EndpointMetrics> metrics = createMetrics();
+
+    private final Map<CfEndpoint.Upstream, RateLimiter> limiters = createLimiters();
+
+    private volatile Map<CfEndpoint, CircuitBreaker> breakers = createBreakers(
+            DEFAULT_BREAKER_FAILURE_RATE, DEFAULT_BREAKER_SLOW_CALL_MILLIS, DEFAULT_BREAKER_OPEN_MILLIS);
+
+    private volatile RetryPolicy retryPolicy = new RetryPolicy(
+            RetryPolicy.DEFAULT_MAX_RETRIES, false, RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT);
+
+    CfHttpClient(final int maxConnections, final int maxConnectionsPerRoute, final int idleTimeoutSeconds) {
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(
+                    IOReactorConfig.custom()
+                            .setIoThreadCount(IO_THREADS)
+                            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                            .setSoTimeout(SOCKET_TIMEOUT_MILLIS)
+                            .build(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "CfHttpClient.io")));
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Failed to start the HTTP I/O reactor", e);
+        }
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                        .setConnectionRequestTimeout(CONNECT_TIMEOUT_MILLIS)
+                        .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                        .build())
+                .disableCookieManagement()
+                .build();
+        httpClient.start();
+        workers = Executors.newFixedThreadPool(WORKER_THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "CfHttpClient.worker"));
+
+        evictor = Timer.get().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS);
+            }
+        }, idleTimeoutSeconds, idleTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Replaces the circuit breakers guarding each endpoint group. */
+    void configureCircuitBreakers(final int failureRatePercent, final long slowCallMillis, final long openMillis) {
+        breakers = createBreakers(failureRatePercent, slowCallMillis, openMillis);
+    }
+
+    Collection<CircuitBreaker> getCircuitBreakers() {
+        return breakers.values();
+    }
+
+    Collection<EndpointMetrics> getMetrics() {
+        return metrics.values();
+    }
+
+    /** Limits the rate of the calls to each server, 0 to only slow down on {@code Retry-After} answers. */
+    void configureRateLimits(final double uaaCallsPerSecond, final double cloudControllerCallsPerSecond) {
+        limiters.get(CfEndpoint.Upstream.UAA).setPermitsPerSecond(uaaCallsPerSecond);
+        limiters.get(CfEndpoint.Upstream.CLOUD_CONTROLLER).setPermitsPerSecond(cloudControllerCallsPerSecond);
+    }
+
+    Collection<RateLimiter> getRateLimiters() {
+        return limiters.values();
+    }
+
+    /** Replaces the policy retrying failed GETs and hedging the slow ones. */
+    void configureRetries(final int maxRetries, final boolean hedging, final int hedgeBudgetPercent) {
+        retryPolicy = new RetryPolicy(maxRetries, hedging, hedgeBudgetPercent);
+    }
+
+    /**
+     * GET the given url with an {@code Authorization} header, unless it is {@code null}, and hand the response to
+     * the handler. The handler runs on a worker thread, once per attempt: it must not change any state shared with
+     * the other attempts, only the value it returns for the attempt that wins is used.
+     */
+    <T> ListenableFuture<T> getAsync(final CfEndpoint endpoint, final RateLimiter.Priority priority, final String url,
+                                     final String authorization, final ResponseHandler<T> handler) {
+        return new GetCall<T>(endpoint, priority, url, authorization, handler, retryPolicy).start();
+    }
+
+    /**
+     * POST a form to the given url using HTTP basic authentication and hand the response to the handler. The
+     * handler runs on a worker thread.
+     */
+    <T> ListenableFuture<T> postFormAsync(final CfEndpoint endpoint, final RateLimiter.Priority priority,
+                                          final String url, final String user, final String password,
+                                          final List<NameValuePair> form, final ResponseHandler<T> handler) {
+        final HttpPost post = new HttpPost(url);
+        post.setHeader("Authorization", basic(user, password));
+        post.setEntity(new UrlEncodedFormEntity(form, UTF8));
+        return execute(endpoint, priority, post, handler);
+    }
+
+    /**
+     * Closes the pooled connections and stops the I/O dispatchers, the workers and the idle connection evictor. The
+     * calls still waiting for the rate limiters are cancelled.
+     */
+    void close() {
+        for (RateLimiter limiter : limiters.values()) {
+            limiter.close();
+        }
+        evictor.cancel(false);
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Failed to close the HTTP client", e);
+        }
+        workers.shutdownNow();
+    }
+
+    /** Sends the request once the rate limiter of its server lets it through. */
+    private <T> ListenableFuture<T> execute(final CfEndpoint endpoint, final RateLimiter.Priority priority,
+                                            final HttpUriRequest request, final ResponseHandler<T> handler) {
+        final RateLimiter limiter = limiters.get(endpoint.getUpstream());
+        return limiter.submit(priority, new Callable<ListenableFuture<T>>() {
+            public ListenableFuture<T> call() {
+                return send(endpoint, limiter, request, handler);
+            }
+        });
+    }
+
+    /**
+     * Runs the request through the circuit breaker of its endpoint group. I/O errors, 5xx and 429 responses count
+     * as failures; any other outcome, including 4xx errors, shows the endpoint is healthy. Cancelling the returned
+     * future aborts the request.
+     */
+    private <T> ListenableFuture<T> send(final CfEndpoint endpoint, final RateLimiter limiter,
+                                         final HttpUriRequest request, final ResponseHandler<T> handler) {
+        request.setHeader("Accept", "application/json");
+        final CircuitBreaker breaker = breakers.get(endpoint);
+        try {
+            breaker.acquire();
+        } catch (CircuitBreaker.OpenException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        final Exchange<T> exchange = new Exchange<T>(endpoint, breaker, limiter, handler);
+        final Future<Void> call = httpClient.execute(HttpAsyncMethods.create(request), exchange,
+                new FutureCallback<Void>() {
+                    public void completed(final Void ignored) {
+                        exchange.released();
+                    }
+
+                    public void failed(final Exception e) {
+                        exchange.abort(e);
+                    }
+
+                    public void cancelled() {
+                        exchange.abort(new CancellationException());
+                    }
+                });
+        final SettableFuture<T> result = exchange.result;
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled()) {
+                    call.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /** Runs the task on a worker thread, or right away once the workers are stopped. */
+    private void runOnWorker(final Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private static Map<CfEndpoint, EndpointMetrics> createMetrics() {
+        final Map<CfEndpoint, EndpointMetrics> metrics = new EnumMap<CfEndpoint, EndpointMetrics>(CfEndpoint.class);
+        for (CfEndpoint endpoint : CfEndpoint.values()) {
+            metrics.put(endpoint, new EndpointMetrics(endpoint));
+        }
+        return metrics;
+    }
+
+    private static Map<CfEndpoint.Upstream, RateLimiter> createLimiters() {
+        final Map<CfEndpoint.Upstream, RateLimiter> limiters
+                = new EnumMap<CfEndpoint.Upstream, RateLimiter>(CfEndpoint.Upstream.class);
+        for (CfEndpoint.Upstream upstream : CfEndpoint.Upstream.values()) {
+            limiters.put(upstream, new RateLimiter(upstream));
+        }
+        return limiters;
+    }
+
+    /**
+     * The delay a 429 or 503 answer asks to wait for before calling again, in seconds or as an HTTP date.
+     *
+     * @return -1 if the answer does not ask to wait.
+     */
+    private static long retryAfterMillis(final HttpResponse response) {
+        final int status = response.getStatusLine().getStatusCode();
+        final Header header = response.getFirstHeader("Retry-After");
+        if ((status != 429 && status != 503) || header == null || header.getValue() == null) {
+            return -1;
+        }
+        final String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            final Date date = DateUtils.parseDate(value);
+            if (date == null) {
+                LOG.fine("Ignoring the unexpected Retry-After header " + value);
+                return -1;
+            }
+            return Math.max(date.getTime() - System.currentTimeMillis(), 0);
+        }
+    }
+
+    private static Map<CfEndpoint, CircuitBreaker> createBreakers(final int failureRatePercent,
+                                                                  final long slowCallMillis, final long openMillis) {
+        final Map<CfEndpoint, CircuitBreaker> breakers = new EnumMap<CfEndpoint, CircuitBreaker>(CfEndpoint.class);
+        for (CfEndpoint endpoint : CfEndpoint.values()) {
+            breakers.put(endpoint, new CircuitBreaker(endpoint, failureRatePercent, slowCallMillis, openMillis));
+        }
+        return breakers;
+    }
+
+    private static String basic(final String user, final String password) {
+        return "Basic " + Base64.encodeBase64String((user + ":" + password).getBytes(UTF8));
+    }
+
+    /**
+     * A GET and its retries and hedge. The first attempt that succeeds completes the call and cancels the others. A
+     * failed attempt is only retried once no other attempt is in flight, after the backoff delay. Cancelling the
+     * call cancels all its attempts.
+     */
+    private final class GetCall<T> {
+
+        private final CfEndpoint endpoint;
+        private final RateLimiter.Priority priority;
+        private final String url;
+        private final String authorization;
+        private final ResponseHandler<T> handler;
+        private final RetryPolicy policy;
+
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final List<ListenableFuture<T>> inFlight = new ArrayList<ListenableFuture<T>>();
+
+        /** The pending hedge or retry. */
+        private ScheduledFuture<?> timer;
+        private int retries;
+        private boolean hedged;
+
+        GetCall(final CfEndpoint endpoint, final RateLimiter.Priority priority, final String url,
+                final String authorization, final ResponseHandler<T> handler, final RetryPolicy policy) {
+            this.endpoint = endpoint;
+            this.priority = priority;
+            this.url = url;
+            this.authorization = authorization;
+            this.handler = handler;
+            this.policy = policy;
+        }
+
+        ListenableFuture<T> start() {
+            result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled()) {
+                        stop();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            send(false);
+            return result;
+        }
+
+        private void send(final boolean hedge) {
+            if (result.isDone()) {
+                return;
+            }
+            if (!hedge) {
+                policy.onCall();
+            }
+            final HttpGet get = new HttpGet(url);
+            if (authorization != null) {
+                get.setHeader("Authorization", authorization);
+            }
+            final ListenableFuture<T> attempt = execute(endpoint, priority, get, handler);
+            synchronized (this) {
+                inFlight.add(attempt);
+            }
+            attempt.addListener(new Runnable() {
+                public void run() {
+                    completed(attempt, hedge);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            if (result.isDone()) {
+                // completed by another attempt while this one was being sent.
+                attempt.cancel(true);
+            } else if (!hedge) {
+                scheduleHedge();
+            }
+        }
+
+        private void scheduleHedge() {
+            if (!policy.isHedging()) {
+                return;
+            }
+            final EndpointMetrics observed = metrics.get(endpoint);
+            if (observed.getCount() < RetryPolicy.MIN_HEDGE_SAMPLES) {
+                return;
+            }
+            final long delay = observed.getPercentileMillis(RetryPolicy.HEDGE_PERCENTILE);
+            synchronized (this) {
+                if (hedged || timer != null || inFlight.isEmpty()) {
+                    return;
+                }
+                timer = Timer.get().schedule(new Runnable() {
+                    public void run() {
+                        hedge();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                timer = null;
+                if (hedged || inFlight.isEmpty() || result.isDone() || !policy.tryHedge()) {
+                    return;
+                }
+                hedged = true;
+            }
+            metrics.get(endpoint).onHedge();
+            send(true);
+        }
+
+        private void completed(final ListenableFuture<T> attempt, final boolean hedge) {
+            final T value;
+            try {
+                value = Uninterruptibles.getUninterruptibly(attempt);
+            } catch (ExecutionException e) {
+                failed(attempt, e.getCause());
+                return;
+            } catch (CancellationException e) {
+                failed(attempt, e);
+                return;
+            }
+            synchronized (this) {
+                inFlight.remove(attempt);
+            }
+            if (result.set(value)) {
+                if (hedge) {
+                    metrics.get(endpoint).onHedgeWon();
+                }
+                stop();
+            }
+        }
+
+        private void failed(final ListenableFuture<T> attempt, final Throwable failure) {
+            final long delay;
+            synchronized (this) {
+                inFlight.remove(attempt);
+                if (result.isDone() || !inFlight.isEmpty()) {
+                    // another attempt may still answer.
+                    return;
+                }
+                if (!policy.shouldRetry(failure, retries)) {
+                    delay = -1;
+                } else {
+                    delay = policy.backoffMillis(retries++);
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                    timer = Timer.get().schedule(new Runnable() {
+                        public void run() {
+                            retry();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (delay >= 0) {
+                metrics.get(endpoint).onRetry();
+                LOG.fine("Retrying " + url + " in " + delay + "ms after " + failure);
+            } else if (failure instanceof CancellationException) {
+                result.cancel(false);
+            } else {
+                result.setException(failure);
+            }
+        }
+
+        private void retry() {
+            synchronized (this) {
+                timer = null;
+            }
+            send(false);
+        }
+
+        /** Cancels the attempts in flight and the pending hedge or retry. */
+        private void stop() {
+            final List<ListenableFuture<T>> attempts;
+            synchronized (this) {
+                attempts = new ArrayList<ListenableFuture<T>>(inFlight);
+                inFlight.clear();
+                if (timer != null) {
+                    timer.cancel(false);
+                    timer = null;
+                }
+            }
+            for (ListenableFuture<T> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * A request and its response. The dispatcher fills the body buffer as the bytes arrive, and the handler reads it
+     * on a worker thread as a stream, so that a large page is neither held in memory nor parsed on a dispatcher.
+     *
+     * The exchange completes once, either when the handler returned or threw and the connection went back to the
+     * pool, so that the next call can reuse it, or when the connection fails or the call is cancelled first; the
+     * status, latency and circuit breaker outcome are recorded then.
+     */
+    private final class Exchange<T> extends AbstractAsyncResponseConsumer<Void> {
+
+        private final CfEndpoint endpoint;
+        private final CircuitBreaker breaker;
+        private final RateLimiter limiter;
+        private final ResponseHandler<T> handler;
+
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final long start = System.nanoTime();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        /** The handler and the release of the connection, both of which complete a successful exchange. */
+        private final AtomicInteger pending = new AtomicInteger(2);
+
+        private HttpResponse response;
+        private SharedInputBuffer body;
+        private boolean bodyRead;
+
+        /** The reason the body stopped streaming before its end, if it did. */
+        private volatile Throwable aborted;
+
+        private volatile int status;
+        private volatile long bytesRead;
+        private volatile T value;
+        private volatile Exception failure;
+
+        Exchange(final CfEndpoint endpoint, final CircuitBreaker breaker, final RateLimiter limiter,
+                 final ResponseHandler<T> handler) {
+            this.endpoint = endpoint;
+            this.breaker = breaker;
+            this.limiter = limiter;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void onResponseReceived(final HttpResponse received) {
+            response = received;
+            final long retryAfterMillis = retryAfterMillis(received);
+            if (retryAfterMillis >= 0) {
+                limiter.pause(retryAfterMillis);
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) {
+            body = new SharedInputBuffer(RESPONSE_BUFFER_SIZE, HeapByteBufferAllocator.INSTANCE);
+            final BasicHttpEntity streamed = new BasicHttpEntity();
+            streamed.setContent(new ContentInputStream(body));
+            streamed.setContentLength(entity.getContentLength());
+            streamed.setContentType(entity.getContentType());
+            streamed.setContentEncoding(entity.getContentEncoding());
+            response.setEntity(streamed);
+            dispatch();
+        }
+
+        @Override
+        protected void onContentReceived(final ContentDecoder decoder, final IOControl ioControl) throws IOException {
+            body.consumeContent(decoder, ioControl);
+        }
+
+        @Override
+        protected Void buildResult(final HttpContext context) {
+            bodyRead = true;
+            if (body == null) {
+                dispatch();
+            }
+            return null;
+        }
+
+        @Override
+        protected void releaseResources() {
+            if (body != null && !bodyRead) {
+                // wakes the handler up if it is waiting for more of the body.
+                abort(getException() != null ? getException() : new CancellationException());
+                body.shutdown();
+            }
+        }
+
+        /** Hands the response to the handler, on a worker thread. */
+        private void dispatch() {
+            runOnWorker(new Runnable() {
+                public void run() {
+                    handle();
+                }
+            });
+        }
+
+        private void handle() {
+            final MeteredResponseHandler<T> metered = new MeteredResponseHandler<T>(handler);
+            try {
+                value = metered.handleResponse(response);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+            status = metered.status;
+            bytesRead = metered.getBytesRead();
+            if (aborted != null) {
+                // the handler only saw the body end early, report why.
+                complete(aborted);
+            } else if (pending.decrementAndGet() == 0) {
+                complete(null);
+            }
+        }
+
+        /** Called once the response was read to its end and the connection released. */
+        void released() {
+            if (pending.decrementAndGet() == 0) {
+                complete(null);
+            }
+        }
+
+        /** Completes the exchange with the reason the connection failed or was cancelled. */
+        void abort(final Throwable reason) {
+            if (aborted == null) {
+                aborted = reason;
+            }
+            if (completed.get()) {
+                return;
+            }
+            runOnWorker(new Runnable() {
+                public void run() {
+                    complete(reason);
+                }
+            });
+        }
+
+        /**
+         * @param abortedBy what the call failed with before a complete response was handled, {@code null} to
+         *                  complete it with what the handler returned or threw.
+         */
+        private void complete(final Throwable abortedBy) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            final Throwable error = abortedBy != null ? abortedBy : failure;
+            if (error instanceof CancellationException) {
+                breaker.onCancelled();
+                result.cancel(false);
+                return;
+            }
+            final int responseStatus = abortedBy != null ? 0 : status;
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            metrics.get(endpoint).record(responseStatus, elapsedMillis, bytesRead);
+            final int failedStatus = error instanceof CfApiException ? ((CfApiException) error).getStatus() : 0;
+            if (responseStatus == 0 || failedStatus >= 500 || failedStatus == 429) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess(elapsedMillis);
+            }
+            if (error != null) {
+                result.setException(error);
+            } else {
+                result.set(value);
+            }
+        }
+    }
+
+    /**
+     * Notes the response status and counts the body bytes read by the wrapped handler.
+     */
+    private static final class MeteredResponseHandler<T> implements ResponseHandler<T> {
+
+        private final ResponseHandler<T> handler;
+        private int status;
+        private CountingInputStream content;
+
+        MeteredResponseHandler(final ResponseHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        public T handleResponse(final HttpResponse response) throws IOException {
+            status = response.getStatusLine().getStatusCode();
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                response.setEntity(new HttpEntityWrapper(entity) {
+                    @Override
+                    public InputStream getContent() throws IOException {
+                        if (content == null) {
+                            content = new CountingInputStream(super.getContent());
+                        }
+                        return content;
+                    }
+                });
+            }
+            return handler.handleResponse(response);
+        }
+
+        long getBytesRead() {
+            return content != null ? content.getCount() : 0;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.jenkinsci.plugins.cf.uaa.models.CfResources;
+import org.jenkinsci.plugins.cf.uaa.models.ClientAccessToken;
+import org.jenkinsci.plugins.cf.uaa.models.Organization;
+import org.jenkinsci.plugins.cf.uaa.models.SearchResults;
+import org.jenkinsci.plugins.cf.uaa.models.TokenKeys;
+import org.jenkinsci.plugins.cf.uaa.models.UaaUserProfile;
+import org.jenkinsci.plugins.cf.uaa.models.UserAccessToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON readers for the UAA and Cloud Controller responses.
+ *
+ * The readers are immutable and thread-safe, so the model classes are introspected once rather than on
+ * every call.
+ */
+final class CfJson {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    static final ObjectReader CLIENT_TOKEN = MAPPER.readerFor(ClientAccessToken.class);
+
+    static final ObjectReader USER_TOKEN = MAPPER.readerFor(UserAccessToken.class);
+
+    static final ObjectReader USER_PROFILE = MAPPER.readerFor(UaaUserProfile.class);
+
+    static final ObjectReader USER_SEARCH = MAPPER.readerFor(
+            new TypeReference<SearchResults<Map<String, Object>>>() {}
+    );
+
+    static final ObjectReader TOKEN_KEYS = MAPPER.readerFor(TokenKeys.class);
+
+    static final ObjectReader MAP = MAPPER.readerFor(new TypeReference<Map<String, Object>>() {});
+
+    static final ObjectReader ORGANIZATIONS = MAPPER.readerFor(
+            new TypeReference<CfResources<Organization>>() {}
+    );
+
+    /** The v2 user summary lists, by the organization role they stand for. */
+    private static final Map<String, String> V2_ORGANIZATION_ROLES = new HashMap<String, String>();
+
+    /** The v2 user summary lists, by the space role they stand for. */
+    private static final Map<String, String> V2_SPACE_ROLES = new HashMap<String, String>();
+
+    static {
+        V2_ORGANIZATION_ROLES.put("organizations", UserRoles.MEMBER);
+        V2_ORGANIZATION_ROLES.put("managed_organizations", "manager");
+        V2_ORGANIZATION_ROLES.put("billing_managed_organizations", "billing_manager");
+        V2_ORGANIZATION_ROLES.put("audited_organizations", "auditor");
+        V2_SPACE_ROLES.put("spaces", "developer");
+        V2_SPACE_ROLES.put("managed_spaces", "manager");
+        V2_SPACE_ROLES.put("audited_spaces", "auditor");
+    }
+
+    private static final String V3_ORGANIZATION_ROLE = "organization_";
+
+    private static final String V3_SPACE_ROLE = "space_";
+
+    private CfJson() {
+    }
+
+    /** Returns the reader bound to the given token type. */
+    static ObjectReader tokenReader(final Class<?> tokenType) {
+        if (tokenType == ClientAccessToken.class) {
+            return CLIENT_TOKEN;
+        }
+        if (tokenType == UserAccessToken.class) {
+            return USER_TOKEN;
+        }
+        return MAPPER.readerFor(tokenType);
+    }
+
+    /**
+     * Reads a page of {@code CfResources<Organization>} keeping only the names of the active organizations.
+     *
+     * The other fields, including the metadata, are skipped without being bound.
+     */
+    static OrganizationPage readOrganizations(final InputStream in) throws IOException {
+        final JsonParser parser = FACTORY.createParser(in);
+        try {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            int totalPages = 1;
+            List<String> names = Collections.emptyList();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("total_pages".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    totalPages = parser.getIntValue();
+                } else if ("resources".equals(field) && value == JsonToken.START_ARRAY) {
+                    names = readActiveNames(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new OrganizationPage(totalPages, names);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static List<String> readActiveNames(final JsonParser parser) throws IOException {
+        final List<String> names = new ArrayList<String>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("entity".equals(field) && value == JsonToken.START_OBJECT) {
+                    readEntity(parser, names);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void readEntity(final JsonParser parser, final List<String> names) throws IOException {
+        String name = null;
+        String status = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("name".equals(field) && value == JsonToken.VALUE_STRING) {
+                name = parser.getText();
+            } else if ("status".equals(field) && value == JsonToken.VALUE_STRING) {
+                status = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if ("active".equals(status) && name != null) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Reads a page of a Cloud Controller v3 listing, keeping the names of the organizations that are not suspended.
+     *
+     * The organizations are taken from the resources, for {@code /v3/organizations}, and from the included
+     * organizations, for {@code /v3/roles?include=organization}; roles have no name and are skipped.
+     */
+    static V3OrganizationPage readV3Organizations(final InputStream in) throws IOException {
+        final JsonParser parser = FACTORY.createParser(in);
+        try {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            String nextUrl = null;
+            final List<String> names = new ArrayList<String>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("pagination".equals(field) && value == JsonToken.START_OBJECT) {
+                    nextUrl = readNextUrl(parser);
+                } else if ("resources".equals(field) && value == JsonToken.START_ARRAY) {
+                    readV3Names(parser, names);
+                } else if ("included".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final boolean organizations = "organizations".equals(parser.getCurrentName());
+                        if (parser.nextToken() == JsonToken.START_ARRAY && organizations) {
+                            readV3Names(parser, names);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new V3OrganizationPage(nextUrl, names);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static String readNextUrl(final JsonParser parser) throws IOException {
+        String nextUrl = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("next".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String link = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.VALUE_STRING && "href".equals(link)) {
+                        nextUrl = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return nextUrl;
+    }
+
+    private static void readV3Names(final JsonParser parser, final List<String> names) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String name = null;
+            boolean suspended = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("name".equals(field) && value == JsonToken.VALUE_STRING) {
+                    name = parser.getText();
+                } else if ("suspended".equals(field)) {
+                    suspended = value == JsonToken.VALUE_TRUE;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (name != null && !suspended) {
+                names.add(name);
+            }
+        }
+    }
+
+    /**
+     * Reads a Cloud Controller v2 {@code /v2/users/:guid/summary} response, which lists the organizations and
+     * spaces of every role of the user at once.
+     */
+    static UserRoles readUserSummary(final InputStream in) throws IOException {
+        final JsonParser parser = FACTORY.createParser(in);
+        try {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            final UserRoles roles = new UserRoles();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_OBJECT && "entity".equals(field)) {
+                    readSummaryEntity(parser, roles);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return roles;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void readSummaryEntity(final JsonParser parser, final UserRoles roles) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            final String organizationRole = V2_ORGANIZATION_ROLES.get(field);
+            final String spaceRole = V2_SPACE_ROLES.get(field);
+            if (value != JsonToken.START_ARRAY || organizationRole == null && spaceRole == null) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                final Map<String, String> resource = readV2Resource(parser);
+                final String guid = resource.get("guid");
+                if (guid == null) {
+                    continue;
+                }
+                if (organizationRole != null) {
+                    roles.addOrganization(guid, resource.get("name"), "active".equals(resource.get("status")));
+                    roles.addOrganizationRole(guid, organizationRole);
+                } else {
+                    roles.addSpace(guid, resource.get("name"), resource.get("organization_guid"));
+                    roles.addSpaceRole(guid, spaceRole);
+                }
+            }
+        }
+    }
+
+    /** Reads the guid and the top-level string fields of the entity of a v2 resource, skipping everything else. */
+    private static Map<String, String> readV2Resource(final JsonParser parser) throws IOException {
+        final Map<String, String> resource = new HashMap<String, String>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if (value == JsonToken.START_OBJECT && ("metadata".equals(field) || "entity".equals(field))) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        resource.put(name, parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Reads a page of a Cloud Controller v3 {@code /v3/roles?include=organization,space} listing into the given
+     * roles.
+     *
+     * @return the url of the next page, {@code null} on the last one.
+     */
+    static String readV3Roles(final InputStream in, final UserRoles roles) throws IOException {
+        final JsonParser parser = FACTORY.createParser(in);
+        try {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            String nextUrl = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("pagination".equals(field) && value == JsonToken.START_OBJECT) {
+                    nextUrl = readNextUrl(parser);
+                } else if ("resources".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readV3Role(parser, roles);
+                    }
+                } else if ("included".equals(field) && value == JsonToken.START_OBJECT) {
+                    readV3Included(parser, roles);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return nextUrl;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void readV3Role(final JsonParser parser, final UserRoles roles) throws IOException {
+        String type = null;
+        Map<String, String> relationships = Collections.emptyMap();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("type".equals(field) && value == JsonToken.VALUE_STRING) {
+                type = parser.getText();
+            } else if ("relationships".equals(field) && value == JsonToken.START_OBJECT) {
+                relationships = readV3Relationships(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (type == null) {
+            return;
+        }
+        if (type.startsWith(V3_ORGANIZATION_ROLE) && relationships.containsKey("organization")) {
+            roles.addOrganizationRole(relationships.get("organization"),
+                    type.substring(V3_ORGANIZATION_ROLE.length()));
+        } else if (type.startsWith(V3_SPACE_ROLE) && relationships.containsKey("space")) {
+            roles.addSpaceRole(relationships.get("space"), type.substring(V3_SPACE_ROLE.length()));
+        }
+    }
+
+    private static void readV3Included(final JsonParser parser, final UserRoles roles) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_ARRAY
+                    || !"organizations".equals(field) && !"spaces".equals(field)) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String guid = null;
+                String name = null;
+                boolean suspended = false;
+                Map<String, String> relationships = Collections.emptyMap();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String property = parser.getCurrentName();
+                    final JsonToken value = parser.nextToken();
+                    if ("guid".equals(property) && value == JsonToken.VALUE_STRING) {
+                        guid = parser.getText();
+                    } else if ("name".equals(property) && value == JsonToken.VALUE_STRING) {
+                        name = parser.getText();
+                    } else if ("suspended".equals(property)) {
+                        suspended = value == JsonToken.VALUE_TRUE;
+                    } else if ("relationships".equals(property) && value == JsonToken.START_OBJECT) {
+                        relationships = readV3Relationships(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (guid == null || name == null) {
+                    continue;
+                }
+                if ("organizations".equals(field)) {
+                    roles.addOrganization(guid, name, !suspended);
+                } else {
+                    roles.addSpace(guid, name, relationships.get("organization"));
+                }
+            }
+        }
+    }
+
+    /** Reads {@code {"space": {"data": {"guid": "..."}}, ...}} into the guids by relationship, skipping nulls. */
+    private static Map<String, String> readV3Relationships(final JsonParser parser) throws IOException {
+        final Map<String, String> guids = new HashMap<String, String>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String relationship = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final boolean data = "data".equals(parser.getCurrentName());
+                if (parser.nextToken() != JsonToken.START_OBJECT || !data) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final boolean guid = "guid".equals(parser.getCurrentName());
+                    if (parser.nextToken() == JsonToken.VALUE_STRING && guid) {
+                        guids.put(relationship, parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        return guids;
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual, final JsonToken expected)
+            throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("Expected " + expected + " but was " + actual, parser.getCurrentLocation());
+        }
+    }
+
+    /** The active organization names found in one page of a Cloud Controller listing. */
+    static final class OrganizationPage {
+
+        private final int totalPages;
+        private final List<String> activeNames;
+
+        OrganizationPage(final int totalPages, final List<String> activeNames) {
+            this.totalPages = totalPages;
+            this.activeNames = activeNames;
+        }
+
+        int getTotalPages() {
+            return totalPages;
+        }
+
+        List<String> getActiveNames() {
+            return activeNames;
+        }
+    }
+
+    /** The organization names found in one page of a Cloud Controller v3 listing. */
+    static final class V3OrganizationPage {
+
+        private final String nextUrl;
+        private final List<String> activeNames;
+
+        V3OrganizationPage(final String nextUrl, final List<String> activeNames) {
+            this.nextUrl = nextUrl;
+            this.activeNames = activeNames;
+        }
+
+        /** The url of the next page, {@code null} on the last one. */
+        String getNextUrl() {
+            return nextUrl;
+        }
+
+        List<String> getActiveNames() {
+            return activeNames;
+        }
+    }
+}
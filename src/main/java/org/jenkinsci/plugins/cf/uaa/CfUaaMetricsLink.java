@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+
+/**
+ * "Manage Jenkins" page showing the latency, errors and cache statistics of the calls to UAA and the Cloud
+ * Controller. The link is only shown while the Cloud Foundry UAA security realm is in use.
+ */
+@Extension
+public class CfUaaMetricsLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return getRealm() != null ? "monitor.png" : null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cf-uaa-metrics";
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry UAA Metrics";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Latency, errors and cache statistics of the calls made to UAA and the Cloud Controller.";
+    }
+
+    /** The security realm in use, {@code null} unless it is the Cloud Foundry UAA one. */
+    public CfUaaSecurityRealm getRealm() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null && jenkins.getSecurityRealm() instanceof CfUaaSecurityRealm) {
+            return (CfUaaSecurityRealm) jenkins.getSecurityRealm();
+        }
+        return null;
+    }
+}
@@ -3,18 +3,23 @@ package org.jenkinsci.plugins.cf.uaa;
 
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
 import hudson.model.Descriptor;
 import hudson.model.User;
+import hudson.security.ACL;
 import hudson.security.GroupDetails;
 import hudson.security.SecurityRealm;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
 import jenkins.security.ImpersonatingUserDetailsService;
+import jenkins.util.Timer;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.AuthenticationException;
 import org.acegisecurity.AuthenticationManager;
 import org.acegisecurity.BadCredentialsException;
-import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
 import org.acegisecurity.providers.anonymous.AnonymousAuthenticationToken;
@@ -22,17 +27,28 @@ import org.acegisecurity.userdetails.UserDetails;
 import org.acegisecurity.userdetails.UserDetailsService;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.plugins.cf.uaa.models.UaaUserProfile;
-import org.jenkinsci.plugins.cf.uaa.models.UserAccessToken;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.Header;
 import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.springframework.dao.DataAccessException;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,13 +60,68 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
     /** Used for logging purposes. */
     private static final Logger LOG = Logger.getLogger(CfUaaSecurityRealm.class.getName());
 
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    static final int DEFAULT_IDLE_CONNECTION_TIMEOUT = 60;
+    static final int DEFAULT_USER_CACHE_SIZE = 1000;
+    static final int DEFAULT_USER_CACHE_TTL = 300;
+    static final int DEFAULT_USER_NOT_FOUND_TTL = 60;
+    static final int DEFAULT_USER_CACHE_REFRESH_AFTER = 240;
+    static final int DEFAULT_REFRESH_THREADS = 2;
+    static final int DEFAULT_STALE_GRACE_PERIOD = 900;
+    static final int DEFAULT_BREAKER_OPEN_DURATION = 30;
+    static final int DEFAULT_USER_ID_CACHE_TTL = 720;
+    static final int DEFAULT_USER_ID_CACHE_SIZE = 100000;
+    static final int DEFAULT_LOGIN_TIMEOUT = 30;
+    static final int DEFAULT_WARM_UP_USERS = 500;
+    static final int DEFAULT_WARM_UP_CONCURRENCY = 4;
+
     private String clientId;
     private Secret clientSecret;
     private String uaaServerEndpoint;
     private String loginServerEndpoint;
     private String apiServerEndpoint;
 
-    private CfApiUtil api;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private int userCacheSize = DEFAULT_USER_CACHE_SIZE;
+    private int userCacheTtl = DEFAULT_USER_CACHE_TTL;
+    private int userNotFoundTtl = DEFAULT_USER_NOT_FOUND_TTL;
+    private int userCacheRefreshAfter = DEFAULT_USER_CACHE_REFRESH_AFTER;
+    private int refreshThreads = DEFAULT_REFRESH_THREADS;
+    private int staleGracePeriod = DEFAULT_STALE_GRACE_PERIOD;
+    private int breakerFailureRate = CfHttpClient.DEFAULT_BREAKER_FAILURE_RATE;
+    private int breakerSlowCallMillis = (int) CfHttpClient.DEFAULT_BREAKER_SLOW_CALL_MILLIS;
+    private int breakerOpenDuration = DEFAULT_BREAKER_OPEN_DURATION;
+    private int userIdCacheTtl = DEFAULT_USER_ID_CACHE_TTL;
+    private int userIdCacheSize = DEFAULT_USER_ID_CACHE_SIZE;
+    private boolean persistUserIds;
+    private int resultsPerPage = CfApiUtil.DEFAULT_RESULTS_PER_PAGE;
+    private int pageFetchConcurrency = CfApiUtil.DEFAULT_PAGE_FETCH_CONCURRENCY;
+    private boolean verifyTokensLocally;
+    private int loginTimeout = DEFAULT_LOGIN_TIMEOUT;
+    private boolean warmUpOnStartup;
+    private int warmUpUsers = DEFAULT_WARM_UP_USERS;
+    private int warmUpConcurrency = DEFAULT_WARM_UP_CONCURRENCY;
+    private OrganizationsApi organizationsApi = OrganizationsApi.V2;
+    private boolean roleAuthorities;
+    private boolean renewSessions;
+    private int uaaCallsPerSecond;
+    private int cloudControllerCallsPerSecond;
+    /** {@code null} in the configurations saved before retries, 0 is a valid value. */
+    private Integer requestRetries = RetryPolicy.DEFAULT_MAX_RETRIES;
+    private boolean hedgeRequests;
+    private int hedgeBudget = RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT;
+
+    private transient CfApiUtil api;
+    private transient UserDetailsCache userCache;
+    private transient JmxMetrics jmx;
+    private transient CacheWarmUp warmUp;
+    private transient CacheSnapshot snapshot;
+
+    /** The realm currently installed in Jenkins, its resources are released once another one replaces it. */
+    private static CfUaaSecurityRealm active;
 
     @DataBoundConstructor
     public CfUaaSecurityRealm(final String clientId, final String clientSecret, final String uaaServerEndpoint,
@@ -66,11 +137,235 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
         this.uaaServerEndpoint = uaaServerEndpoint;
         this.loginServerEndpoint = loginServerEndpoint;
         this.apiServerEndpoint = apiServerEndpoint;
+    }
 
-        api = new CfApiUtil(
-                clientId, this.clientSecret.getPlainText(),
-                uaaServerEndpoint, loginServerEndpoint, apiServerEndpoint
-        );
+    /** Fills in the settings missing from configurations saved by older versions. */
+    protected Object readResolve() {
+        if (maxConnections <= 0) {
+            maxConnections = DEFAULT_MAX_CONNECTIONS;
+        }
+        if (maxConnectionsPerRoute <= 0) {
+            maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        }
+        if (idleConnectionTimeout <= 0) {
+            idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+        }
+        if (userCacheSize <= 0) {
+            userCacheSize = DEFAULT_USER_CACHE_SIZE;
+        }
+        if (userCacheTtl <= 0) {
+            userCacheTtl = DEFAULT_USER_CACHE_TTL;
+        }
+        if (userNotFoundTtl <= 0) {
+            userNotFoundTtl = DEFAULT_USER_NOT_FOUND_TTL;
+        }
+        if (userCacheRefreshAfter <= 0) {
+            userCacheRefreshAfter = DEFAULT_USER_CACHE_REFRESH_AFTER;
+        }
+        if (refreshThreads <= 0) {
+            refreshThreads = DEFAULT_REFRESH_THREADS;
+        }
+        if (staleGracePeriod <= 0) {
+            staleGracePeriod = DEFAULT_STALE_GRACE_PERIOD;
+        }
+        if (breakerFailureRate <= 0) {
+            breakerFailureRate = CfHttpClient.DEFAULT_BREAKER_FAILURE_RATE;
+        }
+        if (breakerSlowCallMillis <= 0) {
+            breakerSlowCallMillis = (int) CfHttpClient.DEFAULT_BREAKER_SLOW_CALL_MILLIS;
+        }
+        if (breakerOpenDuration <= 0) {
+            breakerOpenDuration = DEFAULT_BREAKER_OPEN_DURATION;
+        }
+        if (userIdCacheTtl <= 0) {
+            userIdCacheTtl = DEFAULT_USER_ID_CACHE_TTL;
+        }
+        if (userIdCacheSize <= 0) {
+            userIdCacheSize = DEFAULT_USER_ID_CACHE_SIZE;
+        }
+        if (resultsPerPage <= 0) {
+            resultsPerPage = CfApiUtil.DEFAULT_RESULTS_PER_PAGE;
+        }
+        if (pageFetchConcurrency <= 0) {
+            pageFetchConcurrency = CfApiUtil.DEFAULT_PAGE_FETCH_CONCURRENCY;
+        }
+        if (loginTimeout <= 0) {
+            loginTimeout = DEFAULT_LOGIN_TIMEOUT;
+        }
+        if (warmUpUsers <= 0) {
+            warmUpUsers = DEFAULT_WARM_UP_USERS;
+        }
+        if (warmUpConcurrency <= 0) {
+            warmUpConcurrency = DEFAULT_WARM_UP_CONCURRENCY;
+        }
+        if (organizationsApi == null) {
+            organizationsApi = OrganizationsApi.V2;
+        }
+        if (requestRetries == null) {
+            requestRetries = RetryPolicy.DEFAULT_MAX_RETRIES;
+        }
+        if (hedgeBudget <= 0) {
+            hedgeBudget = RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT;
+        }
+        return this;
+    }
+
+    /**
+     * The API client holds runtime state (pooled connections, cached client token), it is built on first use
+     * rather than persisted, along with the user cache.
+     */
+    synchronized CfApiUtil getApi() {
+        if (api == null) {
+            final CfHttpClient http = new CfHttpClient(maxConnections, maxConnectionsPerRoute, idleConnectionTimeout);
+            http.configureCircuitBreakers(breakerFailureRate, breakerSlowCallMillis,
+                    TimeUnit.SECONDS.toMillis(breakerOpenDuration));
+            http.configureRateLimits(uaaCallsPerSecond, cloudControllerCallsPerSecond);
+            http.configureRetries(getRequestRetries(), hedgeRequests, hedgeBudget);
+            api = new CfApiUtil(
+                    clientId, clientSecret.getPlainText(),
+                    uaaServerEndpoint, loginServerEndpoint, apiServerEndpoint,
+                    http,
+                    new UserIdCache(userIdCacheSize, TimeUnit.HOURS.toMillis(userIdCacheTtl))
+            );
+            api.setPagination(resultsPerPage, pageFetchConcurrency);
+            api.setOrganizationsApi(organizationsApi);
+            api.setRoleAuthorities(roleAuthorities);
+            api.setLocalTokenVerification(verifyTokensLocally);
+            api.setLoginTimeout(TimeUnit.SECONDS.toMillis(loginTimeout));
+            for (EndpointMetrics metrics : api.getEndpointMetrics()) {
+                getJmx().register("type=Endpoint,name=" + metrics.getName(), EndpointMetricsMXBean.class, metrics);
+            }
+            for (LoginPhase phase : LoginPhase.values()) {
+                getJmx().register("type=LoginPhase,name=" + phase.name(), LatencyHistogramMXBean.class,
+                        api.getLoginPhaseLatency(phase));
+            }
+            for (RateLimiter limiter : api.getRateLimiters()) {
+                getJmx().register("type=RateLimiter,name=" + limiter.getName(), RateLimiterMXBean.class, limiter);
+            }
+            getJmx().register("type=UserIdCache", UserIdCacheMXBean.class, api.getUserIdCache());
+            if (userCache == null) {
+                userCache = new UserDetailsCache(userCacheSize, userCacheTtl, userNotFoundTtl,
+                        userCacheRefreshAfter, refreshThreads, staleGracePeriod);
+                getJmx().register("type=UserCache", UserCacheMXBean.class, userCache);
+            }
+            if (persistUserIds) {
+                snapshot = new CacheSnapshot(CacheSnapshot.defaultFile(Jenkins.getInstance().getRootDir()),
+                        api.getUserIdCache(), userCache);
+                snapshot.start();
+            }
+        }
+        return api;
+    }
+
+    /**
+     * The users resolved by {@link #loadUserByUsername(String)}. It is built with the API client, which restores
+     * the users saved before a restart, so that the first lookups already find them.
+     */
+    synchronized UserDetailsCache getUserCache() {
+        getApi();
+        return userCache;
+    }
+
+    /** The JMX registrations of the metrics of this realm, built on first use. */
+    private synchronized JmxMetrics getJmx() {
+        if (jmx == null) {
+            jmx = new JmxMetrics();
+        }
+        return jmx;
+    }
+
+    /**
+     * Resolves the users most recently active in the background and caches them: first the users whose id was
+     * used last, as kept by the user id cache, then the other Jenkins users.
+     */
+    synchronized void warmUp() {
+        if (warmUp != null) {
+            warmUp.cancel();
+        }
+        final Set<String> userNames = new LinkedHashSet<String>(
+                getApi().getUserIdCache().getRecentlyUsed(warmUpUsers));
+        for (User user : User.getAll()) {
+            if (userNames.size() >= warmUpUsers) {
+                break;
+            }
+            userNames.add(user.getId());
+        }
+        warmUp = new CacheWarmUp(getApi(), getUserCache(), new ArrayList<String>(userNames), warmUpConcurrency);
+        getJmx().register("type=CacheWarmUp", CacheWarmUpMXBean.class, warmUp);
+        warmUp.start();
+    }
+
+    /**
+     * Evicts cached users so that a change of their organization memberships shows right away, rather than once
+     * their entries expire: one user, the members of one organization, or all users. Only one of the three is
+     * applied, in this order.
+     *
+     * @param reload whether to resolve the evicted users again in the background, as the cache warm-up does.
+     * @return the names of the evicted users.
+     * @throws IllegalArgumentException if neither a user, an organization nor all users are given.
+     */
+    List<String> invalidate(final String userName, final String organization, final boolean all,
+                            final boolean reload) {
+        final UserDetailsCache cache = getUserCache();
+        final List<String> evicted;
+        if (StringUtils.isNotBlank(userName)) {
+            // the user may have been deleted and created again in UAA, with another id.
+            getApi().getUserIdCache().invalidate(userName.trim());
+            cache.invalidate(userName.trim());
+            evicted = Collections.singletonList(userName.trim());
+        } else if (StringUtils.isNotBlank(organization)) {
+            evicted = cache.invalidateMembersOf(organization.trim());
+        } else if (all) {
+            evicted = cache.getUserNames();
+            getApi().getUserIdCache().invalidateAll();
+            cache.invalidateAll();
+        } else {
+            throw new IllegalArgumentException("A user, an organization or all users must be given");
+        }
+        LOG.info("Evicted " + evicted.size() + " users from the UAA user cache"
+                + (reload ? ", resolving them again" : ""));
+        if (reload && !evicted.isEmpty()) {
+            new CacheWarmUp(getApi(), cache, evicted, warmUpConcurrency).start();
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts cached users, see {@link #invalidate(String, String, boolean, boolean)}. Called by the onboarding
+     * scripts right after changing organization memberships, e.g. {@code POST securityRealm/invalidate?user=alice}.
+     */
+    @RequirePOST
+    public HttpResponse doInvalidate(@QueryParameter final String user, @QueryParameter final String organization,
+                                     @QueryParameter final boolean all, @QueryParameter final boolean reload) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        try {
+            return HttpResponses.plainText(invalidate(user, organization, all, reload).size() + " users evicted\n");
+        } catch (IllegalArgumentException e) {
+            return HttpResponses.error(400, e.getMessage());
+        }
+    }
+
+    /** Releases the connections and background tasks held by this realm. */
+    synchronized void shutdown() {
+        if (warmUp != null) {
+            warmUp.cancel();
+            warmUp = null;
+        }
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+        if (api != null) {
+            api.close();
+            api = null;
+        }
+        if (userCache != null) {
+            userCache.close();
+            userCache = null;
+        }
+        if (jmx != null) {
+            jmx.unregisterAll();
+        }
     }
 
     public String getClientId() {
@@ -94,6 +389,325 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
         return apiServerEndpoint;
     }
 
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute > 0
+                ? maxConnectionsPerRoute : DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    }
+
+    public int getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    @DataBoundSetter
+    public void setIdleConnectionTimeout(final int idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout > 0
+                ? idleConnectionTimeout : DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    }
+
+    public int getUserCacheSize() {
+        return userCacheSize;
+    }
+
+    @DataBoundSetter
+    public void setUserCacheSize(final int userCacheSize) {
+        this.userCacheSize = userCacheSize > 0 ? userCacheSize : DEFAULT_USER_CACHE_SIZE;
+    }
+
+    public int getUserCacheTtl() {
+        return userCacheTtl;
+    }
+
+    @DataBoundSetter
+    public void setUserCacheTtl(final int userCacheTtl) {
+        this.userCacheTtl = userCacheTtl > 0 ? userCacheTtl : DEFAULT_USER_CACHE_TTL;
+    }
+
+    public int getUserNotFoundTtl() {
+        return userNotFoundTtl;
+    }
+
+    @DataBoundSetter
+    public void setUserNotFoundTtl(final int userNotFoundTtl) {
+        this.userNotFoundTtl = userNotFoundTtl > 0 ? userNotFoundTtl : DEFAULT_USER_NOT_FOUND_TTL;
+    }
+
+    public int getUserCacheRefreshAfter() {
+        return userCacheRefreshAfter;
+    }
+
+    @DataBoundSetter
+    public void setUserCacheRefreshAfter(final int userCacheRefreshAfter) {
+        this.userCacheRefreshAfter = userCacheRefreshAfter > 0
+                ? userCacheRefreshAfter : DEFAULT_USER_CACHE_REFRESH_AFTER;
+    }
+
+    public int getRefreshThreads() {
+        return refreshThreads;
+    }
+
+    @DataBoundSetter
+    public void setRefreshThreads(final int refreshThreads) {
+        this.refreshThreads = refreshThreads > 0 ? refreshThreads : DEFAULT_REFRESH_THREADS;
+    }
+
+    public int getStaleGracePeriod() {
+        return staleGracePeriod;
+    }
+
+    @DataBoundSetter
+    public void setStaleGracePeriod(final int staleGracePeriod) {
+        this.staleGracePeriod = staleGracePeriod > 0 ? staleGracePeriod : DEFAULT_STALE_GRACE_PERIOD;
+    }
+
+    public int getBreakerFailureRate() {
+        return breakerFailureRate;
+    }
+
+    @DataBoundSetter
+    public void setBreakerFailureRate(final int breakerFailureRate) {
+        this.breakerFailureRate = breakerFailureRate > 0 && breakerFailureRate <= 100
+                ? breakerFailureRate : CfHttpClient.DEFAULT_BREAKER_FAILURE_RATE;
+    }
+
+    public int getBreakerSlowCallMillis() {
+        return breakerSlowCallMillis;
+    }
+
+    @DataBoundSetter
+    public void setBreakerSlowCallMillis(final int breakerSlowCallMillis) {
+        this.breakerSlowCallMillis = breakerSlowCallMillis > 0
+                ? breakerSlowCallMillis : (int) CfHttpClient.DEFAULT_BREAKER_SLOW_CALL_MILLIS;
+    }
+
+    public int getBreakerOpenDuration() {
+        return breakerOpenDuration;
+    }
+
+    @DataBoundSetter
+    public void setBreakerOpenDuration(final int breakerOpenDuration) {
+        this.breakerOpenDuration = breakerOpenDuration > 0 ? breakerOpenDuration : DEFAULT_BREAKER_OPEN_DURATION;
+    }
+
+    public int getUserIdCacheTtl() {
+        return userIdCacheTtl;
+    }
+
+    @DataBoundSetter
+    public void setUserIdCacheTtl(final int userIdCacheTtl) {
+        this.userIdCacheTtl = userIdCacheTtl > 0 ? userIdCacheTtl : DEFAULT_USER_ID_CACHE_TTL;
+    }
+
+    public int getUserIdCacheSize() {
+        return userIdCacheSize;
+    }
+
+    @DataBoundSetter
+    public void setUserIdCacheSize(final int userIdCacheSize) {
+        this.userIdCacheSize = userIdCacheSize > 0 ? userIdCacheSize : DEFAULT_USER_ID_CACHE_SIZE;
+    }
+
+    public boolean isPersistUserIds() {
+        return persistUserIds;
+    }
+
+    @DataBoundSetter
+    public void setPersistUserIds(final boolean persistUserIds) {
+        this.persistUserIds = persistUserIds;
+    }
+
+    public int getResultsPerPage() {
+        return resultsPerPage;
+    }
+
+    @DataBoundSetter
+    public void setResultsPerPage(final int resultsPerPage) {
+        this.resultsPerPage = resultsPerPage > 0 ? resultsPerPage : CfApiUtil.DEFAULT_RESULTS_PER_PAGE;
+    }
+
+    public int getPageFetchConcurrency() {
+        return pageFetchConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setPageFetchConcurrency(final int pageFetchConcurrency) {
+        this.pageFetchConcurrency = pageFetchConcurrency > 0
+                ? pageFetchConcurrency : CfApiUtil.DEFAULT_PAGE_FETCH_CONCURRENCY;
+    }
+
+    public boolean isVerifyTokensLocally() {
+        return verifyTokensLocally;
+    }
+
+    @DataBoundSetter
+    public void setVerifyTokensLocally(final boolean verifyTokensLocally) {
+        this.verifyTokensLocally = verifyTokensLocally;
+    }
+
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    @DataBoundSetter
+    public void setLoginTimeout(final int loginTimeout) {
+        this.loginTimeout = loginTimeout > 0 ? loginTimeout : DEFAULT_LOGIN_TIMEOUT;
+    }
+
+    public boolean isWarmUpOnStartup() {
+        return warmUpOnStartup;
+    }
+
+    @DataBoundSetter
+    public void setWarmUpOnStartup(final boolean warmUpOnStartup) {
+        this.warmUpOnStartup = warmUpOnStartup;
+    }
+
+    public int getWarmUpUsers() {
+        return warmUpUsers;
+    }
+
+    @DataBoundSetter
+    public void setWarmUpUsers(final int warmUpUsers) {
+        this.warmUpUsers = warmUpUsers > 0 ? warmUpUsers : DEFAULT_WARM_UP_USERS;
+    }
+
+    public int getWarmUpConcurrency() {
+        return warmUpConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setWarmUpConcurrency(final int warmUpConcurrency) {
+        this.warmUpConcurrency = warmUpConcurrency > 0 ? warmUpConcurrency : DEFAULT_WARM_UP_CONCURRENCY;
+    }
+
+    public OrganizationsApi getOrganizationsApi() {
+        return organizationsApi;
+    }
+
+    @DataBoundSetter
+    public void setOrganizationsApi(final OrganizationsApi organizationsApi) {
+        this.organizationsApi = organizationsApi != null ? organizationsApi : OrganizationsApi.V2;
+    }
+
+    public boolean isRoleAuthorities() {
+        return roleAuthorities;
+    }
+
+    @DataBoundSetter
+    public void setRoleAuthorities(final boolean roleAuthorities) {
+        this.roleAuthorities = roleAuthorities;
+    }
+
+    public boolean isRenewSessions() {
+        return renewSessions;
+    }
+
+    @DataBoundSetter
+    public void setRenewSessions(final boolean renewSessions) {
+        this.renewSessions = renewSessions;
+    }
+
+    public int getUaaCallsPerSecond() {
+        return uaaCallsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setUaaCallsPerSecond(final int uaaCallsPerSecond) {
+        this.uaaCallsPerSecond = Math.max(uaaCallsPerSecond, 0);
+    }
+
+    public int getCloudControllerCallsPerSecond() {
+        return cloudControllerCallsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setCloudControllerCallsPerSecond(final int cloudControllerCallsPerSecond) {
+        this.cloudControllerCallsPerSecond = Math.max(cloudControllerCallsPerSecond, 0);
+    }
+
+    public int getRequestRetries() {
+        return requestRetries != null ? requestRetries : RetryPolicy.DEFAULT_MAX_RETRIES;
+    }
+
+    @DataBoundSetter
+    public void setRequestRetries(final int requestRetries) {
+        this.requestRetries = Math.max(requestRetries, 0);
+    }
+
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+
+    @DataBoundSetter
+    public void setHedgeRequests(final boolean hedgeRequests) {
+        this.hedgeRequests = hedgeRequests;
+    }
+
+    public int getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    @DataBoundSetter
+    public void setHedgeBudget(final int hedgeBudget) {
+        this.hedgeBudget = hedgeBudget > 0 ? Math.min(hedgeBudget, 100) : RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT;
+    }
+
+    /** Size and hit rate of the user cache, shown on the configuration page. */
+    public String getUserCacheStatistics() {
+        return getUserCache() + ", " + getApi().getCoalescedCount() + " user id and organization lookups coalesced, "
+                + AuthorityDictionary.size() + " distinct authorities";
+    }
+
+    /** State of the circuit breaker of each endpoint group, shown on the configuration page. */
+    public String getCircuitBreakerStatistics() {
+        return StringUtils.join(getApi().getCircuitBreakers(), ", ");
+    }
+
+    /** Calls made to each endpoint group, shown on the metrics page. */
+    public List<EndpointMetricsMXBean> getEndpointMetrics() {
+        return new ArrayList<EndpointMetricsMXBean>(getApi().getEndpointMetrics());
+    }
+
+    /** Throttling of the calls to UAA and the Cloud Controller, shown on the metrics page. */
+    public List<RateLimiterMXBean> getRateLimiterMetrics() {
+        return new ArrayList<RateLimiterMXBean>(getApi().getRateLimiters());
+    }
+
+    /** Time spent in each step of the logins, keyed by step name, shown on the metrics page. */
+    public Map<String, LatencyHistogramMXBean> getLoginPhaseMetrics() {
+        final Map<String, LatencyHistogramMXBean> phases = new LinkedHashMap<String, LatencyHistogramMXBean>();
+        for (LoginPhase phase : LoginPhase.values()) {
+            phases.put(phase.getDisplayName(), getApi().getLoginPhaseLatency(phase));
+        }
+        return phases;
+    }
+
+    public UserCacheMXBean getUserCacheMetrics() {
+        return getUserCache();
+    }
+
+    public UserIdCacheMXBean getUserIdCacheMetrics() {
+        return getApi().getUserIdCache();
+    }
+
+    /** Progress of the last cache warm-up, {@code null} if none ran. */
+    public synchronized CacheWarmUpMXBean getCacheWarmUpMetrics() {
+        return warmUp;
+    }
+
 
     @Override
     public boolean allowsSignup() {
@@ -119,27 +733,19 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
 
             @Override
             protected HttpResponse onSuccess(final String authorizationCode) throws IOException {
-                UserAccessToken token = api.getAccessTokenByAuthorizationCode(
-                        authorizationCode, request.getRootPath() + "/securityRealm/finishLogin"
-                );
-                if (LOG.isLoggable(Level.FINE)) {
-                    LOG.fine("UAA's UserAccount Token: " + token.getAccessToken());
-                }
-
-                UaaUserProfile userProfile = api.getUserProfile(token);
-                token.setUserId(userProfile.getUserId());
-                token.setUserName(userProfile.getUserName());
-                final GrantedAuthority[] authorities = api.getUserGrantedAuthorities(token);
                 // logs this user in.
-                final UsernamePasswordAuthenticationToken upToken = new UsernamePasswordAuthenticationToken(
-                        userProfile.getEmail(), "", authorities
+                final UaaSession login = getApi().login(
+                        authorizationCode, request.getRootPath() + "/securityRealm/finishLogin"
                 );
+                final UsernamePasswordAuthenticationToken upToken = login.getAuthentication();
                 SecurityContextHolder.getContext().setAuthentication(upToken);
+                if (renewSessions && login.isRenewable()) {
+                    // the refresh token stays on the server, see SessionRenewalFilter.
+                    request.getSession().setAttribute(UaaSession.ATTRIBUTE, login);
+                }
 
-                // update the user profile.
-                UaaUserInfo info = new UaaUserInfo();
-                User u = User.get(upToken.getName());
-                info.updateProfile(u);
+                // the profile is not needed to serve the redirect, it is updated in the background.
+                updateProfile(upToken.getName());
                 return new HttpRedirect(redirectOnFinish);
             }
         }.doCommenceLogin(request);
@@ -149,13 +755,38 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
         return OAuthSession.getCurrent().doFinishLogin(request);
     }
 
+    /** Updates the Jenkins user of a login with its UAA profile, on a background thread. */
+    private void updateProfile(final String userName) {
+        final CfApiUtil api = getApi();
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                final long start = System.nanoTime();
+                final SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    UaaUserInfo info = new UaaUserInfo();
+                    User u = User.get(userName);
+                    info.updateProfile(u);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to update the profile of " + userName, e);
+                } finally {
+                    SecurityContextHolder.setContext(previous);
+                    api.recordLoginPhase(LoginPhase.PROFILE_UPDATE, start);
+                }
+            }
+        });
+    }
+
     public UserDetails loadUserByUsername(final String userName) throws UsernameNotFoundException, DataAccessException {
-        return api.loadUserByUsername(userName);
+        return getUserCache().get(userName, new Callable<UserDetails>() {
+            public UserDetails call() {
+                return getApi().loadUserByUsername(userName);
+            }
+        });
     }
 
     public GroupDetails loadGroupByGroupname(final String groupName)
             throws UsernameNotFoundException, DataAccessException {
-        return api.loadGroupByGroupname(groupName);
+        return getApi().loadGroupByGroupname(groupName);
     }
 
     @Override
@@ -175,6 +806,7 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
 
     @Override
     public SecurityComponents createSecurityComponents() {
+        activate(this);
         return new SecurityComponents(
                 new AuthenticationManager() {
                     public Authentication authenticate(Authentication authentication) throws AuthenticationException {
@@ -192,6 +824,39 @@ public class CfUaaSecurityRealm extends SecurityRealm implements UserDetailsServ
 
 
 
+    private static synchronized void activate(final CfUaaSecurityRealm realm) {
+        if (active != null && active != realm) {
+            LOG.fine("Security realm replaced, releasing the resources of the previous one");
+            active.shutdown();
+        }
+        active = realm;
+    }
+
+    /** Starts the cache warm-up once the jobs are loaded, when it is enabled. */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void startWarmUp() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null || !(jenkins.getSecurityRealm() instanceof CfUaaSecurityRealm)) {
+            return;
+        }
+        final CfUaaSecurityRealm realm = (CfUaaSecurityRealm) jenkins.getSecurityRealm();
+        if (realm.isWarmUpOnStartup()) {
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    realm.warmUp();
+                }
+            });
+        }
+    }
+
+    @Terminator
+    public static synchronized void shutdownActive() {
+        if (active != null) {
+            active.shutdown();
+            active = null;
+        }
+    }
+
     private void assertNotEmpty(String value, String name) {
         if(StringUtils.isEmpty(value)) {
             throw new IllegalArgumentException(String.format("%s must not be empty", new Object[]{name}));
@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+
+/**
+ * The details of a UAA user, as resolved by {@link CfApiUtil#loadUserByUsername(String)} and kept in the user cache.
+ *
+ * The authorities are an interned {@link AuthoritySet}, shared with the other users of the same organizations and
+ * roles, rather than an array per user.
+ */
+public final class CfUserDetails implements UserDetails {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String username;
+    private final AuthoritySet authorities;
+
+    CfUserDetails(final String username, final AuthoritySet authorities) {
+        this.username = username;
+        this.authorities = authorities;
+    }
+
+    /**
+     * Tells whether the user was granted the given organization or role authority, without building the array
+     * {@link #getAuthorities()} returns.
+     */
+    public boolean hasAuthority(final String authority) {
+        return authorities.contains(authority);
+    }
+
+    public GrantedAuthority[] getAuthorities() {
+        return authorities.toArray();
+    }
+
+    public String getPassword() {
+        return "RANDOM_PASSWORD";
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isAccountNonExpired() {
+        return true;
+    }
+
+    public boolean isAccountNonLocked() {
+        return true;
+    }
+
+    public boolean isCredentialsNonExpired() {
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CfUserDetails)) {
+            return false;
+        }
+        final CfUserDetails other = (CfUserDetails) o;
+        return username.equals(other.username) && authorities.equals(other.authorities);
+    }
+
+    @Override
+    public int hashCode() {
+        return username.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return username + " " + authorities.size() + " authorities";
+    }
+}
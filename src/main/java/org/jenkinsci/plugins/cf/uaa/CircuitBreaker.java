@@ -0,0 +1,181 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.acegisecurity.AuthenticationServiceException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Stops calling an endpoint group that keeps failing or answering slowly.
+ *
+ * The outcome of the last {@link #WINDOW_SIZE} calls is recorded. Once enough of them failed or were slower than
+ * the latency threshold, the breaker opens and calls are rejected right away with an {@link OpenException}. After
+ * the open duration a single trial call is let through: the breaker closes if it succeeds and opens again
+ * otherwise.
+ */
+class CircuitBreaker {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /** Number of recent calls the error and slow call rates are computed over. */
+    static final int WINDOW_SIZE = 20;
+
+    /** The breaker does not open before this many calls were recorded. */
+    static final int MINIMUM_CALLS = 10;
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final CfEndpoint endpoint;
+    private final Clock clock;
+    private final int failureRatePercent;
+    private final long slowCallMillis;
+    private final long openMillis;
+
+    /** Outcome of the recent calls, as a ring buffer. */
+    private final boolean[] failed = new boolean[WINDOW_SIZE];
+    private int next;
+    private int recorded;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param failureRatePercent percentage of failed or slow calls that opens the breaker.
+     * @param slowCallMillis     calls slower than this count as failures.
+     * @param openMillis         how long calls are rejected once the breaker opens.
+     */
+    CircuitBreaker(final CfEndpoint endpoint, final int failureRatePercent, final long slowCallMillis,
+                   final long openMillis) {
+        this(endpoint, failureRatePercent, slowCallMillis, openMillis, Clock.SYSTEM);
+    }
+
+    CircuitBreaker(final CfEndpoint endpoint, final int failureRatePercent, final long slowCallMillis,
+                   final long openMillis, final Clock clock) {
+        this.endpoint = endpoint;
+        this.clock = clock;
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Must be called before each call to the endpoint.
+     *
+     * @throws OpenException if the breaker is open.
+     */
+    synchronized void acquire() {
+        if (state == State.OPEN) {
+            if (clock.millis() - openedAt < openMillis) {
+                rejected.incrementAndGet();
+                throw new OpenException(endpoint);
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                rejected.incrementAndGet();
+                throw new OpenException(endpoint);
+            }
+            trialInFlight = true;
+        }
+    }
+
+    /** Records a call that got an answer, which counts as a failure if it took too long. */
+    void onSuccess(final long elapsedMillis) {
+        record(elapsedMillis > slowCallMillis);
+    }
+
+    /** Records a call that failed, because of an I/O error or a server side error status. */
+    void onFailure() {
+        record(true);
+    }
+
+    /** Releases the trial call slot of a call cancelled before it got an answer, which says nothing either way. */
+    synchronized void onCancelled() {
+        trialInFlight = false;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    CfEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /** Number of times the breaker opened. */
+    long getOpenedCount() {
+        return opened.get();
+    }
+
+    /** Number of calls rejected while the breaker was open. */
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private synchronized void record(final boolean failure) {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            reset();
+            transition(failure ? State.OPEN : State.CLOSED);
+            return;
+        }
+        if (recorded == WINDOW_SIZE && failed[next]) {
+            failures--;
+        }
+        failed[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW_SIZE;
+        recorded = Math.min(recorded + 1, WINDOW_SIZE);
+
+        if (state == State.CLOSED && recorded >= MINIMUM_CALLS
+                && failures * 100 >= failureRatePercent * recorded) {
+            reset();
+            transition(State.OPEN);
+        }
+    }
+
+    private void reset() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+
+    private void transition(final State to) {
+        if (to == State.OPEN) {
+            openedAt = clock.millis();
+            opened.incrementAndGet();
+            LOG.warning("Circuit breaker for " + endpoint + " opened, calls are rejected for "
+                    + openMillis + "ms");
+        } else if (to == State.CLOSED) {
+            LOG.info("Circuit breaker for " + endpoint + " closed");
+        } else {
+            LOG.fine("Circuit breaker for " + endpoint + " half-open, letting a trial call through");
+        }
+        state = to;
+    }
+
+    @Override
+    public String toString() {
+        return endpoint + " " + getState() + " (opened " + getOpenedCount() + " times, "
+                + getRejectedCount() + " calls rejected)";
+    }
+
+    /**
+     * Raised instead of calling an endpoint whose breaker is open.
+     */
+    static class OpenException extends AuthenticationServiceException {
+
+        OpenException(final CfEndpoint endpoint) {
+            super("Circuit breaker for " + endpoint + " is open");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.cf.uaa.models.ClientAccessToken;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the client_credentials token shared by every lookup done on behalf of the realm.
+ *
+ * The token is kept until it is about to expire and renewed in the background before that happens.
+ * Concurrent callers that find no usable token all wait on the same grant request, except that a login does not wait
+ * behind a background grant: that one may be held back by the {@link RateLimiter} while the login's is not.
+ */
+class ClientTokenHolder {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(ClientTokenHolder.class.getName());
+
+    /** Lifetime assumed when UAA does not send expires_in. */
+    private static final long DEFAULT_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * A token is not handed out anymore when it expires within this margin, or within a fifth of its lifetime when
+     * that is shorter, which is when it is renewed.
+     */
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Delay before retrying a failed background renewal. */
+    private static final long RENEWAL_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final AsyncFunction<RateLimiter.Priority, ClientAccessToken> grant;
+
+    private ClientAccessToken token;
+    private long expiresAt;
+    private long usableUntil;
+    private SettableFuture<ClientAccessToken> inFlight;
+    private RateLimiter.Priority inFlightPriority;
+    private ScheduledFuture<?> renewal;
+    private boolean closed;
+
+    /**
+     * @param grant requests a new client token at the given priority.
+     */
+    ClientTokenHolder(final AsyncFunction<RateLimiter.Priority, ClientAccessToken> grant) {
+        this.grant = grant;
+    }
+
+    /**
+     * Returns a valid client token, requesting a new one if the current one is missing or about to expire.
+     */
+    ClientAccessToken get() {
+        return CfFutures.await(getAsync(RateLimiter.Priority.INTERACTIVE));
+    }
+
+    /** Non-blocking variant of {@link #get()}, a new token is requested at the priority of the caller. */
+    ListenableFuture<ClientAccessToken> getAsync(final RateLimiter.Priority priority) {
+        synchronized (this) {
+            if (token != null && System.currentTimeMillis() < usableUntil) {
+                return Futures.immediateFuture(token);
+            }
+        }
+        return CfFutures.shared(grant(priority));
+    }
+
+    /**
+     * Drops the given token, typically after UAA or the Cloud Controller rejected it with a 401.
+     * The next call to {@link #get()} requests a fresh one.
+     */
+    synchronized void invalidate(final ClientAccessToken rejected) {
+        if (token == rejected) {
+            token = null;
+            expiresAt = 0;
+            usableUntil = 0;
+        }
+    }
+
+    /** Stops the background renewal. */
+    synchronized void close() {
+        closed = true;
+        token = null;
+        if (renewal != null) {
+            renewal.cancel(false);
+            renewal = null;
+        }
+    }
+
+    /**
+     * Starts a grant request unless one is already in flight, in which case that one is returned. An interactive
+     * caller starts its own rather than wait on a background one.
+     */
+    private ListenableFuture<ClientAccessToken> grant(final RateLimiter.Priority priority) {
+        final SettableFuture<ClientAccessToken> started;
+        synchronized (this) {
+            if (inFlight != null && (priority == RateLimiter.Priority.BACKGROUND
+                    || inFlightPriority == RateLimiter.Priority.INTERACTIVE)) {
+                return inFlight;
+            }
+            started = SettableFuture.create();
+            inFlight = started;
+            inFlightPriority = priority;
+        }
+        Futures.addCallback(CfFutures.start(new Callable<ListenableFuture<ClientAccessToken>>() {
+            public ListenableFuture<ClientAccessToken> call() throws Exception {
+                return grant.apply(priority);
+            }
+        }), new FutureCallback<ClientAccessToken>() {
+            public void onSuccess(final ClientAccessToken granted) {
+                // the token must be in place before the next caller can find no grant in flight.
+                synchronized (ClientTokenHolder.this) {
+                    update(granted);
+                    done(started);
+                }
+                started.set(granted);
+            }
+
+            public void onFailure(final Throwable t) {
+                synchronized (ClientTokenHolder.this) {
+                    done(started);
+                }
+                started.setException(t);
+            }
+        });
+        return started;
+    }
+
+    /** Forgets the given grant, unless an interactive one has replaced it in the meantime. */
+    private synchronized void done(final SettableFuture<ClientAccessToken> grant) {
+        if (inFlight == grant) {
+            inFlight = null;
+            inFlightPriority = null;
+        }
+    }
+
+    private synchronized void update(final ClientAccessToken granted) {
+        final long now = System.currentTimeMillis();
+        final long lifetime = granted.getExpiresIn() != null
+                ? TimeUnit.SECONDS.toMillis(granted.getExpiresIn())
+                : DEFAULT_LIFETIME_MILLIS;
+        token = granted;
+        expiresAt = now + lifetime;
+        usableUntil = expiresAt - Math.min(EXPIRY_MARGIN_MILLIS, lifetime / 5);
+        // renew once 80% of the lifetime is spent, leaving room for a few retries.
+        scheduleRenewal(lifetime - lifetime / 5);
+    }
+
+    private synchronized void scheduleRenewal(final long delayMillis) {
+        if (closed) {
+            return;
+        }
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+        renewal = Timer.get().schedule(new Runnable() {
+            public void run() {
+                renew();
+            }
+        }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void renew() {
+        Futures.addCallback(grant(RateLimiter.Priority.BACKGROUND), new FutureCallback<ClientAccessToken>() {
+            public void onSuccess(final ClientAccessToken granted) {
+                LOG.fine("Renewed the UAA client token.");
+            }
+
+            public void onFailure(final Throwable t) {
+                LOG.log(Level.WARNING, "Couldn't renew the UAA client token, will retry.", t);
+                synchronized (ClientTokenHolder.this) {
+                    if (token != null && System.currentTimeMillis() < expiresAt) {
+                        scheduleRenewal(RENEWAL_RETRY_MILLIS);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time the caches, the circuit breakers, the token verifier and the login renewals go by, which the tests
+ * replace to control expiry.
+ */
+abstract class Clock {
+
+    /** The system clock. */
+    static final Clock SYSTEM = new Clock() {
+        @Override
+        long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** The current time, in milliseconds since the epoch. */
+    abstract long millis();
+
+    /** The same time for the Guava caches, which read it in nanoseconds. */
+    Ticker ticker() {
+        return new Ticker() {
+            @Override
+            public long read() {
+                return TimeUnit.MILLISECONDS.toNanos(millis());
+            }
+        };
+    }
+}
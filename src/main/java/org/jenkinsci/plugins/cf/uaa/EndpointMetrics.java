@@ -0,0 +1,142 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request count, status breakdown, bytes read and latency of the calls made to one {@link CfEndpoint}, and the
+ * retries and hedges of its GETs. Each attempt is recorded as a call.
+ */
+class EndpointMetrics implements EndpointMetricsMXBean {
+
+    private final CfEndpoint endpoint;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong ioErrors = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    EndpointMetrics(final CfEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param status the response status, 0 if the call failed without a complete response.
+     */
+    void record(final int status, final long elapsedMillis, final long bytes) {
+        latency.record(elapsedMillis);
+        bytesRead.addAndGet(bytes);
+        if (status == 0) {
+            ioErrors.incrementAndGet();
+            return;
+        }
+        AtomicLong counter = statuses.get(status);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = statuses.putIfAbsent(status, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    void onRetry() {
+        retries.incrementAndGet();
+    }
+
+    void onHedge() {
+        hedges.incrementAndGet();
+    }
+
+    void onHedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    /** The latency below which the given fraction of the calls completed. */
+    long getPercentileMillis(final double fraction) {
+        return latency.getPercentile(fraction);
+    }
+
+    public String getName() {
+        return endpoint.name();
+    }
+
+    public long getErrorCount() {
+        long errors = ioErrors.get();
+        for (Map.Entry<Integer, AtomicLong> e : statuses.entrySet()) {
+            if (e.getKey() >= 400) {
+                errors += e.getValue().get();
+            }
+        }
+        return errors;
+    }
+
+    public long getIoErrorCount() {
+        return ioErrors.get();
+    }
+
+    public Map<String, Long> getStatusCounts() {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<Integer, AtomicLong> e : statuses.entrySet()) {
+            counts.put(String.valueOf(e.getKey()), e.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    public long getHedgeWinCount() {
+        return hedgesWon.get();
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public double getMeanMillis() {
+        return latency.getMeanMillis();
+    }
+
+    public long getP50Millis() {
+        return latency.getP50Millis();
+    }
+
+    public long getP99Millis() {
+        return latency.getP99Millis();
+    }
+
+    public long getP999Millis() {
+        return latency.getP999Millis();
+    }
+
+    public long getMaxMillis() {
+        return latency.getMaxMillis();
+    }
+
+    public Map<String, Long> getBuckets() {
+        return latency.getBuckets();
+    }
+
+    @Override
+    public String toString() {
+        return endpoint + " " + latency + ", " + getErrorCount() + " errors, " + getBytesRead() + " bytes read";
+    }
+}
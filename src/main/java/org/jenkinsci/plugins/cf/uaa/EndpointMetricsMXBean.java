@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.util.Map;
+
+/**
+ * Calls made to one endpoint group, as published over JMX. The latency attributes cover every call, successful
+ * or not.
+ */
+public interface EndpointMetricsMXBean extends LatencyHistogramMXBean {
+
+    /** The endpoint group. */
+    String getName();
+
+    /** Calls that failed with an I/O error or got an error status. */
+    long getErrorCount();
+
+    /** Calls that failed without a response, for instance on a timeout. */
+    long getIoErrorCount();
+
+    /** Number of responses per HTTP status. */
+    Map<String, Long> getStatusCounts();
+
+    /** Response body bytes read. */
+    long getBytesRead();
+
+    /** GETs sent again after a failure. */
+    long getRetryCount();
+
+    /** GETs sent a second time because the first one was slower than the p95 latency. */
+    long getHedgeCount();
+
+    /** Hedges that answered before the GET they duplicated. */
+    long getHedgeWinCount();
+}
@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Option;
+
+/**
+ * {@code invalidate-uaa-cache} CLI command, evicts cached users like the {@code securityRealm/invalidate} action,
+ * see {@link CfUaaSecurityRealm#invalidate(String, String, boolean, boolean)}.
+ */
+@Extension
+public class InvalidateUaaCacheCommand extends CLICommand {
+
+    @Option(name = "--user", usage = "Evicts this user")
+    public String user;
+
+    @Option(name = "--organization", usage = "Evicts the members of this organization")
+    public String organization;
+
+    @Option(name = "--all", usage = "Evicts all users")
+    public boolean all;
+
+    @Option(name = "--reload", usage = "Resolves the evicted users again in the background")
+    public boolean reload;
+
+    @Override
+    public String getShortDescription() {
+        return "Evicts users from the Cloud Foundry UAA user cache, so that membership changes show right away";
+    }
+
+    @Override
+    protected int run() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        jenkins.checkPermission(Jenkins.ADMINISTER);
+        if (!(jenkins.getSecurityRealm() instanceof CfUaaSecurityRealm)) {
+            stderr.println("The Cloud Foundry UAA security realm is not in use");
+            return 1;
+        }
+        try {
+            final int evicted = ((CfUaaSecurityRealm) jenkins.getSecurityRealm())
+                    .invalidate(user, organization, all, reload).size();
+            stdout.println(evicted + " users evicted");
+            return 0;
+        } catch (IllegalArgumentException e) {
+            stderr.println(e.getMessage() + ": use --user, --organization or --all");
+            return 2;
+        }
+    }
+}
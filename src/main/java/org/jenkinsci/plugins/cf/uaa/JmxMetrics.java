@@ -0,0 +1,58 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the plugin metrics as MXBeans of the platform MBean server, under the {@value #DOMAIN} domain.
+ */
+class JmxMetrics {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(JmxMetrics.class.getName());
+
+    static final String DOMAIN = "org.jenkinsci.plugins.cf.uaa";
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Registers a bean, replacing any bean already registered under the same name.
+     *
+     * @param properties the key properties of the object name, for instance {@code type=UserCache}.
+     */
+    synchronized <T> void register(final String properties, final Class<T> type, final T bean) {
+        try {
+            final ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(bean, type, true), name);
+            registered.add(name);
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "Failed to publish the " + properties + " metrics over JMX", e);
+        }
+    }
+
+    /** Unregisters all the beans registered by this instance. */
+    synchronized void unregisterAll() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                LOG.log(Level.FINE, "Failed to unregister " + name, e);
+            }
+        }
+        registered.clear();
+    }
+}
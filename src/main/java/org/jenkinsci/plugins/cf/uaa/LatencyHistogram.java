@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of call latencies, with fixed buckets growing roughly exponentially from 1ms to 1 minute.
+ */
+class LatencyHistogram implements LatencyHistogramMXBean {
+
+    /** Upper bounds of the buckets in milliseconds, the last bucket holds all the slower calls. */
+    private static final long[] BOUNDS = {
+            1, 2, 3, 5, 7, 10, 15, 20, 30, 50, 70, 100, 150, 200, 300, 500, 700,
+            1000, 1500, 2000, 3000, 5000, 7000, 10000, 15000, 20000, 30000, 60000
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    void record(final long millis) {
+        int bucket = Arrays.binarySearch(BOUNDS, millis);
+        if (bucket < 0) {
+            bucket = -bucket - 1;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        long max = maxMillis.get();
+        while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+            max = maxMillis.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) totalMillis.get() / n;
+    }
+
+    public long getP50Millis() {
+        return getPercentile(0.5);
+    }
+
+    public long getP99Millis() {
+        return getPercentile(0.99);
+    }
+
+    public long getP999Millis() {
+        return getPercentile(0.999);
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    public Map<String, Long> getBuckets() {
+        final Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < BOUNDS.length; i++) {
+            buckets.put("<=" + BOUNDS[i] + "ms", counts.get(i));
+        }
+        buckets.put(">" + BOUNDS[BOUNDS.length - 1] + "ms", counts.get(BOUNDS.length));
+        return buckets;
+    }
+
+    /** Upper bound of the bucket holding the given fraction of the calls. */
+    long getPercentile(final double fraction) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(fraction * n);
+        final long max = maxMillis.get();
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d calls, mean %.1fms, p50 %dms, p99 %dms, p999 %dms, max %dms", getCount(),
+                getMeanMillis(), getP50Millis(), getP99Millis(), getP999Millis(), getMaxMillis());
+    }
+}
@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.util.Map;
+
+/**
+ * Latency distribution of a kind of call, as published over JMX.
+ *
+ * Percentiles are the upper bound of the histogram bucket they fall in, capped by the slowest call.
+ */
+public interface LatencyHistogramMXBean {
+
+    /** Number of calls recorded. */
+    long getCount();
+
+    double getMeanMillis();
+
+    long getP50Millis();
+
+    long getP99Millis();
+
+    long getP999Millis();
+
+    long getMaxMillis();
+
+    /** Number of calls per bucket, keyed by the bucket upper bound. */
+    Map<String, Long> getBuckets();
+}
@@ -0,0 +1,32 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * The steps of a login, timed separately to tell which one a slow login spends its time in.
+ */
+enum LoginPhase {
+
+    /** Exchange of the authorization code for an access token. */
+    TOKEN_EXCHANGE("Token exchange"),
+
+    /** Exchange of the refresh token for a new access token, when a login is renewed. */
+    TOKEN_REFRESH("Token refresh"),
+
+    /** Resolution of the user profile, locally or with {@code /userinfo}. */
+    USER_INFO("User info"),
+
+    /** Listing of the organizations of the user. */
+    ORGANIZATIONS("Organizations"),
+
+    /** Update of the Jenkins user with the UAA profile. */
+    PROFILE_UPDATE("Profile update");
+
+    private final String displayName;
+
+    LoginPhase(final String displayName) {
+        this.displayName = displayName;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+}
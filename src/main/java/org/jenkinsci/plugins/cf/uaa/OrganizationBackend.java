@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.jenkinsci.plugins.cf.uaa.models.AccessToken;
+
+import java.util.List;
+
+/**
+ * Lists the organizations users are members of, and optionally their organization and space roles, which become
+ * their authorities.
+ *
+ * @see OrganizationsApi
+ */
+interface OrganizationBackend {
+
+    /** The names of the active organizations of the given user, listed with the client token. */
+    ListenableFuture<List<String>> getUserOrganizations(String userId, AccessToken accessToken);
+
+    /** The names of the active organizations of the user the token was issued to. */
+    ListenableFuture<List<String>> getCurrentUserOrganizations(AccessToken accessToken);
+
+    /**
+     * The organization names and the role authorities of the given user, as built by {@link UserRoles}, listed
+     * with the client token in a number of calls that does not depend on how many organizations and spaces the
+     * user has roles in.
+     *
+     * @param priority {@link RateLimiter.Priority#INTERACTIVE} when a login waits for the roles.
+     */
+    ListenableFuture<List<String>> getUserRoles(String userId, AccessToken accessToken,
+                                                RateLimiter.Priority priority);
+}
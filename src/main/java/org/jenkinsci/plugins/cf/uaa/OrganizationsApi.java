@@ -0,0 +1,26 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * The Cloud Controller API the organization memberships are read from.
+ */
+public enum OrganizationsApi {
+
+    /** {@code /v2/users/{id}/organizations}, every organization with all its fields, filtered by status here. */
+    V2("Cloud Controller v2"),
+
+    /**
+     * {@code /v3/roles}, filtered by user and role type on the server and including only the organizations. Falls
+     * back to v2 when the Cloud Controller has no v3 API.
+     */
+    V3("Cloud Controller v3, falling back to v2");
+
+    private final String displayName;
+
+    OrganizationsApi(final String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,324 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import jenkins.util.Timer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket throttling the calls made to one server, so that Jenkins stays under the rate limits the platform
+ * enforces rather than getting 429 answers.
+ *
+ * The bucket holds at most a second worth of permits. A call that finds no permit waits in the queue of its
+ * {@link Priority}, and the interactive queue is always served first: a login only waits for the logins queued
+ * before it, however many background lookups are queued. When the server answers with a {@code Retry-After} header,
+ * no call is made until the time it asks for has passed.
+ *
+ * Nothing blocks: queued calls are started by a {@link Timer} task once their permit is available, and cancelling
+ * the future of a queued call removes it from the queue.
+ */
+class RateLimiter implements RateLimiterMXBean {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(RateLimiter.class.getName());
+
+    /** {@code Retry-After} answers asking for longer pauses are capped to this. */
+    static final long MAX_PAUSE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** The priority classes, in the order their queues are served. */
+    enum Priority {
+
+        /** Calls a user is waiting for, on the login page. */
+        INTERACTIVE,
+
+        /** User lookups for builds and API clients, cache refreshes and warm-ups, session renewals. */
+        BACKGROUND
+    }
+
+    private final CfEndpoint.Upstream upstream;
+
+    private final Map<Priority, Queue<Pending<?>>> queues = createQueues();
+    private final Map<Priority, LatencyHistogram> waits = createWaits();
+
+    /** 0 when the calls are only throttled by {@code Retry-After} answers. */
+    private double permitsPerSecond;
+    private double permits;
+    private long refilledAt = System.nanoTime();
+    private long pausedUntil = System.nanoTime();
+    private ScheduledFuture<?> drain;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retryAfters = new AtomicLong();
+
+    RateLimiter(final CfEndpoint.Upstream upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * Sets the rate of the calls, 0 to only throttle them on {@code Retry-After} answers. The bucket starts full.
+     */
+    synchronized void setPermitsPerSecond(final double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        permits = burst();
+        refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Starts the call once a permit is available, right away if there is one and no call is queued.
+     *
+     * @return completes like the future returned by the call; cancelling it cancels the call, or removes it from the
+     * queue if it did not start yet.
+     */
+    <T> ListenableFuture<T> submit(final Priority priority, final Callable<ListenableFuture<T>> call) {
+        final Pending<T> pending = new Pending<T>(priority, call);
+        final boolean permitted;
+        synchronized (this) {
+            permitted = !isQueued() && tryAcquire(System.nanoTime());
+            if (!permitted) {
+                queues.get(priority).add(pending);
+                throttled.incrementAndGet();
+                scheduleDrain(System.nanoTime());
+            }
+        }
+        if (permitted) {
+            pending.start();
+            return pending.result;
+        }
+        pending.result.addListener(new Runnable() {
+            public void run() {
+                if (pending.result.isCancelled()) {
+                    dequeue(pending);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return pending.result;
+    }
+
+    /**
+     * Pauses the calls after a {@code Retry-After} answer.
+     *
+     * @param millis the time the server asked to wait for.
+     */
+    void pause(final long millis) {
+        final long delay = Math.min(Math.max(millis, 0), MAX_PAUSE_MILLIS);
+        retryAfters.incrementAndGet();
+        synchronized (this) {
+            final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+                permits = 0;
+            }
+        }
+        LOG.warning(upstream + " asked to retry after " + millis + "ms, pausing the calls for " + delay + "ms");
+    }
+
+    /** Fails the queued calls and stops the queue. */
+    void close() {
+        final List<Pending<?>> dropped = new ArrayList<Pending<?>>();
+        synchronized (this) {
+            if (drain != null) {
+                drain.cancel(false);
+                drain = null;
+            }
+            for (Queue<Pending<?>> queue : queues.values()) {
+                dropped.addAll(queue);
+                queue.clear();
+            }
+        }
+        for (Pending<?> pending : dropped) {
+            pending.result.cancel(false);
+        }
+    }
+
+    public String getName() {
+        return upstream.name();
+    }
+
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public synchronized int getInteractiveQueueDepth() {
+        return queues.get(Priority.INTERACTIVE).size();
+    }
+
+    public synchronized int getBackgroundQueueDepth() {
+        return queues.get(Priority.BACKGROUND).size();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public long getRetryAfterCount() {
+        return retryAfters.get();
+    }
+
+    public synchronized long getPausedMillis() {
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime()), 0);
+    }
+
+    public double getInteractiveMeanWaitMillis() {
+        return waits.get(Priority.INTERACTIVE).getMeanMillis();
+    }
+
+    public long getInteractiveP99WaitMillis() {
+        return waits.get(Priority.INTERACTIVE).getP99Millis();
+    }
+
+    public double getBackgroundMeanWaitMillis() {
+        return waits.get(Priority.BACKGROUND).getMeanMillis();
+    }
+
+    public long getBackgroundP99WaitMillis() {
+        return waits.get(Priority.BACKGROUND).getP99Millis();
+    }
+
+    /** Starts the queued calls that have a permit, the interactive ones first. */
+    private void drain() {
+        final List<Pending<?>> ready = new ArrayList<Pending<?>>();
+        synchronized (this) {
+            drain = null;
+            final long now = System.nanoTime();
+            serve:
+            for (Priority priority : Priority.values()) {
+                final Queue<Pending<?>> queue = queues.get(priority);
+                while (!queue.isEmpty()) {
+                    if (!tryAcquire(now)) {
+                        break serve;
+                    }
+                    ready.add(queue.poll());
+                }
+            }
+            scheduleDrain(now);
+        }
+        for (Pending<?> pending : ready) {
+            pending.start();
+        }
+    }
+
+    private synchronized void dequeue(final Pending<?> pending) {
+        queues.get(pending.priority).remove(pending);
+    }
+
+    private void scheduleDrain(final long now) {
+        if (drain != null || !isQueued()) {
+            return;
+        }
+        drain = Timer.get().schedule(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, nanosUntilPermit(now), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean isQueued() {
+        for (Queue<Pending<?>> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean tryAcquire(final long now) {
+        if (now - pausedUntil < 0) {
+            return false;
+        }
+        if (permitsPerSecond <= 0) {
+            return true;
+        }
+        refill(now);
+        if (permits < 1) {
+            return false;
+        }
+        permits--;
+        return true;
+    }
+
+    private void refill(final long now) {
+        if (permitsPerSecond > 0) {
+            permits = Math.min(burst(), permits + (now - refilledAt) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        }
+        refilledAt = now;
+    }
+
+    private long nanosUntilPermit(final long now) {
+        if (now - pausedUntil < 0) {
+            return pausedUntil - now;
+        }
+        if (permitsPerSecond <= 0 || permits >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - permits) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private double burst() {
+        return Math.max(permitsPerSecond, 1);
+    }
+
+    private static Map<Priority, Queue<Pending<?>>> createQueues() {
+        final Map<Priority, Queue<Pending<?>>> queues = new EnumMap<Priority, Queue<Pending<?>>>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<Pending<?>>());
+        }
+        return queues;
+    }
+
+    private static Map<Priority, LatencyHistogram> createWaits() {
+        final Map<Priority, LatencyHistogram> waits = new EnumMap<Priority, LatencyHistogram>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            waits.put(priority, new LatencyHistogram());
+        }
+        return waits;
+    }
+
+    @Override
+    public String toString() {
+        return upstream + " " + (getPermitsPerSecond() > 0 ? getPermitsPerSecond() + " calls/s" : "unlimited")
+                + " (" + getInteractiveQueueDepth() + " interactive and " + getBackgroundQueueDepth()
+                + " background calls queued, " + getThrottledCount() + " throttled)";
+    }
+
+    /** A call waiting for its permit. */
+    private final class Pending<T> {
+
+        private final Priority priority;
+        private final Callable<ListenableFuture<T>> call;
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final long queuedAt = System.nanoTime();
+
+        Pending(final Priority priority, final Callable<ListenableFuture<T>> call) {
+            this.priority = priority;
+            this.call = call;
+        }
+
+        void start() {
+            if (result.isCancelled()) {
+                return;
+            }
+            waits.get(priority).record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt));
+            final ListenableFuture<T> started = CfFutures.start(call);
+            CfFutures.forward(started, result);
+            result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled()) {
+                        started.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+}
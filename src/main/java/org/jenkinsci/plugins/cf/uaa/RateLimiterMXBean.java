@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * Throttling of the calls made to one server, as published over JMX.
+ */
+public interface RateLimiterMXBean {
+
+    /** The server, {@code UAA} or {@code CLOUD_CONTROLLER}. */
+    String getName();
+
+    /** The configured rate, 0 when only {@code Retry-After} answers throttle the calls. */
+    double getPermitsPerSecond();
+
+    /** Calls waiting for a login. */
+    int getInteractiveQueueDepth();
+
+    /** Calls waiting for a user lookup, a cache refresh or a warm-up. */
+    int getBackgroundQueueDepth();
+
+    /** Calls that had to wait. */
+    long getThrottledCount();
+
+    /** Number of {@code Retry-After} answers that paused the calls. */
+    long getRetryAfterCount();
+
+    /** Time left before the calls resume after a {@code Retry-After} answer, 0 if they are not paused. */
+    long getPausedMillis();
+
+    double getInteractiveMeanWaitMillis();
+
+    long getInteractiveP99WaitMillis();
+
+    double getBackgroundMeanWaitMillis();
+
+    long getBackgroundP99WaitMillis();
+}
@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link CfHttpClient} retries and hedges its GET requests, which are all idempotent. Token POSTs are never
+ * retried: an authorization code can only be redeemed once.
+ *
+ * A GET failing with an I/O error or a 429, 502, 503 or 504 answer is retried after a random delay of up to
+ * {@link #BASE_BACKOFF_MILLIS} times 2^retry, capped to {@link #MAX_BACKOFF_MILLIS}, so that the calls failed by
+ * the same outage do not come back all at once. An open circuit breaker is never retried.
+ *
+ * When hedging, a GET that did not answer within the p95 latency of its endpoint group is sent a second time and
+ * the first answer wins. Each GET earns a fraction of a hedge, so that hedges stay within a percentage of the calls
+ * even when the servers slow down and every call gets past the p95.
+ */
+class RetryPolicy {
+
+    static final int DEFAULT_MAX_RETRIES = 2;
+
+    static final int DEFAULT_HEDGE_BUDGET_PERCENT = 5;
+
+    static final long BASE_BACKOFF_MILLIS = 100;
+
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    /** A GET still waiting for its answer after this latency percentile of its endpoint group is hedged. */
+    static final double HEDGE_PERCENTILE = 0.95;
+
+    /** No hedge is sent before the endpoint group latency was observed this many times. */
+    static final long MIN_HEDGE_SAMPLES = 20;
+
+    /** Hedges saved up while the servers were fast, so that a burst of slow calls cannot use more than this. */
+    private static final double MAX_HEDGE_CREDITS = 10;
+
+    private final int maxRetries;
+    private final boolean hedging;
+    private final double hedgesPerCall;
+
+    private final Random random = new Random();
+    private double hedgeCredits;
+
+    /**
+     * @param maxRetries         retries of a failed GET, 0 to never retry.
+     * @param hedging            whether slow GETs are sent a second time.
+     * @param hedgeBudgetPercent hedges allowed per 100 GETs.
+     */
+    RetryPolicy(final int maxRetries, final boolean hedging, final int hedgeBudgetPercent) {
+        this.maxRetries = Math.max(maxRetries, 0);
+        this.hedging = hedging && hedgeBudgetPercent > 0;
+        this.hedgesPerCall = hedgeBudgetPercent / 100.0;
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    boolean isHedging() {
+        return hedging;
+    }
+
+    /** Whether a GET failed with this, after the given number of retries, is retried. */
+    boolean shouldRetry(final Throwable failure, final int retries) {
+        if (retries >= maxRetries || failure instanceof CancellationException
+                || failure instanceof CircuitBreaker.OpenException) {
+            return false;
+        }
+        if (failure instanceof IOException) {
+            return true;
+        }
+        if (failure instanceof CfApiException) {
+            final int status = ((CfApiException) failure).getStatus();
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        return false;
+    }
+
+    /** The delay before the given retry, counted from 0, with full jitter. */
+    long backoffMillis(final int retry) {
+        final long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(retry, 20));
+        return (long) (random.nextDouble() * cap);
+    }
+
+    /** Must be called for each GET, it adds its share to the hedge budget. */
+    synchronized void onCall() {
+        if (hedging) {
+            hedgeCredits = Math.min(hedgeCredits + hedgesPerCall, MAX_HEDGE_CREDITS);
+        }
+    }
+
+    /** Takes a hedge from the budget, if there is one left. */
+    synchronized boolean tryHedge() {
+        if (!hedging || hedgeCredits < 1) {
+            return false;
+        }
+        hedgeCredits--;
+        return true;
+    }
+}
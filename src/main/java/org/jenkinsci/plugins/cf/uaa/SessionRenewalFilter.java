@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.PluginServletFilter;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * Renews the UAA logins kept in the HTTP sessions, see {@link UaaSession}.
+ *
+ * A request never waits for a renewal: the one finding it due starts it, and the first one after it completed
+ * installs the renewed authentication, which the security filters then save in the session.
+ */
+public class SessionRenewalFilter implements Filter {
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() throws ServletException {
+        PluginServletFilter.addFilter(new SessionRenewalFilter());
+    }
+
+    public void init(final FilterConfig filterConfig) {
+    }
+
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+            throws IOException, ServletException {
+        if (request instanceof HttpServletRequest) {
+            renew(((HttpServletRequest) request).getSession(false));
+        }
+        chain.doFilter(request, response);
+    }
+
+    public void destroy() {
+    }
+
+    private static void renew(final HttpSession session) {
+        final Object attribute = session != null ? session.getAttribute(UaaSession.ATTRIBUTE) : null;
+        if (!(attribute instanceof UaaSession)) {
+            return;
+        }
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null || !(jenkins.getSecurityRealm() instanceof CfUaaSecurityRealm)
+                || !((CfUaaSecurityRealm) jenkins.getSecurityRealm()).isRenewSessions()) {
+            session.removeAttribute(UaaSession.ATTRIBUTE);
+            return;
+        }
+        final UaaSession login = (UaaSession) attribute;
+        final Authentication current = SecurityContextHolder.getContext().getAuthentication();
+        if (current == null || !login.getAuthentication().getName().equals(current.getName())) {
+            // logged out, or logged in again since.
+            session.removeAttribute(UaaSession.ATTRIBUTE);
+            return;
+        }
+        final UaaSession renewed = login.poll(((CfUaaSecurityRealm) jenkins.getSecurityRealm()).getApi());
+        if (renewed != null) {
+            session.setAttribute(UaaSession.ATTRIBUTE, renewed);
+            SecurityContextHolder.getContext().setAuthentication(renewed.getAuthentication());
+        }
+    }
+}
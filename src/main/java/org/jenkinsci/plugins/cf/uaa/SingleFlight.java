@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls made for the same key: the first caller runs the call, the others wait for it and
+ * get the same result or the same exception.
+ *
+ * Nothing is kept once the call completes, a later call for the same key runs again.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, ListenableFuture<V>> inFlight = new ConcurrentHashMap<K, ListenableFuture<V>>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    V execute(final K key, final Callable<V> call) {
+        final ListenableFutureTask<V> task = ListenableFutureTask.create(call);
+        final ListenableFuture<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            // a view, so that an interrupted waiter does not cancel the call the others wait for.
+            return CfFutures.await(CfFutures.shared(existing));
+        }
+        executed.incrementAndGet();
+        try {
+            task.run();
+            return CfFutures.await(task);
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    /**
+     * Same as {@link #execute(Object, Callable)} for a non-blocking call. Each caller gets its own view of the shared
+     * call, cancelling it does not affect the other callers.
+     */
+    ListenableFuture<V> executeAsync(final K key, final Callable<ListenableFuture<V>> call) {
+        final SettableFuture<V> shared = SettableFuture.create();
+        final ListenableFuture<V> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return CfFutures.shared(existing);
+        }
+        executed.incrementAndGet();
+        shared.addListener(new Runnable() {
+            public void run() {
+                inFlight.remove(key, shared);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        CfFutures.forward(CfFutures.start(call), shared);
+        return CfFutures.shared(shared);
+    }
+
+    /** Number of calls that actually ran. */
+    long getExecutedCount() {
+        return executed.get();
+    }
+
+    /** Number of calls that waited for another one instead of running. */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
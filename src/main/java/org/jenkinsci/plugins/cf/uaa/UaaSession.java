@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A login to Jenkins through UAA, with the refresh token it was granted.
+ *
+ * Kept in the HTTP session, it lets {@link SessionRenewalFilter} renew the access token and the authorities of the
+ * user before the access token expires, rather than sending the user back to the UAA login page. The refresh token
+ * never leaves the server.
+ */
+final class UaaSession implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(UaaSession.class.getName());
+
+    /** Name of the HTTP session attribute holding the login. */
+    static final String ATTRIBUTE = UaaSession.class.getName();
+
+    /** Delay before retrying a renewal that failed for another reason than a rejected refresh token. */
+    private static final long RENEWAL_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final UsernamePasswordAuthenticationToken authentication;
+    private final String refreshToken;
+
+    /** When the renewal is due, {@link Long#MAX_VALUE} when the login cannot be renewed. */
+    private long renewAt;
+
+    private transient Clock clock;
+    private transient ListenableFuture<UaaSession> renewal;
+
+    /**
+     * @param expiresIn the lifetime of the access token in seconds, {@code null} if UAA did not tell.
+     */
+    UaaSession(final UsernamePasswordAuthenticationToken authentication, final String refreshToken,
+               final Integer expiresIn) {
+        this(authentication, refreshToken, expiresIn, Clock.SYSTEM);
+    }
+
+    UaaSession(final UsernamePasswordAuthenticationToken authentication, final String refreshToken,
+               final Integer expiresIn, final Clock clock) {
+        this.authentication = authentication;
+        this.refreshToken = refreshToken;
+        this.clock = clock;
+        if (refreshToken == null || expiresIn == null) {
+            renewAt = Long.MAX_VALUE;
+        } else {
+            // renew once 80% of the lifetime is spent, leaving room for a few retries, as the client token does.
+            final long lifetime = TimeUnit.SECONDS.toMillis(expiresIn);
+            renewAt = clock.millis() + lifetime - lifetime / 5;
+        }
+    }
+
+    UsernamePasswordAuthenticationToken getAuthentication() {
+        return authentication;
+    }
+
+    String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /** Tells whether the login has what it takes to be renewed. */
+    boolean isRenewable() {
+        return renewAt != Long.MAX_VALUE;
+    }
+
+    /**
+     * Called on every request of the session: starts the renewal once it is due, without waiting for it.
+     *
+     * @return the renewed login once the renewal completed, {@code null} until then.
+     */
+    synchronized UaaSession poll(final CfApiUtil api) {
+        if (renewal == null) {
+            if (clock.millis() < renewAt) {
+                return null;
+            }
+            LOG.fine("Renewing the login of " + authentication.getName());
+            renewal = api.renewAsync(this);
+        }
+        if (!renewal.isDone()) {
+            return null;
+        }
+        try {
+            return Uninterruptibles.getUninterruptibly(renewal);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof CfApiException
+                    && (((CfApiException) cause).isUnauthorized() || ((CfApiException) cause).getStatus() == 400)) {
+                // the refresh token expired or was revoked, the login lasts as long as the HTTP session, as before.
+                LOG.fine("The refresh token of " + authentication.getName() + " was rejected, not renewing anymore");
+                renewAt = Long.MAX_VALUE;
+            } else {
+                LOG.log(Level.WARNING, "Couldn't renew the login of " + authentication.getName() + ", will retry",
+                        cause);
+                renewAt = clock.millis() + RENEWAL_RETRY_MILLIS;
+            }
+            renewal = null;
+            return null;
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        clock = Clock.SYSTEM;
+    }
+}
@@ -0,0 +1,263 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.acegisecurity.BadCredentialsException;
+import org.apache.commons.codec.binary.Base64;
+import org.jenkinsci.plugins.cf.uaa.models.TokenKey;
+import org.jenkinsci.plugins.cf.uaa.models.TokenKeys;
+import org.jenkinsci.plugins.cf.uaa.models.UaaUserProfile;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies UAA access tokens locally, against the public keys published on {@code /token_keys}.
+ *
+ * The keys are cached by key id and fetched again when a token is signed with an unknown one, which happens
+ * when UAA rotates its signing key. Concurrent callers share the same {@code /token_keys} request. Only the tokens
+ * issued by the configured UAA for the {@code openid} scope are verified locally, the others are left to
+ * {@code /userinfo}.
+ */
+class UaaTokenVerifier {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(UaaTokenVerifier.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The keys are not fetched more often than this, whatever the tokens we are given. */
+    private static final long MIN_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Tolerated clock difference with UAA when checking the expiry. */
+    private static final long CLOCK_SKEW_SECONDS = 60;
+
+    /** The scope a token needs for {@code /userinfo}, and so for its profile to be read locally. */
+    private static final String OPENID_SCOPE = "openid";
+
+    private final String issuer;
+    private final Callable<ListenableFuture<TokenKeys>> keySource;
+    private final Clock clock;
+    private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+    private volatile long lastRefresh;
+    private SettableFuture<Void> refreshing;
+
+    /**
+     * @param uaaServerEndpoint the UAA the tokens must have been issued by.
+     */
+    UaaTokenVerifier(final String uaaServerEndpoint, final Callable<ListenableFuture<TokenKeys>> keySource) {
+        this(uaaServerEndpoint, keySource, Clock.SYSTEM);
+    }
+
+    UaaTokenVerifier(final String uaaServerEndpoint, final Callable<ListenableFuture<TokenKeys>> keySource,
+                     final Clock clock) {
+        this.issuer = uaaServerEndpoint.replaceAll("/+$", "") + "/oauth/token";
+        this.keySource = keySource;
+        this.clock = clock;
+    }
+
+    /**
+     * Builds the user profile from the claims of the given access token.
+     *
+     * @return the profile, or {@code null} when the token cannot be verified locally (not a signed JWT, unknown
+     * algorithm or key, another issuer, no {@code openid} scope) or lacks some of the claims, in which case the
+     * caller should ask UAA.
+     * @throws BadCredentialsException if the signature is invalid, or the token has expired or has no expiry.
+     */
+    UaaUserProfile getUserProfile(final String accessToken) {
+        return CfFutures.await(getUserProfileAsync(accessToken));
+    }
+
+    /**
+     * Non-blocking variant of {@link #getUserProfile(String)}, which only waits when the token is signed with a key
+     * that has to be fetched first.
+     */
+    ListenableFuture<UaaUserProfile> getUserProfileAsync(final String accessToken) {
+        return Futures.transform(loadKeyOf(accessToken), new Function<Void, UaaUserProfile>() {
+            public UaaUserProfile apply(final Void loaded) {
+                return profileOf(accessToken);
+            }
+        });
+    }
+
+    private UaaUserProfile profileOf(final String accessToken) {
+        final Map<String, Object> claims = verify(accessToken);
+        if (claims == null) {
+            return null;
+        }
+        final Object userId = claims.get("user_id");
+        final Object userName = claims.get("user_name");
+        final Object email = claims.get("email");
+        if (!(userId instanceof String) || !(userName instanceof String) || !(email instanceof String)) {
+            LOG.fine("Access token lacks the user claims, falling back to /userinfo");
+            return null;
+        }
+        final UaaUserProfile profile = new UaaUserProfile();
+        profile.setUserId((String) userId);
+        profile.setUserName((String) userName);
+        profile.setEmail((String) email);
+        if (claims.get("given_name") instanceof String) {
+            profile.setGivenName((String) claims.get("given_name"));
+        }
+        if (claims.get("family_name") instanceof String) {
+            profile.setFamilyName((String) claims.get("family_name"));
+        }
+        return profile;
+    }
+
+    /**
+     * Returns the verified claims of the token, or {@code null} if it cannot be verified locally. Only the keys
+     * already loaded are used, see {@link #loadKeyOf(String)}.
+     */
+    Map<String, Object> verify(final String accessToken) {
+        final String[] parts = accessToken.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            final Map<String, Object> header = CfJson.MAP.readValue(Base64.decodeBase64(parts[0]));
+            if (!isSupported(header)) {
+                LOG.fine("Unsupported token algorithm " + header.get("alg") + " or key id " + header.get("kid"));
+                return null;
+            }
+            final PublicKey key = lookup((String) header.get("kid"));
+            if (key == null) {
+                LOG.fine("No UAA token key with id " + header.get("kid"));
+                return null;
+            }
+
+            final Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initVerify(key);
+            signature.update((parts[0] + "." + parts[1]).getBytes(UTF8));
+            if (!signature.verify(Base64.decodeBase64(parts[2]))) {
+                throw new BadCredentialsException("Invalid access token signature");
+            }
+
+            final Map<String, Object> claims = CfJson.MAP.readValue(Base64.decodeBase64(parts[1]));
+            final Object exp = claims.get("exp");
+            if (!(exp instanceof Number)) {
+                throw new BadCredentialsException("Access token has no expiry");
+            }
+            if (((Number) exp).longValue() + CLOCK_SKEW_SECONDS < TimeUnit.MILLISECONDS.toSeconds(clock.millis())) {
+                throw new BadCredentialsException("Access token has expired");
+            }
+            if (!issuer.equals(claims.get("iss"))) {
+                LOG.fine("Access token issued by " + claims.get("iss") + " rather than " + issuer);
+                return null;
+            }
+            final Object scope = claims.get("scope");
+            if (!(scope instanceof List) || !((List<?>) scope).contains(OPENID_SCOPE)) {
+                LOG.fine("Access token lacks the openid scope, falling back to /userinfo");
+                return null;
+            }
+            return claims;
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Couldn't parse the access token", e);
+            return null;
+        } catch (GeneralSecurityException e) {
+            LOG.log(Level.WARNING, "Couldn't verify the access token signature", e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the token keys again when the token is signed with an unknown key, unless they were fetched
+     * recently. The returned future completes once the keys are loaded, right away if nothing has to be fetched.
+     */
+    private ListenableFuture<Void> loadKeyOf(final String accessToken) {
+        final String[] parts = accessToken.split("\\.");
+        if (parts.length == 3) {
+            try {
+                final Map<String, Object> header = CfJson.MAP.readValue(Base64.decodeBase64(parts[0]));
+                if (isSupported(header) && lookup((String) header.get("kid")) == null) {
+                    return refresh();
+                }
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Couldn't parse the access token", e);
+            }
+        }
+        return Futures.immediateFuture(null);
+    }
+
+    /** Whether the token is signed with an algorithm we verify, and names its key the way UAA does. */
+    private static boolean isSupported(final Map<String, Object> header) {
+        final Object kid = header.get("kid");
+        return "RS256".equals(header.get("alg")) && (kid == null || kid instanceof String);
+    }
+
+    private PublicKey lookup(final String kid) {
+        final Map<String, PublicKey> current = keys;
+        if (kid != null) {
+            return current.get(kid);
+        }
+        // tokens issued before key ids were introduced, only usable when UAA has a single key.
+        return current.size() == 1 ? current.values().iterator().next() : null;
+    }
+
+    private synchronized ListenableFuture<Void> refresh() {
+        if (refreshing != null) {
+            return CfFutures.shared(refreshing);
+        }
+        if (clock.millis() - lastRefresh <= MIN_REFRESH_INTERVAL_MILLIS) {
+            return Futures.immediateFuture(null);
+        }
+        lastRefresh = clock.millis();
+        final SettableFuture<Void> done = SettableFuture.create();
+        refreshing = done;
+        Futures.addCallback(CfFutures.start(keySource), new FutureCallback<TokenKeys>() {
+            public void onSuccess(final TokenKeys fetched) {
+                try {
+                    final Map<String, PublicKey> loaded = new HashMap<String, PublicKey>();
+                    for (TokenKey tokenKey : fetched.getKeys()) {
+                        if ("RSA".equals(tokenKey.getKty()) && tokenKey.getModulus() != null
+                                && tokenKey.getExponent() != null) {
+                            loaded.put(tokenKey.getKid() != null ? tokenKey.getKid() : "", toPublicKey(tokenKey));
+                        }
+                    }
+                    keys = loaded;
+                    LOG.fine("Loaded " + loaded.size() + " UAA token keys");
+                } catch (GeneralSecurityException e) {
+                    LOG.log(Level.WARNING, "Couldn't load the UAA token keys", e);
+                } finally {
+                    finish(done);
+                }
+            }
+
+            public void onFailure(final Throwable t) {
+                LOG.log(Level.WARNING, "Couldn't load the UAA token keys", t);
+                finish(done);
+            }
+        });
+        return CfFutures.shared(done);
+    }
+
+    private void finish(final SettableFuture<Void> done) {
+        synchronized (this) {
+            refreshing = null;
+        }
+        done.set(null);
+    }
+
+    private static PublicKey toPublicKey(final TokenKey tokenKey) throws GeneralSecurityException {
+        final BigInteger modulus = new BigInteger(1, Base64.decodeBase64(tokenKey.getModulus()));
+        final BigInteger exponent = new BigInteger(1, Base64.decodeBase64(tokenKey.getExponent()));
+        return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+    }
+}
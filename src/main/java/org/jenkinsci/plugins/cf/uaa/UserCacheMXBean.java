@@ -0,0 +1,29 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * Statistics of the {@link UserDetailsCache}, as published over JMX.
+ */
+public interface UserCacheMXBean {
+
+    long getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getNotFoundHitCount();
+
+    long getEvictionCount();
+
+    long getCoalescedCount();
+
+    long getRefreshCount();
+
+    long getRefreshFailureCount();
+
+    long getStaleServedCount();
+
+    int getPendingRefreshCount();
+
+    double getHitRate();
+}
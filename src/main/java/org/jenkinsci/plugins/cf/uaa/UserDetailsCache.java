@@ -0,0 +1,397 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of the {@link UserDetails} resolved by {@link CfApiUtil#loadUserByUsername(String)}.
+ *
+ * Entries are evicted in least-recently-used order once the cache is full and expire a fixed time after
+ * being written. Users unknown to UAA are remembered separately, with a shorter lifetime.
+ *
+ * An entry older than the refresh delay is still returned, but a background refresh of it is scheduled after a
+ * random delay so that users cached at the same time are not all refreshed at once. Only entries past the
+ * expiry are resolved again on the caller's thread.
+ *
+ * Expired entries are kept for a grace period and served as last known good while UAA or the Cloud Controller
+ * is unavailable, that is while one of the circuit breakers is open.
+ *
+ * A user invalidated while being loaded is not cached with the result of that load, which may predate the change
+ * the invalidation was made for.
+ */
+class UserDetailsCache implements UserCacheMXBean {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(UserDetailsCache.class.getName());
+
+    /** Upper bound of the random delay added before a background refresh. */
+    private static final long MAX_REFRESH_JITTER_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final Cache<String, Entry> users;
+    private final Cache<String, Boolean> notFound;
+    private final long ttlMillis;
+    private final long refreshAfterMillis;
+    private final long refreshJitterMillis;
+    private final Clock clock;
+
+    private final SingleFlight<String, UserDetails> loads = new SingleFlight<String, UserDetails>();
+    /** The loads in flight, by user name, flagged when the user is invalidated before they complete. */
+    private final ConcurrentHashMap<String, AtomicBoolean> loading = new ConcurrentHashMap<String, AtomicBoolean>();
+    private final ScheduledThreadPoolExecutor refresher;
+    private final Random random = new Random();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notFoundHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong modifications = new AtomicLong();
+
+    /**
+     * @param refreshAfterSeconds age after which an entry is refreshed in the background, entries are only
+     *                            refreshed on expiry when it is not lower than {@code ttlSeconds}.
+     * @param refreshThreads      number of threads refreshing entries in the background.
+     * @param staleGraceSeconds   how long an expired entry can still be served while an endpoint is unavailable.
+     */
+    UserDetailsCache(final int maximumSize, final long ttlSeconds, final long notFoundTtlSeconds,
+                     final long refreshAfterSeconds, final int refreshThreads, final long staleGraceSeconds) {
+        this(maximumSize, ttlSeconds, notFoundTtlSeconds, refreshAfterSeconds, refreshThreads, staleGraceSeconds,
+                Clock.SYSTEM);
+    }
+
+    UserDetailsCache(final int maximumSize, final long ttlSeconds, final long notFoundTtlSeconds,
+                     final long refreshAfterSeconds, final int refreshThreads, final long staleGraceSeconds,
+                     final Clock clock) {
+        this.clock = clock;
+        final RemovalListener<String, Object> evictionCounter = new RemovalListener<String, Object>() {
+            public void onRemoval(final RemovalNotification<String, Object> notification) {
+                if (notification.wasEvicted()) {
+                    evictions.incrementAndGet();
+                }
+            }
+        };
+        users = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds + staleGraceSeconds, TimeUnit.SECONDS)
+                .ticker(clock.ticker())
+                .removalListener(evictionCounter)
+                .build();
+        notFound = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(notFoundTtlSeconds, TimeUnit.SECONDS)
+                .ticker(clock.ticker())
+                .removalListener(evictionCounter)
+                .build();
+
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        refreshAfterMillis = refreshAfterSeconds < ttlSeconds
+                ? TimeUnit.SECONDS.toMillis(refreshAfterSeconds) : Long.MAX_VALUE;
+        // spread the refreshes over a tenth of the remaining lifetime at most.
+        refreshJitterMillis = Math.min(MAX_REFRESH_JITTER_MILLIS,
+                TimeUnit.SECONDS.toMillis(Math.max(ttlSeconds - refreshAfterSeconds, 0)) / 10);
+        refresher = new ScheduledThreadPoolExecutor(refreshThreads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "UserDetailsCache.refresher"));
+    }
+
+    /**
+     * Returns the cached details of the given user, resolving them with the loader on a miss.
+     * Concurrent misses for the same user share a single call to the loader.
+     *
+     * @throws UsernameNotFoundException if the user is unknown, either now or at a recent lookup.
+     */
+    UserDetails get(final String userName, final Callable<UserDetails> loader) {
+        final Entry cached = users.getIfPresent(userName);
+        final long age = cached != null ? clock.millis() - cached.loadedAt : Long.MAX_VALUE;
+        if (age < ttlMillis) {
+            hits.incrementAndGet();
+            if (age >= refreshAfterMillis) {
+                scheduleRefresh(userName, cached, loader);
+            }
+            return cached.details;
+        }
+        if (cached == null && notFound.getIfPresent(userName) != null) {
+            notFoundHits.incrementAndGet();
+            throw new UsernameNotFoundException("No UAA user named " + userName);
+        }
+        misses.incrementAndGet();
+        try {
+            return load(userName, loader);
+        } catch (CircuitBreaker.OpenException e) {
+            if (cached == null) {
+                throw e;
+            }
+            staleServed.incrementAndGet();
+            LOG.fine("Serving the last known details of " + userName + ": " + e.getMessage());
+            return cached.details;
+        }
+    }
+
+    /** Caches the details of a user resolved ahead of time, unless the user is already cached. */
+    void putIfAbsent(final String userName, final UserDetails details) {
+        if (users.asMap().putIfAbsent(userName, new Entry(details, clock.millis())) == null) {
+            modifications.incrementAndGet();
+        }
+    }
+
+    /**
+     * Puts back the details of a user saved before a restart, unless they expired since. They keep the time they
+     * were resolved at, so they are refreshed and expire as if Jenkins had not restarted.
+     */
+    void restore(final String userName, final UserDetails details, final long loadedAt) {
+        if (clock.millis() - loadedAt < ttlMillis) {
+            users.asMap().putIfAbsent(userName, new Entry(details, loadedAt));
+        }
+    }
+
+    void invalidate(final String userName) {
+        final AtomicBoolean load = loading.get(userName);
+        if (load != null) {
+            load.set(true);
+        }
+        users.invalidate(userName);
+        notFound.invalidate(userName);
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Evicts the cached users granted the given authority, an organization name or a role, so that a change of
+     * their memberships shows at their next lookup.
+     *
+     * @return the names of the evicted users.
+     */
+    List<String> invalidateMembersOf(final String authority) {
+        // the users being loaded may have just joined, their memberships are not known yet.
+        invalidateLoading();
+        final List<String> members = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : users.asMap().entrySet()) {
+            if (hasAuthority(e.getValue().details, authority)) {
+                members.add(e.getKey());
+            }
+        }
+        users.invalidateAll(members);
+        if (!members.isEmpty()) {
+            modifications.incrementAndGet();
+        }
+        return members;
+    }
+
+    /** The names of the cached users. */
+    List<String> getUserNames() {
+        return new ArrayList<String>(users.asMap().keySet());
+    }
+
+    void invalidateAll() {
+        invalidateLoading();
+        users.invalidateAll();
+        notFound.invalidateAll();
+        modifications.incrementAndGet();
+    }
+
+    /** The entries that have not expired, to be saved. */
+    Map<String, Entry> snapshot() {
+        final long now = clock.millis();
+        final Map<String, Entry> snapshot = new HashMap<String, Entry>();
+        for (Map.Entry<String, Entry> e : users.asMap().entrySet()) {
+            if (now - e.getValue().loadedAt < ttlMillis) {
+                snapshot.put(e.getKey(), e.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    /** Number of entries loaded or removed so far, tells whether there is anything new to save. */
+    long getModificationCount() {
+        return modifications.get();
+    }
+
+    /** Stops the background refreshes. */
+    void close() {
+        refresher.shutdownNow();
+    }
+
+    public long getSize() {
+        return users.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getNotFoundHitCount() {
+        return notFoundHits.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** Number of misses that waited for a concurrent lookup of the same user instead of loading it. */
+    public long getCoalescedCount() {
+        return loads.getCoalescedCount();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    public long getRefreshFailureCount() {
+        return refreshFailures.get();
+    }
+
+    /** Number of expired entries served because an endpoint was unavailable. */
+    public long getStaleServedCount() {
+        return staleServed.get();
+    }
+
+    /** Number of background refreshes waiting for a thread. */
+    public int getPendingRefreshCount() {
+        return refresher.getQueue().size();
+    }
+
+    /** Fraction of the lookups, including the ones for unknown users, answered from the cache. */
+    public double getHitRate() {
+        final long answered = hits.get() + notFoundHits.get();
+        final long total = answered + misses.get();
+        return total == 0 ? 1.0 : (double) answered / total;
+    }
+
+    private UserDetails load(final String userName, final Callable<UserDetails> loader) {
+        return loads.execute(userName, new Callable<UserDetails>() {
+            public UserDetails call() throws Exception {
+                final AtomicBoolean invalidated = new AtomicBoolean();
+                loading.put(userName, invalidated);
+                try {
+                    final UserDetails details = loader.call();
+                    if (putLoaded(users, userName, new Entry(details, clock.millis()), invalidated)) {
+                        modifications.incrementAndGet();
+                    }
+                    return details;
+                } catch (UsernameNotFoundException e) {
+                    users.invalidate(userName);
+                    putLoaded(notFound, userName, Boolean.TRUE, invalidated);
+                    throw e;
+                } finally {
+                    loading.remove(userName, invalidated);
+                }
+            }
+        });
+    }
+
+    /**
+     * Caches the result of a load unless the user was invalidated while it was in flight. The flag is checked again
+     * after the put, since the invalidation may have come in between and found nothing to remove yet.
+     *
+     * @return whether the result was cached.
+     */
+    private static <V> boolean putLoaded(final Cache<String, V> cache, final String userName, final V value,
+                                         final AtomicBoolean invalidated) {
+        if (invalidated.get()) {
+            return false;
+        }
+        cache.put(userName, value);
+        if (invalidated.get()) {
+            cache.asMap().remove(userName, value);
+            return false;
+        }
+        return true;
+    }
+
+    /** Keeps the loads in flight from caching what they resolved. */
+    private void invalidateLoading() {
+        for (AtomicBoolean load : loading.values()) {
+            load.set(true);
+        }
+    }
+
+    private void scheduleRefresh(final String userName, final Entry entry, final Callable<UserDetails> loader) {
+        if (refresher.isShutdown() || !entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        final long delay;
+        synchronized (random) {
+            delay = refreshJitterMillis > 0 ? (long) (random.nextDouble() * refreshJitterMillis) : 0;
+        }
+        refresher.schedule(new Runnable() {
+            public void run() {
+                try {
+                    load(userName, loader);
+                    refreshes.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // keep serving the current entry until it expires.
+                    refreshFailures.incrementAndGet();
+                    LOG.log(Level.FINE, "Failed to refresh the details of " + userName, e);
+                    entry.refreshing.set(false);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d users cached, hit rate %.1f%% (%d hits, %d not found hits, %d misses, "
+                        + "%d coalesced, %d evictions, %d refreshes, %d failed refreshes, %d served stale)",
+                getSize(), getHitRate() * 100, getHitCount(), getNotFoundHitCount(), getMissCount(),
+                getCoalescedCount(), getEvictionCount(), getRefreshCount(), getRefreshFailureCount(),
+                getStaleServedCount());
+    }
+
+    private static boolean hasAuthority(final UserDetails details, final String authority) {
+        if (details instanceof CfUserDetails) {
+            return ((CfUserDetails) details).hasAuthority(authority);
+        }
+        for (GrantedAuthority granted : details.getAuthorities()) {
+            if (authority.equals(granted.getAuthority())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A cached user along with the time it was resolved. */
+    static final class Entry {
+
+        private final UserDetails details;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(final UserDetails details, final long loadedAt) {
+            this.details = details;
+            this.loadedAt = loadedAt;
+        }
+
+        UserDetails getDetails() {
+            return details;
+        }
+
+        long getLoadedAt() {
+            return loadedAt;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps user names to their UAA user id (GUID).
+ *
+ * A UAA user id never changes, so entries are kept until they have not been used for a long time, much longer
+ * than the authorities in {@link UserDetailsCache}. The cache is bounded: once full, the least recently used entries
+ * are evicted, and the idle ones are dropped as the cache is used rather than when they are looked up again. The
+ * entries can optionally be saved to disk so they survive a restart, see {@link CacheSnapshot}.
+ */
+class UserIdCache implements UserIdCacheMXBean {
+
+    private final Clock clock;
+    private final Cache<String, Entry> entries;
+    private final long idleTtlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong modifications = new AtomicLong();
+
+    /**
+     * @param maximumSize   number of user ids kept at most.
+     * @param idleTtlMillis how long an entry is kept without being used.
+     */
+    UserIdCache(final int maximumSize, final long idleTtlMillis) {
+        this(maximumSize, idleTtlMillis, Clock.SYSTEM);
+    }
+
+    UserIdCache(final int maximumSize, final long idleTtlMillis, final Clock clock) {
+        this.clock = clock;
+        this.idleTtlMillis = idleTtlMillis;
+        entries = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleTtlMillis, TimeUnit.MILLISECONDS)
+                .ticker(clock.ticker())
+                .removalListener(new RemovalListener<String, Entry>() {
+                    public void onRemoval(final RemovalNotification<String, Entry> notification) {
+                        if (notification.getCause() == RemovalCause.EXPIRED) {
+                            expired.incrementAndGet();
+                        } else if (notification.getCause() == RemovalCause.SIZE) {
+                            evictions.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /** Returns the known user id of the given user, or {@code null}. */
+    String get(final String userName) {
+        final Entry entry = entries.getIfPresent(userName);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        final long now = clock.millis();
+        if (now - entry.lastUsed > idleTtlMillis) {
+            // a restored entry keeps the time of its last use before the restart.
+            if (entries.asMap().remove(userName, entry)) {
+                expired.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastUsed = now;
+        hits.incrementAndGet();
+        return entry.id;
+    }
+
+    void put(final String userName, final String userId) {
+        entries.put(userName, new Entry(userId, clock.millis()));
+        modifications.incrementAndGet();
+    }
+
+    /** Puts back an entry saved before a restart, unless it has not been used for too long. */
+    void restore(final String userName, final String userId, final long lastUsed) {
+        if (clock.millis() - lastUsed <= idleTtlMillis) {
+            entries.asMap().putIfAbsent(userName, new Entry(userId, lastUsed));
+        }
+    }
+
+    void invalidate(final String userName) {
+        if (entries.asMap().remove(userName) != null) {
+            modifications.incrementAndGet();
+        }
+    }
+
+    /** Returns the names of the users whose id was used most recently, most recent first. */
+    List<String> getRecentlyUsed(final int limit) {
+        final List<Map.Entry<String, Entry>> recent
+                = new ArrayList<Map.Entry<String, Entry>>(entries.asMap().entrySet());
+        Collections.sort(recent, new Comparator<Map.Entry<String, Entry>>() {
+            public int compare(final Map.Entry<String, Entry> a, final Map.Entry<String, Entry> b) {
+                final long x = a.getValue().lastUsed;
+                final long y = b.getValue().lastUsed;
+                return x > y ? -1 : x < y ? 1 : 0;
+            }
+        });
+        final long now = clock.millis();
+        final List<String> userNames = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : recent) {
+            if (userNames.size() >= limit || now - e.getValue().lastUsed > idleTtlMillis) {
+                break;
+            }
+            userNames.add(e.getKey());
+        }
+        return userNames;
+    }
+
+    void invalidateAll() {
+        entries.invalidateAll();
+        modifications.incrementAndGet();
+    }
+
+    /** The entries that have not expired, to be saved. */
+    Map<String, Entry> snapshot() {
+        final long now = clock.millis();
+        final Map<String, Entry> snapshot = new HashMap<String, Entry>();
+        for (Map.Entry<String, Entry> e : entries.asMap().entrySet()) {
+            if (now - e.getValue().lastUsed <= idleTtlMillis) {
+                snapshot.put(e.getKey(), e.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    /** Number of entries added or removed so far, tells whether there is anything new to save. */
+    long getModificationCount() {
+        return modifications.get();
+    }
+
+    public int getSize() {
+        entries.cleanUp();
+        return (int) entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    static final class Entry {
+
+        private final String id;
+        private volatile long lastUsed;
+
+        Entry(final String id, final long lastUsed) {
+            this.id = id;
+            this.lastUsed = lastUsed;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        long getLastUsed() {
+            return lastUsed;
+        }
+    }
+}
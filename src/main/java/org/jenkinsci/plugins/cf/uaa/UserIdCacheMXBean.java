@@ -0,0 +1,19 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+/**
+ * Statistics of the {@link UserIdCache}, as published over JMX.
+ */
+public interface UserIdCacheMXBean {
+
+    int getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /** Entries dropped because they had not been used for too long. */
+    long getExpiredCount();
+
+    /** Entries dropped because the cache was full. */
+    long getEvictionCount();
+}
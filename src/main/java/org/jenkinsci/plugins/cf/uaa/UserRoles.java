@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The organization and space roles of a user, as read from the Cloud Controller, turned into authority names.
+ *
+ * The roles refer to organizations and spaces by guid, and may be read before the organizations and spaces
+ * themselves, so the names are only resolved by {@link #getAuthorities()}. A member of an organization gets its name
+ * as authority, as before role authorities existed; the other roles give {@code org:role} and
+ * {@code org/space:role} authorities, e.g. {@code acme:manager} or {@code acme/staging:developer}. Nothing is
+ * granted for a suspended organization or its spaces.
+ *
+ * Not thread-safe: each page of a listing is read into its own instance, then added to the listing one after the
+ * other.
+ */
+final class UserRoles {
+
+    /** The role making a user a member of an organization, which grants the bare organization name. */
+    static final String MEMBER = "user";
+
+    private final Map<String, String> organizationNames = new HashMap<String, String>();
+    private final Set<String> suspended = new HashSet<String>();
+    private final Map<String, Space> spaces = new HashMap<String, Space>();
+    private final List<String[]> organizationRoles = new ArrayList<String[]>();
+    private final List<String[]> spaceRoles = new ArrayList<String[]>();
+
+    void addOrganization(final String guid, final String name, final boolean active) {
+        organizationNames.put(guid, name);
+        if (!active) {
+            suspended.add(guid);
+        }
+    }
+
+    void addSpace(final String guid, final String name, final String organizationGuid) {
+        spaces.put(guid, new Space(name, organizationGuid));
+    }
+
+    /** @param role the role without its {@code organization_} prefix, {@link #MEMBER} for a plain membership. */
+    void addOrganizationRole(final String organizationGuid, final String role) {
+        organizationRoles.add(new String[]{organizationGuid, role});
+    }
+
+    /** @param role the role without its {@code space_} prefix. */
+    void addSpaceRole(final String spaceGuid, final String role) {
+        spaceRoles.add(new String[]{spaceGuid, role});
+    }
+
+    /** Adds the organizations, spaces and roles of another page of the same listing. */
+    void addAll(final UserRoles page) {
+        organizationNames.putAll(page.organizationNames);
+        suspended.addAll(page.suspended);
+        spaces.putAll(page.spaces);
+        organizationRoles.addAll(page.organizationRoles);
+        spaceRoles.addAll(page.spaceRoles);
+    }
+
+    /**
+     * The authority names: organization names first, then the organization roles, then the space roles. Roles in
+     * an organization or space the listing did not describe are left out.
+     */
+    List<String> getAuthorities() {
+        final Set<String> members = new LinkedHashSet<String>();
+        final Set<String> roles = new LinkedHashSet<String>();
+        for (String[] role : organizationRoles) {
+            final String organization = activeOrganizationName(role[0]);
+            if (organization == null) {
+                continue;
+            }
+            if (MEMBER.equals(role[1])) {
+                members.add(organization);
+            } else {
+                roles.add(organization + ":" + role[1]);
+            }
+        }
+        for (String[] role : spaceRoles) {
+            final Space space = spaces.get(role[0]);
+            final String organization = space != null ? activeOrganizationName(space.organizationGuid) : null;
+            if (organization != null) {
+                roles.add(organization + "/" + space.name + ":" + role[1]);
+            }
+        }
+        final List<String> authorities = new ArrayList<String>(members.size() + roles.size());
+        authorities.addAll(members);
+        authorities.addAll(roles);
+        return authorities;
+    }
+
+    private String activeOrganizationName(final String guid) {
+        return guid != null && !suspended.contains(guid) ? organizationNames.get(guid) : null;
+    }
+
+    private static final class Space {
+
+        private final String name;
+        private final String organizationGuid;
+
+        Space(final String name, final String organizationGuid) {
+            this.name = name;
+            this.organizationGuid = organizationGuid;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.client.utils.URIBuilder;
+import org.jenkinsci.plugins.cf.uaa.models.AccessToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/**
+ * Lists organization memberships with the Cloud Controller v3 API.
+ *
+ * The memberships of a user are its organization roles, {@code /v3/roles} filters them by user and role type on
+ * the server and includes the organizations they belong to, so a single page usually holds them all. Only the
+ * name and the {@code suspended} flag of the organizations are read from the response.
+ *
+ * A user deleted from UAA has no roles, unlike with v2 which answers 404 for an unknown user.
+ *
+ * With role authorities, {@code /v3/roles} is queried for all the role types, including the organizations and
+ * spaces the roles refer to.
+ *
+ * Until the first call tells otherwise, the Cloud Controller is assumed to serve v3. Once it answers 404, every
+ * call goes to the fallback backend instead.
+ */
+class V3OrganizationBackend implements OrganizationBackend {
+
+    /** Used for logging purposes. */
+    private static final Logger LOG = Logger.getLogger(V3OrganizationBackend.class.getName());
+
+    /** The largest page size of the v3 API. */
+    static final int PER_PAGE = 5000;
+
+    /** The role types making a user a member of an organization. */
+    private static final String ORGANIZATION_ROLES =
+            "organization_user,organization_manager,organization_billing_manager,organization_auditor";
+
+    private final CfHttpClient http;
+    private final String apiServerEndpoint;
+    private final OrganizationBackend fallback;
+
+    private volatile boolean unavailable;
+
+    V3OrganizationBackend(final CfHttpClient http, final String apiServerEndpoint,
+                          final OrganizationBackend fallback) {
+        this.http = http;
+        this.apiServerEndpoint = apiServerEndpoint;
+        this.fallback = fallback;
+    }
+
+    public ListenableFuture<List<String>> getUserOrganizations(final String userId, final AccessToken accessToken) {
+        if (unavailable) {
+            return fallback.getUserOrganizations(userId, accessToken);
+        }
+        final ListenableFuture<List<String>> organizations = list(new Callable<String>() {
+            public String call() throws URISyntaxException {
+                return new URIBuilder(apiServerEndpoint + "/v3/roles")
+                        .addParameter("user_guids", userId)
+                        .addParameter("types", ORGANIZATION_ROLES)
+                        .addParameter("include", "organization")
+                        .addParameter("per_page", String.valueOf(PER_PAGE))
+                        .build().toString();
+            }
+        }, accessToken, RateLimiter.Priority.BACKGROUND);
+        return CfFutures.withFallback(organizations, new CfFutures.Fallback<List<String>>() {
+            public ListenableFuture<List<String>> create(final Throwable failure) {
+                if (isMissing(failure)) {
+                    return fallback.getUserOrganizations(userId, accessToken);
+                }
+                return Futures.immediateFailedFuture(failure);
+            }
+        });
+    }
+
+    public ListenableFuture<List<String>> getCurrentUserOrganizations(final AccessToken accessToken) {
+        if (unavailable) {
+            return fallback.getCurrentUserOrganizations(accessToken);
+        }
+        final ListenableFuture<List<String>> organizations = list(new Callable<String>() {
+            public String call() throws URISyntaxException {
+                return new URIBuilder(apiServerEndpoint + "/v3/organizations")
+                        .addParameter("per_page", String.valueOf(PER_PAGE))
+                        .build().toString();
+            }
+        }, accessToken, RateLimiter.Priority.INTERACTIVE);
+        return CfFutures.withFallback(organizations, new CfFutures.Fallback<List<String>>() {
+            public ListenableFuture<List<String>> create(final Throwable failure) {
+                if (isMissing(failure)) {
+                    return fallback.getCurrentUserOrganizations(accessToken);
+                }
+                return Futures.immediateFailedFuture(failure);
+            }
+        });
+    }
+
+    /**
+     * Reads every role of the user with the organizations and spaces they refer to, which takes a single call
+     * unless the user has more than {@link #PER_PAGE} roles.
+     */
+    public ListenableFuture<List<String>> getUserRoles(final String userId, final AccessToken accessToken,
+                                                       final RateLimiter.Priority priority) {
+        if (unavailable) {
+            return fallback.getUserRoles(userId, accessToken, priority);
+        }
+        final ListenableFuture<UserRoles> roles = CfFutures.start(new Callable<ListenableFuture<UserRoles>>() {
+            public ListenableFuture<UserRoles> call() throws URISyntaxException {
+                final String url = new URIBuilder(apiServerEndpoint + "/v3/roles")
+                        .addParameter("user_guids", userId)
+                        .addParameter("include", "organization,space")
+                        .addParameter("per_page", String.valueOf(PER_PAGE))
+                        .build().toString();
+                return listRoles(url, accessToken, priority, new UserRoles());
+            }
+        });
+        final ListenableFuture<List<String>> authorities = CfFutures.wrapFailures(
+                Futures.transform(roles, new Function<UserRoles, List<String>>() {
+                    public List<String> apply(final UserRoles all) {
+                        return all.getAuthorities();
+                    }
+                }), LOG, "An exception raised while trying get user's roles.");
+        return CfFutures.withFallback(authorities, new CfFutures.Fallback<List<String>>() {
+            public ListenableFuture<List<String>> create(final Throwable failure) {
+                if (isMissing(failure)) {
+                    return fallback.getUserRoles(userId, accessToken, priority);
+                }
+                return Futures.immediateFailedFuture(failure);
+            }
+        });
+    }
+
+    /** Tells whether the call failed because the v3 API is missing, and remembers it. */
+    private boolean isMissing(final Throwable failure) {
+        if (!(failure instanceof CfApiException) || ((CfApiException) failure).getStatus() != 404) {
+            return false;
+        }
+        if (!unavailable) {
+            unavailable = true;
+            LOG.info("The Cloud Controller at " + apiServerEndpoint + " has no v3 API, using v2 instead");
+        }
+        return true;
+    }
+
+    /** Reads the listing starting at the given url, following the next page links. */
+    private ListenableFuture<List<String>> list(final Callable<String> firstUrl, final AccessToken accessToken,
+                                                final RateLimiter.Priority priority) {
+        final ListenableFuture<Set<String>> names = CfFutures.start(new Callable<ListenableFuture<Set<String>>>() {
+            public ListenableFuture<Set<String>> call() throws Exception {
+                return list(firstUrl.call(), accessToken, priority, new LinkedHashSet<String>());
+            }
+        });
+        return CfFutures.wrapFailures(Futures.transform(names, new Function<Set<String>, List<String>>() {
+            public List<String> apply(final Set<String> all) {
+                return new ArrayList<String>(all);
+            }
+        }), LOG, "An exception raised while trying get user's organizations.");
+    }
+
+    private ListenableFuture<UserRoles> listRoles(final String url, final AccessToken accessToken,
+                                                  final RateLimiter.Priority priority, final UserRoles roles) {
+        // a retried or hedged request reads its own page, the listing only takes the page that won.
+        final ListenableFuture<RolesPage> page = http.getAsync(CfEndpoint.ORGANIZATIONS, priority, url,
+                CfApiUtil.authorization(accessToken),
+                new CfApiUtil.JsonResponseHandler<RolesPage>("Couldn't retrieve user's roles") {
+                    @Override
+                    protected RolesPage read(final InputStream in) throws IOException {
+                        final RolesPage page = new RolesPage();
+                        page.nextUrl = CfJson.readV3Roles(in, page.roles);
+                        return page;
+                    }
+                });
+        return Futures.transform(page, new AsyncFunction<RolesPage, UserRoles>() {
+            public ListenableFuture<UserRoles> apply(final RolesPage received) {
+                roles.addAll(received.roles);
+                return received.nextUrl == null
+                        ? Futures.immediateFuture(roles)
+                        : listRoles(received.nextUrl, accessToken, priority, roles);
+            }
+        });
+    }
+
+    private ListenableFuture<Set<String>> list(final String url, final AccessToken accessToken,
+                                               final RateLimiter.Priority priority, final Set<String> names) {
+        final ListenableFuture<CfJson.V3OrganizationPage> page = http.getAsync(CfEndpoint.ORGANIZATIONS, priority,
+                url, CfApiUtil.authorization(accessToken),
+                new CfApiUtil.JsonResponseHandler<CfJson.V3OrganizationPage>(
+                        "Couldn't retrieve user's organizations") {
+                    @Override
+                    protected CfJson.V3OrganizationPage read(final InputStream in) throws IOException {
+                        return CfJson.readV3Organizations(in);
+                    }
+                });
+        return Futures.transform(page, new AsyncFunction<CfJson.V3OrganizationPage, Set<String>>() {
+            public ListenableFuture<Set<String>> apply(final CfJson.V3OrganizationPage organizations) {
+                names.addAll(organizations.getActiveNames());
+                if (organizations.getNextUrl() == null) {
+                    return Futures.immediateFuture(names);
+                }
+                return list(organizations.getNextUrl(), accessToken, priority, names);
+            }
+        });
+    }
+
+    /** A page of roles, with the link to the next one. */
+    private static final class RolesPage {
+
+        private final UserRoles roles = new UserRoles();
+        private String nextUrl;
+    }
+}
@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.cf.uaa.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TokenKey {
+
+    @JsonProperty("kid")
+    private String kid;
+
+    @JsonProperty("kty")
+    private String kty;
+
+    @JsonProperty("alg")
+    private String alg;
+
+    @JsonProperty("n")
+    private String modulus;
+
+    @JsonProperty("e")
+    private String exponent;
+
+    public String getKid() {
+        return kid;
+    }
+
+    public void setKid(String kid) {
+        this.kid = kid;
+    }
+
+    public String getKty() {
+        return kty;
+    }
+
+    public void setKty(String kty) {
+        this.kty = kty;
+    }
+
+    public String getAlg() {
+        return alg;
+    }
+
+    public void setAlg(String alg) {
+        this.alg = alg;
+    }
+
+    public String getModulus() {
+        return modulus;
+    }
+
+    public void setModulus(String modulus) {
+        this.modulus = modulus;
+    }
+
+    public String getExponent() {
+        return exponent;
+    }
+
+    public void setExponent(String exponent) {
+        this.exponent = exponent;
+    }
+}
@@ -0,0 +1,22 @@
+package org.jenkinsci.plugins.cf.uaa.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TokenKeys {
+
+    @JsonProperty("keys")
+    private List<TokenKey> keys = new ArrayList<TokenKey>();
+
+    public List<TokenKey> getKeys() {
+        return keys;
+    }
+
+    public void setKeys(List<TokenKey> keys) {
+        this.keys = keys;
+    }
+}
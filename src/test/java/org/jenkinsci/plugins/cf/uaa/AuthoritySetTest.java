@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.security.SecurityRealm;
+import org.acegisecurity.GrantedAuthority;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AuthoritySetTest {
+
+    @Test
+    public void holdsManyConsecutiveAuthorities() {
+        final List<String> names = newNames(101);
+        final AuthoritySet set = AuthoritySet.of(names.subList(0, 100));
+
+        assertEquals(101, set.size());
+        for (String name : names.subList(0, 100)) {
+            assertTrue(set.contains(name));
+        }
+        assertTrue(set.contains(SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority()));
+        // numbered right after the last one of the set, and past it once the set is held as bits.
+        assertFalse(set.contains(names.get(100)));
+        assertNames(set, names.subList(0, 100));
+    }
+
+    @Test
+    public void holdsAFewAuthoritiesFarApart() {
+        final List<String> names = newNames(200);
+        final List<String> granted = Arrays.asList(names.get(199), names.get(0), names.get(100));
+        final AuthoritySet set = AuthoritySet.of(granted);
+
+        assertEquals(4, set.size());
+        for (String name : granted) {
+            assertTrue(set.contains(name));
+        }
+        assertFalse(set.contains(names.get(50)));
+        assertFalse(set.contains(names.get(198)));
+        assertNames(set, granted);
+    }
+
+    @Test
+    public void listsTheAuthoritiesInTheOrderTheyWereFirstGranted() {
+        final List<String> names = newNames(200);
+        final String authenticated = SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority();
+
+        assertEquals(Arrays.asList(authenticated, names.get(0), names.get(100), names.get(199)),
+                namesOf(AuthoritySet.of(Arrays.asList(names.get(199), names.get(0), names.get(100)))));
+        assertEquals(Arrays.asList(authenticated, names.get(0), names.get(1), names.get(2)),
+                namesOf(AuthoritySet.of(Arrays.asList(names.get(2), names.get(0), names.get(1)))));
+    }
+
+    @Test
+    public void ignoresUnknownNamesAndDuplicates() {
+        final List<String> names = newNames(2);
+        final AuthoritySet set = AuthoritySet.of(Arrays.asList(names.get(0), names.get(0), names.get(1)));
+
+        assertEquals(3, set.size());
+        assertFalse(set.contains("never-granted-" + UUID.randomUUID()));
+    }
+
+    @Test
+    public void sharesOneInstancePerSet() {
+        final List<String> names = newNames(3);
+        final AuthoritySet set = AuthoritySet.of(names);
+
+        assertSame(set, AuthoritySet.of(Arrays.asList(names.get(2), names.get(1), names.get(0))));
+        assertSame(set.toArray()[1], AuthoritySet.of(names.subList(0, 1)).toArray()[1]);
+    }
+
+    @Test
+    public void serializesTheNames() throws Exception {
+        final List<String> names = newNames(100);
+        for (AuthoritySet set : Arrays.asList(AuthoritySet.of(names), AuthoritySet.of(names.subList(90, 91)))) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(set);
+            out.close();
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+            assertSame(set, in.readObject());
+        }
+    }
+
+    /** Names never granted before, so they get consecutive numbers. */
+    private static List<String> newNames(final int count) {
+        final String prefix = "org-" + UUID.randomUUID() + "-";
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i);
+            AuthorityDictionary.intern(prefix + i);
+        }
+        return names;
+    }
+
+    private static void assertNames(final AuthoritySet set, final List<String> expected) {
+        final Set<String> all = new HashSet<String>(expected);
+        all.add(SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority());
+        assertEquals(all, new HashSet<String>(namesOf(set)));
+    }
+
+    private static List<String> namesOf(final AuthoritySet set) {
+        final List<String> names = new ArrayList<String>();
+        for (GrantedAuthority authority : set.toArray()) {
+            names.add(authority.getAuthority());
+        }
+        return names;
+    }
+}
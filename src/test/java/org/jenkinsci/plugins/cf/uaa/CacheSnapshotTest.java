@@ -0,0 +1,193 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import hudson.security.SecurityRealm;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheSnapshotTest {
+
+    private static final String ALICE_ID = "7d1a6b52-3b4e-4f7e-9a55-0c5c1e6f0a11";
+
+    private static final long USER_TTL_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final FakeClock clock = new FakeClock();
+    private File file;
+    private CacheSnapshot snapshot;
+    private UserDetailsCache users;
+
+    @Before
+    public void createFile() {
+        file = CacheSnapshot.defaultFile(home.getRoot());
+    }
+
+    @After
+    public void close() {
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        if (users != null) {
+            users.close();
+        }
+    }
+
+    @Test
+    public void restoresWhatWasSaved() {
+        final UserIdCache ids = newUserIdCache();
+        ids.put("alice", ALICE_ID);
+        ids.put("bob", "bob-legacy-id");
+        save(ids, UserDetailsCacheTest.user("alice", "acme", "acme:manager"),
+                UserDetailsCacheTest.user("bob", "globex"));
+
+        final UserIdCache restoredIds = newUserIdCache();
+        users = newUserCache();
+        load(restoredIds, users);
+
+        assertEquals(ALICE_ID, restoredIds.get("alice"));
+        assertEquals("bob-legacy-id", restoredIds.get("bob"));
+        assertEquals(new HashSet<String>(Arrays.asList(SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority(),
+                "acme", "acme:manager")), names(users.get("alice", unreachable())));
+        assertTrue(((CfUserDetails) users.get("bob", unreachable())).hasAuthority("globex"));
+    }
+
+    @Test
+    public void leavesOutWhatExpiredSince() {
+        final UserIdCache ids = newUserIdCache();
+        ids.put("alice", ALICE_ID);
+        save(ids, UserDetailsCacheTest.user("alice", "acme"));
+
+        clock.advance(USER_TTL_SECONDS + 1, TimeUnit.SECONDS);
+        final UserIdCache restoredIds = newUserIdCache();
+        users = newUserCache();
+        load(restoredIds, users);
+
+        assertEquals(ALICE_ID, restoredIds.get("alice"));
+        assertEquals(0, users.getSize());
+    }
+
+    @Test
+    public void deletesAFileWithAnImpossibleCount() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x43465541);
+        out.writeInt(1);
+        out.writeLong(clock.millis());
+        out.writeInt(Integer.MAX_VALUE);
+        out.close();
+        write(bytes.toByteArray());
+
+        final UserIdCache ids = newUserIdCache();
+        users = newUserCache();
+        load(ids, users);
+        assertFalse(file.exists());
+        assertEquals(0, ids.getSize());
+    }
+
+    @Test
+    public void deletesATruncatedFileAndRestoresNothingOfIt() throws IOException {
+        final UserIdCache ids = newUserIdCache();
+        ids.put("alice", ALICE_ID);
+        save(ids, UserDetailsCacheTest.user("alice", "acme"));
+        final RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(truncated.length() - 3);
+        } finally {
+            truncated.close();
+        }
+
+        final UserIdCache restoredIds = newUserIdCache();
+        users = newUserCache();
+        load(restoredIds, users);
+        assertFalse(file.exists());
+        // the user ids were complete, they are left out all the same.
+        assertEquals(0, restoredIds.getSize());
+        assertEquals(0, users.getSize());
+    }
+
+    @Test
+    public void ignoresAForeignFile() throws IOException {
+        write("not a snapshot".getBytes("UTF-8"));
+
+        final UserIdCache ids = newUserIdCache();
+        users = newUserCache();
+        load(ids, users);
+        assertTrue(file.exists());
+        assertNull(ids.get("alice"));
+    }
+
+    private UserIdCache newUserIdCache() {
+        return new UserIdCache(100, TimeUnit.DAYS.toMillis(30), clock);
+    }
+
+    private UserDetailsCache newUserCache() {
+        return new UserDetailsCache(100, USER_TTL_SECONDS, 60, USER_TTL_SECONDS, 1, 0, clock);
+    }
+
+    /** Saves the given user ids along with the given users. */
+    private void save(final UserIdCache ids, final UserDetails... details) {
+        final UserDetailsCache saved = newUserCache();
+        try {
+            for (UserDetails user : details) {
+                saved.get(user.getUsername(), new UserDetailsCacheTest.Loader(user));
+            }
+            new CacheSnapshot(file, ids, saved).close();
+        } finally {
+            saved.close();
+        }
+    }
+
+    /** Loads the file into the given caches. It is saved again when the test ends. */
+    private void load(final UserIdCache ids, final UserDetailsCache details) {
+        snapshot = new CacheSnapshot(file, ids, details);
+        snapshot.start();
+    }
+
+    private void write(final byte[] content) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Callable<UserDetails> unreachable() {
+        return new Callable<UserDetails>() {
+            public UserDetails call() {
+                throw new AssertionError("the user should have been restored");
+            }
+        };
+    }
+
+    private static Set<String> names(final UserDetails user) {
+        final Set<String> names = new HashSet<String>();
+        for (GrantedAuthority authority : user.getAuthorities()) {
+            names.add(authority.getAuthority());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Warms the cache up against a local stub of UAA and the Cloud Controller, which knows every user but "nobody".
+ */
+public class CacheWarmUpTest {
+
+    private static final Pattern USER_NAME = Pattern.compile("userName eq \"([^\"]*)\"");
+
+    private ExecutorService handlers;
+    private HttpServer server;
+    private CfHttpClient http;
+    private CfApiUtil api;
+    private UserDetailsCache cache;
+
+    private final AtomicInteger organizationRequests = new AtomicInteger();
+
+    @Before
+    public void start() throws IOException {
+        handlers = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(handlers);
+        server.createContext("/oauth/token", CfApiUtilTest.respondWith(
+                "{\"access_token\":\"client-token\",\"token_type\":\"bearer\",\"expires_in\":3600}"));
+        server.createContext("/Users/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+                final StringBuilder resources = new StringBuilder();
+                int count = 0;
+                final Matcher userName = USER_NAME.matcher(query);
+                while (userName.find()) {
+                    if (!userName.group(1).equals("nobody")) {
+                        resources.append(count++ > 0 ? "," : "").append("{\"id\":\"id-").append(userName.group(1))
+                                .append("\",\"userName\":\"").append(userName.group(1)).append("\"}");
+                    }
+                }
+                CfApiUtilTest.respond(exchange, "{\"totalResults\":" + count + ",\"resources\":[" + resources
+                        + "]}");
+            }
+        });
+        server.start();
+        final String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        http = new CfHttpClient(10, 5, 60);
+        api = new CfApiUtil("jenkins", "secret", endpoint, endpoint, endpoint, http,
+                new UserIdCache(1000, TimeUnit.HOURS.toMillis(1)));
+        cache = new UserDetailsCache(1000, 60, 10, 0, 1, 0);
+    }
+
+    @After
+    public void stop() {
+        cache.close();
+        api.close();
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    public void keepsAtMostConcurrencyUsersInFlight() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger mostInFlight = new AtomicInteger();
+        server.createContext("/v2/users/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                organizationRequests.incrementAndGet();
+                final int now = inFlight.incrementAndGet();
+                synchronized (mostInFlight) {
+                    mostInFlight.set(Math.max(mostInFlight.get(), now));
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                CfApiUtilTest.respond(exchange,
+                        "{\"resources\":[{\"entity\":{\"name\":\"acme\",\"status\":\"active\"}}]}");
+            }
+        });
+        final List<String> userNames = userNames(20);
+        userNames.add("nobody");
+
+        final CacheWarmUp warmUp = run(userNames, 3);
+        assertEquals("DONE", warmUp.getState());
+        assertEquals(20, warmUp.getResolvedCount());
+        assertEquals(1, warmUp.getNotFoundCount());
+        assertEquals(0, warmUp.getFailedCount());
+        assertEquals(20, organizationRequests.get());
+        assertEquals(3, mostInFlight.get());
+        assertEquals(20L, cache.getSize());
+    }
+
+    @Test
+    public void stopsWhenACircuitBreakerOpens() throws Exception {
+        server.createContext("/v2/users/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                organizationRequests.incrementAndGet();
+                exchange.sendResponseHeaders(503, 0);
+                exchange.close();
+            }
+        });
+        // every failed lookup counts once.
+        http.configureRetries(0, false, RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT);
+
+        final CacheWarmUp warmUp = run(userNames(50), 1);
+        assertEquals("ABORTED", warmUp.getState());
+        assertEquals(CircuitBreaker.MINIMUM_CALLS, warmUp.getFailedCount());
+        assertEquals(CircuitBreaker.MINIMUM_CALLS, organizationRequests.get());
+        assertEquals(0, warmUp.getResolvedCount());
+    }
+
+    @Test
+    public void finishesAtOnceWithoutUsers() {
+        final CacheWarmUp warmUp = new CacheWarmUp(api, cache, new ArrayList<String>(), 3);
+        warmUp.start();
+        assertEquals("DONE", warmUp.getState());
+    }
+
+    private CacheWarmUp run(final List<String> userNames, final int concurrency) throws InterruptedException {
+        final CacheWarmUp warmUp = new CacheWarmUp(api, cache, userNames, concurrency);
+        warmUp.start();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (warmUp.getState().equals("RUNNING")) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        return warmUp;
+    }
+
+    private static List<String> userNames(final int count) {
+        final List<String> userNames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            userNames.add("user-" + i);
+        }
+        return userNames;
+    }
+}
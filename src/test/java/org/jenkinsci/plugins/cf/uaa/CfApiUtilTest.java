@@ -0,0 +1,261 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.acegisecurity.AuthenticationServiceException;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.jenkinsci.plugins.cf.uaa.models.UserAccessToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs against a local stub of UAA and the Cloud Controller, each test serving the paths it needs.
+ */
+public class CfApiUtilTest {
+
+    private static final Pattern PAGE = Pattern.compile("[?&]page=(\\d+)");
+    private static final Pattern USER_NAME = Pattern.compile("userName eq \"([^\"]*)\"");
+    private static final Pattern START_INDEX = Pattern.compile("[?&]startIndex=(\\d+)");
+
+    /** Results per page of the stub SCIM search, fewer than asked for so that the pagination is followed. */
+    private static final int SEARCH_PAGE_SIZE = 7;
+
+    private static final String USER_TOKEN = "{\"access_token\":\"user-token\",\"token_type\":\"bearer\","
+            + "\"expires_in\":3600}";
+    private static final String CLIENT_TOKEN = "{\"access_token\":\"client-token\",\"token_type\":\"bearer\","
+            + "\"expires_in\":3600}";
+    private static final String PROFILE = "{\"user_id\":\"id-alice\",\"user_name\":\"alice\","
+            + "\"email\":\"alice@example.com\"}";
+
+    private ExecutorService handlers;
+    private HttpServer server;
+    private CfApiUtil api;
+
+    @Before
+    public void start() throws IOException {
+        handlers = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(handlers);
+        server.start();
+        final String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        api = new CfApiUtil("jenkins", "secret", endpoint, endpoint, endpoint, new CfHttpClient(10, 5, 60),
+                new UserIdCache(1000, TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @After
+    public void stop() {
+        api.close();
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    public void fetchesThePagesConcurrentlyAndKeepsTheirOrder() {
+        final int totalPages = 4;
+        // the pages after the first one are only answered once all of them were requested.
+        final CountDownLatch laterPages = new CountDownLatch(totalPages - 1);
+        server.createContext("/v2/organizations", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final Matcher matcher = PAGE.matcher(exchange.getRequestURI().getQuery());
+                matcher.find();
+                final int page = Integer.parseInt(matcher.group(1));
+                if (page > 1) {
+                    laterPages.countDown();
+                    if (!await(laterPages, exchange)) {
+                        return;
+                    }
+                    // the later pages are answered first
+                    sleep((totalPages - page) * 100);
+                }
+                respond(exchange, "{\"total_pages\":" + totalPages + ",\"resources\":[{\"entity\":"
+                        + "{\"name\":\"org-" + page + "\",\"status\":\"active\"}}]}");
+            }
+        });
+        api.setPagination(1, totalPages);
+
+        assertEquals(Arrays.asList("authenticated", "org-1", "org-2", "org-3", "org-4"),
+                names(api.getUserGrantedAuthorities(userToken())));
+    }
+
+    @Test
+    public void resolvesTheProfileAndTheOrganizationsConcurrently() {
+        server.createContext("/oauth/token", respondWith(USER_TOKEN));
+        // neither call is answered before the other one was made.
+        final CountDownLatch both = new CountDownLatch(2);
+        server.createContext("/userinfo", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                both.countDown();
+                if (await(both, exchange)) {
+                    respond(exchange, PROFILE);
+                }
+            }
+        });
+        server.createContext("/v2/organizations", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                both.countDown();
+                if (await(both, exchange)) {
+                    respond(exchange, "{\"resources\":[{\"entity\":{\"name\":\"acme\",\"status\":\"active\"}}]}");
+                }
+            }
+        });
+
+        final UsernamePasswordAuthenticationToken login = api.authenticate("code", "https://jenkins/finishLogin");
+        assertEquals("alice@example.com", login.getPrincipal());
+        assertEquals(Arrays.asList("authenticated", "acme"), names(login.getAuthorities()));
+    }
+
+    @Test
+    public void failsALoginThatDoesNotCompleteInTime() {
+        server.createContext("/oauth/token", respondWith(USER_TOKEN));
+        server.createContext("/userinfo", respondWith(PROFILE));
+        final CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/v2/organizations", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (await(release, exchange)) {
+                    respond(exchange, "{\"resources\":[]}");
+                }
+            }
+        });
+        api.setLoginTimeout(200);
+
+        try {
+            api.authenticate("code", "https://jenkins/finishLogin");
+            fail("the organizations are never listed");
+        } catch (AuthenticationServiceException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Login didn't complete"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void searchesTheUserIdsInBatchesThatFitInAUrl() {
+        server.createContext("/oauth/token", respondWith(CLIENT_TOKEN));
+        final AtomicInteger longestUrl = new AtomicInteger();
+        final AtomicInteger searches = new AtomicInteger();
+        server.createContext("/Users/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                searches.incrementAndGet();
+                final String rawUrl = "http://127.0.0.1:" + server.getAddress().getPort()
+                        + exchange.getRequestURI().getRawPath() + "?" + exchange.getRequestURI().getRawQuery();
+                synchronized (longestUrl) {
+                    longestUrl.set(Math.max(longestUrl.get(), rawUrl.length()));
+                }
+                final String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+                // UAA knows every user but "nobody", and spells the names in upper case.
+                final List<String> matches = new ArrayList<String>();
+                final Matcher userName = USER_NAME.matcher(query);
+                while (userName.find()) {
+                    if (!userName.group(1).equals("nobody")) {
+                        matches.add(userName.group(1));
+                    }
+                }
+                final Matcher startIndex = START_INDEX.matcher(query);
+                startIndex.find();
+                final int from = Integer.parseInt(startIndex.group(1)) - 1;
+                final StringBuilder resources = new StringBuilder();
+                for (String match : matches.subList(from, Math.min(from + SEARCH_PAGE_SIZE, matches.size()))) {
+                    resources.append(resources.length() > 0 ? "," : "").append("{\"id\":\"id-").append(match)
+                            .append("\",\"userName\":\"").append(match.toUpperCase(Locale.ENGLISH)).append("\"}");
+                }
+                respond(exchange, "{\"totalResults\":" + matches.size() + ",\"resources\":[" + resources + "]}");
+            }
+        });
+        final List<String> userNames = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            userNames.add("user-" + i);
+        }
+        userNames.add("nobody");
+
+        final Map<String, String> userIds = api.getUserIds(userNames);
+        assertEquals(300, userIds.size());
+        for (int i = 0; i < 300; i++) {
+            assertEquals("id-user-" + i, userIds.get("user-" + i));
+        }
+        assertTrue("longest URL " + longestUrl, longestUrl.get() < 2000);
+        final int searchesMade = searches.get();
+        assertTrue(searchesMade + " searches", searchesMade > 300 / SEARCH_PAGE_SIZE);
+
+        // the ids found are cached.
+        api.getUserIds(userNames.subList(0, 300));
+        assertEquals(searchesMade, searches.get());
+    }
+
+    private static UserAccessToken userToken() {
+        final UserAccessToken token = new UserAccessToken();
+        token.setTokenType("bearer");
+        token.setAccessToken("user-token");
+        return token;
+    }
+
+    private static List<String> names(final GrantedAuthority[] authorities) {
+        final List<String> names = new ArrayList<String>();
+        for (GrantedAuthority authority : authorities) {
+            names.add(authority.getAuthority());
+        }
+        return names;
+    }
+
+    /** Waits for the latch, or answers 504 and returns {@code false} if it takes too long. */
+    static boolean await(final CountDownLatch latch, final HttpExchange exchange) throws IOException {
+        try {
+            if (latch.await(10, TimeUnit.SECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(504, -1);
+        exchange.close();
+        return false;
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static HttpHandler respondWith(final String json) {
+        return new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, json);
+            }
+        };
+    }
+
+    static void respond(final HttpExchange exchange, final String json) throws IOException {
+        final byte[] body = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
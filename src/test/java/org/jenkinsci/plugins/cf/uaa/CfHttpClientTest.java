@@ -0,0 +1,180 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.jenkinsci.plugins.cf.uaa.RateLimiter.Priority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CfHttpClientTest {
+
+    /** Reads the response body. */
+    private static final ResponseHandler<String> BODY = new ResponseHandler<String>() {
+        public String handleResponse(final HttpResponse response) throws IOException {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                throw new CfApiException("Unexpected status " + status, status);
+            }
+            return EntityUtils.toString(response.getEntity(), "UTF-8");
+        }
+    };
+
+    /** Many times the response buffer, so that the body has to stream through it. */
+    private static final int LARGE_BODY_SIZE = 1024 * 1024;
+
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private CfHttpClient client;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                requests.incrementAndGet();
+                if (exchange.getRequestURI().getPath().equals("/down")
+                        || exchange.getRequestURI().getPath().equals("/flaky") && requests.get() == 1) {
+                    final byte[] body = "down".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(503, body.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                    return;
+                }
+                if (exchange.getRequestURI().getPath().equals("/large")) {
+                    exchange.sendResponseHeaders(200, LARGE_BODY_SIZE);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(new byte[LARGE_BODY_SIZE]);
+                    out.close();
+                    return;
+                }
+                final byte[] body = (exchange.getRequestMethod() + " "
+                        + exchange.getRequestHeaders().getFirst("Authorization")).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        client = new CfHttpClient(10, 5, 60);
+    }
+
+    @After
+    public void stop() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void reusesTheConnectionBetweenCalls() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("GET Bearer token", get(CfEndpoint.ORGANIZATIONS, url("/v2/organizations"),
+                    "Bearer token", BODY));
+        }
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void postsTheFormWithBasicAuthentication() {
+        final List<NameValuePair> form = Arrays.<NameValuePair>asList(
+                new BasicNameValuePair("grant_type", "client_credentials"));
+        assertEquals("POST Basic amVua2luczpzZWNyZXQ=", postForm(CfEndpoint.TOKEN, url("/oauth/token"),
+                "jenkins", "secret", form, BODY));
+    }
+
+    @Test
+    public void stopsCallingAnEndpointThatKeepsFailing() {
+        client.configureRetries(0, false, RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            try {
+                get(CfEndpoint.SCIM, url("/down"), null, BODY);
+                fail("the endpoint is down");
+            } catch (CfApiException expected) {
+                assertEquals(503, expected.getStatus());
+            }
+        }
+        try {
+            get(CfEndpoint.SCIM, url("/down"), null, BODY);
+            fail("the breaker is open");
+        } catch (CircuitBreaker.OpenException expected) {
+            assertEquals(CircuitBreaker.MINIMUM_CALLS, requests.get());
+        }
+        // the other endpoint groups are still called.
+        assertEquals("GET Bearer token", get(CfEndpoint.ORGANIZATIONS, url("/v2/organizations"),
+                "Bearer token", BODY));
+    }
+
+    @Test
+    public void retriesAFailedGet() {
+        assertEquals("GET null", get(CfEndpoint.ORGANIZATIONS, url("/flaky"), null, BODY));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void neverRetriesAPost() {
+        try {
+            postForm(CfEndpoint.TOKEN, url("/down"), "jenkins", "secret", Collections.<NameValuePair>emptyList(),
+                    BODY);
+            fail("the endpoint is down");
+        } catch (CfApiException expected) {
+            assertEquals(503, expected.getStatus());
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void streamsALargeBodyToTheHandler() {
+        final ListenableFuture<Long> read = client.getAsync(CfEndpoint.ORGANIZATIONS, Priority.INTERACTIVE,
+                url("/large"), null, new ResponseHandler<Long>() {
+                    public Long handleResponse(final HttpResponse response) throws IOException {
+                        final InputStream in = response.getEntity().getContent();
+                        long count = 0;
+                        while (in.read() != -1) {
+                            count++;
+                        }
+                        return count;
+                    }
+                });
+        assertEquals(Long.valueOf(LARGE_BODY_SIZE), CfFutures.await(read));
+    }
+
+    private String get(final CfEndpoint endpoint, final String url, final String authorization,
+            final ResponseHandler<String> handler) {
+        return CfFutures.await(client.getAsync(endpoint, Priority.INTERACTIVE, url, authorization, handler));
+    }
+
+    private String postForm(final CfEndpoint endpoint, final String url, final String user, final String password,
+            final List<NameValuePair> form, final ResponseHandler<String> handler) {
+        return CfFutures.await(client.postFormAsync(endpoint, Priority.INTERACTIVE, url, user, password, form,
+                handler));
+    }
+
+    private String url(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+}
@@ -0,0 +1,86 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.jenkinsci.plugins.cf.uaa.models.ClientAccessToken;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CfJsonTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void readsTheActiveOrganizationNamesOfAPage() throws IOException {
+        final CfJson.OrganizationPage page = CfJson.readOrganizations(json("{'total_results':3,'total_pages':2,"
+                + "'prev_url':null,'next_url':'/v2/users/user-1/organizations?page=2',"
+                + "'resources':["
+                + "{'metadata':{'guid':'org-1','url':'/v2/organizations/org-1'},"
+                + "'entity':{'name':'acme','status':'active','quota_definition':{'name':'default','limits':[1,2]}}},"
+                + "{'metadata':{'guid':'org-2'},'entity':{'status':'suspended','name':'globex'}},"
+                + "{'metadata':{'guid':'org-3'},'entity':{'status':'active','name':'initech','spaces_url':null}}]}"));
+
+        assertEquals(2, page.getTotalPages());
+        assertEquals(Arrays.asList("acme", "initech"), page.getActiveNames());
+    }
+
+    @Test
+    public void readsAPageWithoutResources() throws IOException {
+        final CfJson.OrganizationPage page = CfJson.readOrganizations(json("{'resources':[]}"));
+
+        assertEquals(1, page.getTotalPages());
+        assertEquals(Arrays.<String>asList(), page.getActiveNames());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void rejectsAnythingButAnObject() throws IOException {
+        CfJson.readOrganizations(json("[{'entity':{'name':'acme','status':'active'}}]"));
+    }
+
+    @Test
+    public void readsTheIncludedOrganizationsOfAV3RolesPage() throws IOException {
+        final CfJson.V3OrganizationPage page = CfJson.readV3Organizations(json("{'pagination':{'total_results':3,"
+                + "'first':{'href':'https://api/v3/roles?page=1'},'next':{'href':'https://api/v3/roles?page=2'},"
+                + "'previous':null},"
+                + "'resources':[{'guid':'role-1','type':'organization_user','relationships':{'user':{'data':"
+                + "{'guid':'user-1'}},'organization':{'data':{'guid':'org-1'}}}}],"
+                + "'included':{'users':[{'guid':'user-1','username':'alice'}],'organizations':["
+                + "{'guid':'org-1','name':'acme','suspended':false,'metadata':{'labels':{}}},"
+                + "{'guid':'org-2','suspended':true,'name':'globex'},"
+                + "{'guid':'org-3','name':'initech'}]}}"));
+
+        assertEquals("https://api/v3/roles?page=2", page.getNextUrl());
+        assertEquals(Arrays.asList("acme", "initech"), page.getActiveNames());
+    }
+
+    @Test
+    public void readsTheLastPageOfV3Organizations() throws IOException {
+        final CfJson.V3OrganizationPage page = CfJson.readV3Organizations(json("{'pagination':{'next':null},"
+                + "'resources':[{'guid':'org-1','name':'acme','suspended':false},"
+                + "{'guid':'org-2','name':'globex','suspended':true}]}"));
+
+        assertNull(page.getNextUrl());
+        assertEquals(Arrays.asList("acme"), page.getActiveNames());
+    }
+
+    @Test
+    public void ignoresTheUnknownTokenFields() throws IOException {
+        final ClientAccessToken token = CfJson.tokenReader(ClientAccessToken.class).readValue(json(
+                "{'access_token':'abc','token_type':'bearer','expires_in':43199,'scope':'scim.read','jti':'1',"
+                        + "'ext_attr':{'tenant':'acme'}}"));
+
+        assertEquals("abc", token.getAccessToken());
+        assertEquals(Integer.valueOf(43199), token.getExpiresIn());
+    }
+
+    static InputStream json(final String singleQuoted) {
+        return new ByteArrayInputStream(singleQuoted.replace('\'', '"').getBytes(UTF8));
+    }
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static final long SLOW_CALL_MILLIS = 1000;
+    private static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final FakeClock clock = new FakeClock();
+    private final CircuitBreaker breaker = new CircuitBreaker(CfEndpoint.SCIM, 50, SLOW_CALL_MILLIS, OPEN_MILLIS,
+            clock);
+
+    @Test
+    public void staysClosedBelowTheMinimumNumberOfCalls() {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i++) {
+            call(false);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensOnceTheFailureRateIsReached() {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i++) {
+            call(i % 2 == 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+    }
+
+    @Test
+    public void countsSlowCallsAsFailures() {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            breaker.acquire();
+            breaker.onSuccess(SLOW_CALL_MILLIS + 1);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void onlyTheRecentCallsCount() {
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE / 2 + 1; i++) {
+            call(true);
+        }
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE / 2 - 1; i++) {
+            call(false);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // pushes the oldest success out of the window, 10 of the last 20 calls failed.
+        call(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void rejectsCallsWhileOpen() {
+        open();
+        clock.advance(OPEN_MILLIS - 1, TimeUnit.MILLISECONDS);
+        assertRejected();
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void closesAfterASuccessfulTrialCall() {
+        open();
+        clock.advance(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // a single trial call at a time.
+        assertRejected();
+
+        breaker.onSuccess(1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+    }
+
+    @Test
+    public void opensAgainAfterAFailedTrialCall() {
+        open();
+        clock.advance(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+        breaker.acquire();
+        breaker.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+        assertRejected();
+    }
+
+    @Test
+    public void aCancelledTrialCallLetsTheNextOneThrough() {
+        open();
+        clock.advance(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+        breaker.acquire();
+        breaker.onCancelled();
+
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    private void call(final boolean success) {
+        breaker.acquire();
+        if (success) {
+            breaker.onSuccess(1);
+        } else {
+            breaker.onFailure();
+        }
+    }
+
+    private void open() {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            call(false);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void assertRejected() {
+        try {
+            breaker.acquire();
+            fail("the breaker should reject the call");
+        } catch (CircuitBreaker.OpenException expected) {
+            // expected
+        }
+    }
+}
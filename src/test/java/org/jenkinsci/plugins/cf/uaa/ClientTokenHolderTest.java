@@ -0,0 +1,166 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jenkinsci.plugins.cf.uaa.RateLimiter.Priority;
+import org.jenkinsci.plugins.cf.uaa.models.ClientAccessToken;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The holder runs on the real clock, the tokens live for a second so that the tests can wait for their renewal.
+ */
+public class ClientTokenHolderTest {
+
+    private final Grant grant = new Grant(1);
+    private final ClientTokenHolder holder = new ClientTokenHolder(grant);
+
+    @After
+    public void close() {
+        holder.close();
+    }
+
+    @Test
+    public void reusesAShortLivedTokenUntilItsRenewal() throws Exception {
+        final long start = System.nanoTime();
+        final ClientAccessToken token = holder.get();
+        assertSame(token, holder.get());
+        assertEquals(1, grant.calls.get());
+
+        waitForGrants(2);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 800);
+        assertNotSame(token, holder.get());
+        assertEquals(2, grant.calls.get());
+    }
+
+    @Test
+    public void concurrentCallersShareOneGrant() throws Exception {
+        final SettableFuture<ClientAccessToken> granted = SettableFuture.create();
+        final AtomicInteger calls = new AtomicInteger();
+        final ClientTokenHolder slow = new ClientTokenHolder(new AsyncFunction<Priority, ClientAccessToken>() {
+            public ListenableFuture<ClientAccessToken> apply(final Priority priority) {
+                calls.incrementAndGet();
+                return granted;
+            }
+        });
+        final ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            final Callable<ClientAccessToken> get = new Callable<ClientAccessToken>() {
+                public ClientAccessToken call() {
+                    return slow.get();
+                }
+            };
+            final Future<ClientAccessToken> first = callers.submit(get);
+            final Future<ClientAccessToken> second = callers.submit(get);
+            Thread.sleep(100);
+            granted.set(grant.apply(Priority.INTERACTIVE).get());
+
+            assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, calls.get());
+        } finally {
+            callers.shutdownNow();
+            slow.close();
+        }
+    }
+
+    @Test
+    public void interactiveCallersDoNotWaitBehindABackgroundGrant() throws Exception {
+        final SettableFuture<ClientAccessToken> held = SettableFuture.create();
+        final AtomicInteger interactiveCalls = new AtomicInteger();
+        final ClientTokenHolder limited = new ClientTokenHolder(new AsyncFunction<Priority, ClientAccessToken>() {
+            public ListenableFuture<ClientAccessToken> apply(final Priority priority) {
+                if (priority == Priority.BACKGROUND) {
+                    // held back by the rate limiter.
+                    return held;
+                }
+                interactiveCalls.incrementAndGet();
+                return grant.apply(priority);
+            }
+        });
+        try {
+            final ListenableFuture<ClientAccessToken> background = limited.getAsync(Priority.BACKGROUND);
+            final ClientAccessToken token = limited.getAsync(Priority.INTERACTIVE).get(10, TimeUnit.SECONDS);
+            assertFalse(background.isDone());
+            assertEquals(1, interactiveCalls.get());
+
+            // the token granted to the login now serves the background callers too.
+            assertSame(token, limited.getAsync(Priority.BACKGROUND).get(10, TimeUnit.SECONDS));
+            held.set(grant.apply(Priority.BACKGROUND).get());
+            assertTrue(background.isDone());
+        } finally {
+            limited.close();
+        }
+    }
+
+    @Test
+    public void backgroundCallersShareAnInteractiveGrant() throws Exception {
+        final SettableFuture<ClientAccessToken> granted = SettableFuture.create();
+        final AtomicInteger calls = new AtomicInteger();
+        final ClientTokenHolder slow = new ClientTokenHolder(new AsyncFunction<Priority, ClientAccessToken>() {
+            public ListenableFuture<ClientAccessToken> apply(final Priority priority) {
+                calls.incrementAndGet();
+                return granted;
+            }
+        });
+        try {
+            final ListenableFuture<ClientAccessToken> interactive = slow.getAsync(Priority.INTERACTIVE);
+            final ListenableFuture<ClientAccessToken> background = slow.getAsync(Priority.BACKGROUND);
+            granted.set(grant.apply(Priority.INTERACTIVE).get());
+
+            assertSame(interactive.get(10, TimeUnit.SECONDS), background.get(10, TimeUnit.SECONDS));
+            assertEquals(1, calls.get());
+        } finally {
+            slow.close();
+        }
+    }
+
+    @Test
+    public void requestsANewTokenOnceTheCurrentOneIsRejected() {
+        final ClientAccessToken rejected = holder.get();
+        holder.invalidate(rejected);
+
+        assertNotSame(rejected, holder.get());
+        assertEquals(2, grant.calls.get());
+    }
+
+    private void waitForGrants(final int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (grant.calls.get() < count) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /** Grants a new token at every call, and counts the calls. */
+    static final class Grant implements AsyncFunction<Priority, ClientAccessToken> {
+
+        final AtomicInteger calls = new AtomicInteger();
+        private final int expiresIn;
+
+        Grant(final int expiresIn) {
+            this.expiresIn = expiresIn;
+        }
+
+        public ListenableFuture<ClientAccessToken> apply(final Priority priority) {
+            final ClientAccessToken token = new ClientAccessToken();
+            token.setAccessToken("token-" + calls.incrementAndGet());
+            token.setExpiresIn(expiresIn);
+            return Futures.immediateFuture(token);
+        }
+    }
+}
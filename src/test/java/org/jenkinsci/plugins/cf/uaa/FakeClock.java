@@ -0,0 +1,20 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when told to.
+ */
+class FakeClock extends Clock {
+
+    private volatile long millis = TimeUnit.DAYS.toMillis(365 * 50);
+
+    @Override
+    long millis() {
+        return millis;
+    }
+
+    void advance(final long duration, final TimeUnit unit) {
+        millis += unit.toMillis(duration);
+    }
+}
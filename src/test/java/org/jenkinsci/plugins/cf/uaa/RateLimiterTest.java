@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The limiter runs on the real clock, the rates and pauses are short enough for the tests to wait for them.
+ */
+public class RateLimiterTest {
+
+    private final RateLimiter limiter = new RateLimiter(CfEndpoint.Upstream.UAA);
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void close() {
+        limiter.close();
+    }
+
+    @Test
+    public void startsCallsRightAwayWhilePermitsLast() throws Exception {
+        limiter.setPermitsPerSecond(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(submit(RateLimiter.Priority.BACKGROUND, "call " + i).isDone());
+        }
+        final ListenableFuture<String> queued = submit(RateLimiter.Priority.BACKGROUND, "queued");
+        assertFalse(queued.isDone());
+        assertEquals(1, limiter.getBackgroundQueueDepth());
+        assertEquals(1, limiter.getThrottledCount());
+
+        assertEquals("queued", queued.get(10, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getBackgroundQueueDepth());
+    }
+
+    @Test
+    public void servesTheInteractiveQueueFirst() throws Exception {
+        limiter.setPermitsPerSecond(20);
+        for (int i = 0; i < 20; i++) {
+            submit(RateLimiter.Priority.BACKGROUND, "burst");
+        }
+        started.clear();
+
+        final List<ListenableFuture<String>> calls = new ArrayList<ListenableFuture<String>>();
+        calls.add(submit(RateLimiter.Priority.BACKGROUND, "lookup 1"));
+        calls.add(submit(RateLimiter.Priority.BACKGROUND, "lookup 2"));
+        calls.add(submit(RateLimiter.Priority.INTERACTIVE, "login 1"));
+        calls.add(submit(RateLimiter.Priority.BACKGROUND, "lookup 3"));
+        calls.add(submit(RateLimiter.Priority.INTERACTIVE, "login 2"));
+        assertEquals(2, limiter.getInteractiveQueueDepth());
+        Futures.allAsList(calls).get(10, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("login 1", "login 2", "lookup 1", "lookup 2", "lookup 3"), started);
+    }
+
+    @Test
+    public void pausesTheCallsOnRetryAfter() throws Exception {
+        final long start = System.nanoTime();
+        limiter.pause(300);
+        assertEquals(1, limiter.getRetryAfterCount());
+        assertTrue(limiter.getPausedMillis() > 0);
+
+        final ListenableFuture<String> call = submit(RateLimiter.Priority.INTERACTIVE, "login");
+        assertFalse(call.isDone());
+        call.get(10, TimeUnit.SECONDS);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+    }
+
+    @Test
+    public void capsTheRetryAfterPause() {
+        limiter.pause(TimeUnit.HOURS.toMillis(1));
+        assertTrue(limiter.getPausedMillis() <= RateLimiter.MAX_PAUSE_MILLIS);
+    }
+
+    @Test
+    public void cancellingAQueuedCallRemovesItFromTheQueue() throws Exception {
+        limiter.pause(200);
+        final ListenableFuture<String> call = submit(RateLimiter.Priority.BACKGROUND, "lookup");
+        call.cancel(false);
+        assertEquals(0, limiter.getBackgroundQueueDepth());
+
+        submit(RateLimiter.Priority.BACKGROUND, "next").get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("next"), started);
+    }
+
+    @Test
+    public void closingCancelsTheQueuedCalls() {
+        limiter.pause(TimeUnit.SECONDS.toMillis(10));
+        final ListenableFuture<String> call = submit(RateLimiter.Priority.INTERACTIVE, "login");
+        limiter.close();
+
+        assertTrue(call.isCancelled());
+        assertEquals(0, limiter.getInteractiveQueueDepth());
+    }
+
+    private ListenableFuture<String> submit(final RateLimiter.Priority priority, final String name) {
+        return limiter.submit(priority, new Callable<ListenableFuture<String>>() {
+            public ListenableFuture<String> call() {
+                started.add(name);
+                return Futures.immediateFuture(name);
+            }
+        });
+    }
+}
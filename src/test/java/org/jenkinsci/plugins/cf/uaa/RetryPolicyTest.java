@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(RetryPolicy.DEFAULT_MAX_RETRIES, true,
+            RetryPolicy.DEFAULT_HEDGE_BUDGET_PERCENT);
+
+    @Test
+    public void retriesIoErrorsAndOverloadedAnswers() {
+        assertTrue(policy.shouldRetry(new IOException("Connection reset"), 0));
+        assertTrue(policy.shouldRetry(new SocketTimeoutException("Read timed out"), 1));
+        for (int status : new int[] {429, 502, 503, 504}) {
+            assertTrue("HTTP " + status, policy.shouldRetry(new CfApiException("Overloaded", status), 0));
+        }
+    }
+
+    @Test
+    public void doesNotRetryWhatWouldFailAgain() {
+        for (int status : new int[] {400, 401, 404, 500}) {
+            assertFalse("HTTP " + status, policy.shouldRetry(new CfApiException("Failed", status), 0));
+        }
+        assertFalse(policy.shouldRetry(new CancellationException(), 0));
+        assertFalse(policy.shouldRetry(new CircuitBreaker.OpenException(CfEndpoint.SCIM), 0));
+        assertFalse(policy.shouldRetry(new IllegalStateException(), 0));
+    }
+
+    @Test
+    public void stopsAfterTheMaximumRetries() {
+        assertFalse(policy.shouldRetry(new IOException(), RetryPolicy.DEFAULT_MAX_RETRIES));
+        assertFalse(new RetryPolicy(0, false, 0).shouldRetry(new IOException(), 0));
+        assertEquals(0, new RetryPolicy(-1, false, 0).getMaxRetries());
+    }
+
+    @Test
+    public void jittersTheBackoffUnderAGrowingCap() {
+        for (int retry = 0; retry < 8; retry++) {
+            final long cap = Math.min(RetryPolicy.MAX_BACKOFF_MILLIS, RetryPolicy.BASE_BACKOFF_MILLIS << retry);
+            final Set<Long> delays = new HashSet<Long>();
+            for (int i = 0; i < 100; i++) {
+                final long delay = policy.backoffMillis(retry);
+                assertTrue("retry " + retry + " waited " + delay, delay >= 0 && delay < cap);
+                delays.add(delay);
+            }
+            assertTrue("retry " + retry + " always waited the same", delays.size() > 1);
+        }
+        assertTrue(policy.backoffMillis(Integer.MAX_VALUE) < RetryPolicy.MAX_BACKOFF_MILLIS);
+    }
+
+    @Test
+    public void earnsAHedgeEveryTwentyCallsAtFivePercent() {
+        assertFalse(policy.tryHedge());
+        for (int i = 0; i < 19; i++) {
+            policy.onCall();
+        }
+        assertFalse(policy.tryHedge());
+        // one more than needed, so that rounding errors cannot make the 20 calls fall short.
+        policy.onCall();
+        policy.onCall();
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+    }
+
+    @Test
+    public void savesUpALimitedNumberOfHedges() {
+        final RetryPolicy everyCall = new RetryPolicy(0, true, 100);
+        for (int i = 0; i < 50; i++) {
+            everyCall.onCall();
+        }
+        int hedges = 0;
+        while (everyCall.tryHedge()) {
+            hedges++;
+        }
+        assertEquals(10, hedges);
+    }
+
+    @Test
+    public void neverHedgesWhenDisabledOrWithoutABudget() {
+        for (RetryPolicy disabled : new RetryPolicy[] {new RetryPolicy(2, false, 100), new RetryPolicy(2, true, 0)}) {
+            assertFalse(disabled.isHedging());
+            for (int i = 0; i < 100; i++) {
+                disabled.onCall();
+            }
+            assertFalse(disabled.tryHedge());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentCallersShareOneCall() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> call = new Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "id-alice";
+            }
+        };
+
+        final Future<String> first = executor.submit(execute("alice", call));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        final Future<String> second = executor.submit(execute("alice", call));
+        while (flight.getCoalescedCount() == 0) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertEquals("id-alice", first.get(10, TimeUnit.SECONDS));
+        assertEquals("id-alice", second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(1, flight.getExecutedCount());
+    }
+
+    @Test
+    public void callersShareTheFailure() {
+        final IllegalStateException failure = new IllegalStateException("UAA is down");
+        try {
+            flight.execute("alice", new Callable<String>() {
+                public String call() {
+                    throw failure;
+                }
+            });
+            fail("the call failed");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void nothingIsKeptOnceTheCallCompletes() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> call = new Callable<String>() {
+            public String call() {
+                return "call " + calls.incrementAndGet();
+            }
+        };
+        assertEquals("call 1", flight.execute("alice", call));
+        assertEquals("call 2", flight.execute("alice", call));
+        assertEquals(0, flight.getCoalescedCount());
+    }
+
+    @Test
+    public void interruptingOneWaiterDoesNotFailTheOthers() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> call = new Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "id-alice";
+            }
+        };
+
+        final Future<String> first = executor.submit(execute("alice", call));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        final Future<String> interrupted = executor.submit(execute("alice", call));
+        final Future<String> waiting = executor.submit(execute("alice", call));
+        while (flight.getCoalescedCount() < 2) {
+            Thread.sleep(10);
+        }
+        interrupted.cancel(true);
+        release.countDown();
+
+        assertEquals("id-alice", first.get(10, TimeUnit.SECONDS));
+        assertEquals("id-alice", waiting.get(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void cancellingOneAsyncCallerDoesNotCancelTheOthers() throws Exception {
+        final SettableFuture<String> lookup = SettableFuture.create();
+        final Callable<ListenableFuture<String>> call = new Callable<ListenableFuture<String>>() {
+            public ListenableFuture<String> call() {
+                return lookup;
+            }
+        };
+        final ListenableFuture<String> first = flight.executeAsync("alice", call);
+        final ListenableFuture<String> second = flight.executeAsync("alice", call);
+        assertEquals(1, flight.getCoalescedCount());
+
+        first.cancel(true);
+        assertFalse(lookup.isCancelled());
+        lookup.set("id-alice");
+        assertEquals("id-alice", second.get());
+    }
+
+    private Callable<String> execute(final String key, final Callable<String> call) {
+        return new Callable<String>() {
+            public String call() {
+                return flight.execute(key, call);
+            }
+        };
+    }
+}
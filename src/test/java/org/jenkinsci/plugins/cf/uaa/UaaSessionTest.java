@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UaaSessionTest {
+
+    /** The access token lifetime, the renewal is due after 80% of it. */
+    private static final int EXPIRES_IN_SECONDS = 100;
+    private static final long RENEW_AFTER_SECONDS = 80;
+
+    private final FakeClock clock = new FakeClock();
+    private final Renewals api = new Renewals();
+    private final UaaSession session = new UaaSession(
+            new UsernamePasswordAuthenticationToken("alice@example.com", "", new GrantedAuthority[0]),
+            "refresh-token", EXPIRES_IN_SECONDS, clock);
+
+    @After
+    public void close() {
+        api.close();
+    }
+
+    @Test
+    public void renewsOnceMostOfTheLifetimeIsSpent() {
+        clock.advance(RENEW_AFTER_SECONDS - 1, TimeUnit.SECONDS);
+        assertNull(session.poll(api));
+        assertEquals(0, api.calls.get());
+
+        clock.advance(1, TimeUnit.SECONDS);
+        assertNull(session.poll(api));
+        // requests never wait for the renewal, nor start another one.
+        assertNull(session.poll(api));
+        assertEquals(1, api.calls.get());
+
+        final UaaSession renewed = new UaaSession(session.getAuthentication(), "refresh-token", EXPIRES_IN_SECONDS,
+                clock);
+        api.renewal.set(renewed);
+        assertSame(renewed, session.poll(api));
+    }
+
+    @Test
+    public void stopsRenewingOnceTheRefreshTokenIsRejected() {
+        for (int status : new int[]{400, 401}) {
+            final UaaSession rejected = new UaaSession(session.getAuthentication(), "refresh-token",
+                    EXPIRES_IN_SECONDS, clock);
+            clock.advance(RENEW_AFTER_SECONDS, TimeUnit.SECONDS);
+            rejected.poll(api);
+            api.renewal.setException(new CfApiException("Invalid refresh token", status));
+            final int calls = api.calls.get();
+
+            assertNull(rejected.poll(api));
+            assertFalse(rejected.isRenewable());
+            clock.advance(1, TimeUnit.DAYS);
+            assertNull(rejected.poll(api));
+            assertEquals(calls, api.calls.get());
+        }
+    }
+
+    @Test
+    public void retriesOtherFailuresAfterThirtySeconds() {
+        clock.advance(RENEW_AFTER_SECONDS, TimeUnit.SECONDS);
+        session.poll(api);
+        api.renewal.setException(new CfApiException("UAA is down", 503));
+
+        assertNull(session.poll(api));
+        assertTrue(session.isRenewable());
+        clock.advance(29, TimeUnit.SECONDS);
+        assertNull(session.poll(api));
+        assertEquals(1, api.calls.get());
+
+        clock.advance(1, TimeUnit.SECONDS);
+        assertNull(session.poll(api));
+        assertEquals(2, api.calls.get());
+    }
+
+    @Test
+    public void cannotRenewWithoutARefreshToken() {
+        final UaaSession login = new UaaSession(session.getAuthentication(), null, EXPIRES_IN_SECONDS, clock);
+        assertFalse(login.isRenewable());
+        clock.advance(1, TimeUnit.DAYS);
+        assertNull(login.poll(api));
+        assertEquals(0, api.calls.get());
+    }
+
+    /** Hands out a renewal the test completes, and counts the renewals started. */
+    private static final class Renewals extends CfApiUtil {
+
+        final AtomicInteger calls = new AtomicInteger();
+        SettableFuture<UaaSession> renewal;
+
+        Renewals() {
+            super("jenkins", "secret", "http://uaa", "http://login", "http://api", new CfHttpClient(1, 1, 60),
+                    new UserIdCache(1, TimeUnit.HOURS.toMillis(1)));
+        }
+
+        @Override
+        ListenableFuture<UaaSession> renewAsync(final UaaSession previous) {
+            calls.incrementAndGet();
+            renewal = SettableFuture.create();
+            return renewal;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.acegisecurity.BadCredentialsException;
+import org.apache.commons.codec.binary.Base64;
+import org.jenkinsci.plugins.cf.uaa.models.TokenKey;
+import org.jenkinsci.plugins.cf.uaa.models.TokenKeys;
+import org.jenkinsci.plugins.cf.uaa.models.UaaUserProfile;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class UaaTokenVerifierTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String UAA = "https://uaa.example.com";
+    private static final String ISSUER = UAA + "/oauth/token";
+
+    private static final KeyPair FIRST_KEY = generateKey();
+    private static final KeyPair SECOND_KEY = generateKey();
+
+    private final FakeClock clock = new FakeClock();
+    private final KeySource keySource = new KeySource();
+    private final UaaTokenVerifier verifier = new UaaTokenVerifier(UAA + "/", keySource, clock);
+
+    @Test
+    public void readsTheProfileFromAValidToken() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        final String token = token(FIRST_KEY, "key-1", expiresIn(300));
+
+        final UaaUserProfile profile = verifier.getUserProfile(token);
+        assertEquals("id-alice", profile.getUserId());
+        assertEquals("alice", profile.getUserName());
+        assertEquals("alice@example.com", profile.getEmail());
+
+        verifier.getUserProfile(token);
+        assertEquals(1, keySource.fetches.get());
+    }
+
+    @Test
+    public void rejectsAnExpiredToken() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        // within the tolerated clock skew.
+        verifier.getUserProfile(token(FIRST_KEY, "key-1", expiresIn(-30)));
+        try {
+            verifier.getUserProfile(token(FIRST_KEY, "key-1", expiresIn(-61)));
+            fail("the token has expired");
+        } catch (BadCredentialsException expected) {
+            assertEquals("Access token has expired", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void expiresTokensAsTheClockMoves() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        final String token = token(FIRST_KEY, "key-1", expiresIn(60));
+        verifier.getUserProfile(token);
+
+        clock.advance(121, TimeUnit.SECONDS);
+        try {
+            verifier.getUserProfile(token);
+            fail("the token has expired");
+        } catch (BadCredentialsException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsATokenWithoutANumericExpiry() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        for (String exp : new String[]{"", ",\"exp\":\"never\""}) {
+            try {
+                verifier.getUserProfile(token(FIRST_KEY, "{\"alg\":\"RS256\",\"kid\":\"key-1\"}",
+                        "{\"user_id\":\"id-alice\",\"user_name\":\"alice\",\"email\":\"alice@example.com\","
+                                + "\"iss\":\"" + ISSUER + "\",\"scope\":[\"openid\"]" + exp + "}"));
+                fail("the token has no expiry");
+            } catch (BadCredentialsException expected) {
+                assertEquals("Access token has no expiry", expected.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsAnInvalidSignature() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        try {
+            verifier.getUserProfile(token(SECOND_KEY, "key-1", expiresIn(300)));
+            fail("the token is not signed with key-1");
+        } catch (BadCredentialsException expected) {
+            assertEquals("Invalid access token signature", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void fetchesTheKeysAgainWhenUaaRotatesItsKey() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        verifier.getUserProfile(token(FIRST_KEY, "key-1", expiresIn(300)));
+        keySource.publish("key-2", SECOND_KEY);
+
+        // the keys were just fetched, the token is left to /userinfo rather than fetching them again.
+        assertNull(verifier.getUserProfile(token(SECOND_KEY, "key-2", expiresIn(300))));
+        assertEquals(1, keySource.fetches.get());
+
+        clock.advance(31, TimeUnit.SECONDS);
+        assertEquals("alice", verifier.getUserProfile(token(SECOND_KEY, "key-2", expiresIn(300))).getUserName());
+        assertEquals(2, keySource.fetches.get());
+        // both keys are still known.
+        verifier.getUserProfile(token(FIRST_KEY, "key-1", expiresIn(300)));
+        assertEquals(2, keySource.fetches.get());
+    }
+
+    @Test
+    public void leavesUnsupportedTokensToUaa() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        assertNull(verifier.getUserProfile("opaque-token"));
+        final String header = encode("{\"alg\":\"HS256\",\"kid\":\"key-1\"}");
+        assertNull(verifier.getUserProfile(header + "." + encode(claims(expiresIn(300))) + ".c2ln"));
+        assertNull(verifier.getUserProfile(token(FIRST_KEY, "{\"alg\":\"RS256\",\"kid\":1}",
+                claims(expiresIn(300)))));
+        assertEquals(0, keySource.fetches.get());
+    }
+
+    @Test
+    public void leavesTokensOfAnotherIssuerOrScopeToUaa() throws Exception {
+        keySource.publish("key-1", FIRST_KEY);
+        final String header = "{\"alg\":\"RS256\",\"kid\":\"key-1\"}";
+        final String user = "\"user_id\":\"id-alice\",\"user_name\":\"alice\",\"email\":\"alice@example.com\","
+                + "\"exp\":" + expiresIn(300);
+
+        assertNull(verifier.getUserProfile(token(FIRST_KEY, header,
+                "{" + user + ",\"iss\":\"https://other.example.com/oauth/token\",\"scope\":[\"openid\"]}")));
+        assertNull(verifier.getUserProfile(token(FIRST_KEY, header,
+                "{" + user + ",\"scope\":[\"openid\"]}")));
+        assertNull(verifier.getUserProfile(token(FIRST_KEY, header,
+                "{" + user + ",\"iss\":\"" + ISSUER + "\",\"scope\":[\"cloud_controller.read\"]}")));
+        assertNull(verifier.getUserProfile(token(FIRST_KEY, header,
+                "{" + user + ",\"iss\":\"" + ISSUER + "\",\"scope\":\"openid\"}")));
+    }
+
+    private long expiresIn(final long seconds) {
+        return TimeUnit.MILLISECONDS.toSeconds(clock.millis()) + seconds;
+    }
+
+    private static String claims(final long exp) {
+        return "{\"user_id\":\"id-alice\",\"user_name\":\"alice\",\"email\":\"alice@example.com\",\"exp\":" + exp
+                + ",\"iss\":\"" + ISSUER + "\",\"scope\":[\"openid\",\"cloud_controller.read\"]}";
+    }
+
+    private static String token(final KeyPair key, final String kid, final long exp)
+            throws GeneralSecurityException {
+        return token(key, "{\"alg\":\"RS256\",\"kid\":\"" + kid + "\"}", claims(exp));
+    }
+
+    private static String token(final KeyPair key, final String header, final String claims)
+            throws GeneralSecurityException {
+        final String signed = encode(header) + "." + encode(claims);
+        final Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key.getPrivate());
+        signature.update(signed.getBytes(UTF8));
+        return signed + "." + Base64.encodeBase64URLSafeString(signature.sign());
+    }
+
+    private static String encode(final String json) {
+        return Base64.encodeBase64URLSafeString(json.getBytes(UTF8));
+    }
+
+    private static KeyPair generateKey() {
+        try {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Serves the published keys as /token_keys would, and counts the fetches. */
+    private static final class KeySource implements Callable<ListenableFuture<TokenKeys>> {
+
+        private final List<TokenKey> published = new ArrayList<TokenKey>();
+        final AtomicInteger fetches = new AtomicInteger();
+
+        void publish(final String kid, final KeyPair key) {
+            final RSAPublicKey publicKey = (RSAPublicKey) key.getPublic();
+            final TokenKey tokenKey = new TokenKey();
+            tokenKey.setKid(kid);
+            tokenKey.setKty("RSA");
+            tokenKey.setAlg("RS256");
+            tokenKey.setModulus(Base64.encodeBase64URLSafeString(publicKey.getModulus().toByteArray()));
+            tokenKey.setExponent(Base64.encodeBase64URLSafeString(publicKey.getPublicExponent().toByteArray()));
+            published.add(tokenKey);
+        }
+
+        public ListenableFuture<TokenKeys> call() {
+            fetches.incrementAndGet();
+            final TokenKeys keys = new TokenKeys();
+            keys.setKeys(new ArrayList<TokenKey>(published));
+            return Futures.immediateFuture(keys);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserDetailsCacheTest {
+
+    private static final long TTL_SECONDS = 60;
+    private static final long NOT_FOUND_TTL_SECONDS = 10;
+    private static final long REFRESH_AFTER_SECONDS = 59;
+    private static final long STALE_GRACE_SECONDS = 120;
+
+    private final FakeClock clock = new FakeClock();
+    private UserDetailsCache cache;
+
+    @Before
+    public void createCache() {
+        cache = new UserDetailsCache(100, TTL_SECONDS, NOT_FOUND_TTL_SECONDS, REFRESH_AFTER_SECONDS, 1,
+                STALE_GRACE_SECONDS, clock);
+    }
+
+    @After
+    public void closeCache() {
+        cache.close();
+    }
+
+    @Test
+    public void loadsOnceUntilExpiry() {
+        final Loader loader = new Loader(user("alice", "acme"));
+        assertSame(loader.details, cache.get("alice", loader));
+        clock.advance(TTL_SECONDS / 2, TimeUnit.SECONDS);
+        assertSame(loader.details, cache.get("alice", loader));
+        assertEquals(1, loader.calls.get());
+        assertEquals(1, cache.getHitCount());
+
+        clock.advance(TTL_SECONDS, TimeUnit.SECONDS);
+        cache.get("alice", loader);
+        assertEquals(2, loader.calls.get());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void refreshesInTheBackgroundBeforeExpiry() throws Exception {
+        final UserDetails before = user("alice", "acme");
+        final UserDetails after = user("alice", "acme", "globex");
+        cache.get("alice", new Loader(before));
+
+        clock.advance(REFRESH_AFTER_SECONDS, TimeUnit.SECONDS);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        final Callable<UserDetails> refresh = new Callable<UserDetails>() {
+            public UserDetails call() {
+                refreshed.countDown();
+                return after;
+            }
+        };
+        // the entry is still served while it is being refreshed.
+        assertSame(before, cache.get("alice", refresh));
+        assertTrue(refreshed.await(10, TimeUnit.SECONDS));
+        waitFor(new Callable<Boolean>() {
+            public Boolean call() {
+                return cache.getRefreshCount() == 1;
+            }
+        });
+        assertSame(after, cache.get("alice", new Loader(null)));
+    }
+
+    @Test
+    public void remembersUnknownUsersForTheirOwnLifetime() {
+        final Callable<UserDetails> unknown = new Callable<UserDetails>() {
+            public UserDetails call() {
+                throw new UsernameNotFoundException("No UAA user named bob");
+            }
+        };
+        assertNotFound("bob", unknown);
+        final Loader loader = new Loader(user("bob"));
+        assertNotFound("bob", loader);
+        assertEquals(0, loader.calls.get());
+        assertEquals(1, cache.getNotFoundHitCount());
+
+        clock.advance(NOT_FOUND_TTL_SECONDS + 1, TimeUnit.SECONDS);
+        assertSame(loader.details, cache.get("bob", loader));
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void servesExpiredEntriesWhileTheBreakerIsOpen() {
+        final UserDetails details = user("alice", "acme");
+        cache.get("alice", new Loader(details));
+        final Callable<UserDetails> unavailable = new Callable<UserDetails>() {
+            public UserDetails call() {
+                throw new CircuitBreaker.OpenException(CfEndpoint.SCIM);
+            }
+        };
+
+        clock.advance(TTL_SECONDS + STALE_GRACE_SECONDS / 2, TimeUnit.SECONDS);
+        assertSame(details, cache.get("alice", unavailable));
+        assertEquals(1, cache.getStaleServedCount());
+
+        clock.advance(STALE_GRACE_SECONDS, TimeUnit.SECONDS);
+        try {
+            cache.get("alice", unavailable);
+            fail("the entry is past its grace period");
+        } catch (CircuitBreaker.OpenException expected) {
+            assertEquals(1, cache.getStaleServedCount());
+        }
+    }
+
+    @Test
+    public void loadsAgainAfterAnInvalidation() {
+        final Loader loader = new Loader(user("alice", "acme"));
+        cache.get("alice", loader);
+        cache.invalidate("alice");
+        cache.get("alice", loader);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void doesNotCacheALoadInvalidatedWhileInFlight() {
+        final UserDetails details = user("alice", "acme");
+        final Callable<UserDetails> invalidatedDuringLoad = new Callable<UserDetails>() {
+            public UserDetails call() {
+                cache.invalidate("alice");
+                return details;
+            }
+        };
+        // the caller still gets what was resolved.
+        assertSame(details, cache.get("alice", invalidatedDuringLoad));
+
+        final Loader loader = new Loader(user("alice", "acme", "globex"));
+        assertSame(loader.details, cache.get("alice", loader));
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void doesNotCacheALoadInFlightWhenAnAuthorityIsInvalidated() {
+        final Callable<UserDetails> joinedDuringLoad = new Callable<UserDetails>() {
+            public UserDetails call() {
+                cache.invalidateMembersOf("acme");
+                return user("alice");
+            }
+        };
+        cache.get("alice", joinedDuringLoad);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void doesNotRememberAnUnknownUserInvalidatedWhileInFlight() {
+        final Callable<UserDetails> createdDuringLoad = new Callable<UserDetails>() {
+            public UserDetails call() {
+                cache.invalidateAll();
+                throw new UsernameNotFoundException("No UAA user named bob");
+            }
+        };
+        assertNotFound("bob", createdDuringLoad);
+
+        final Loader loader = new Loader(user("bob"));
+        assertSame(loader.details, cache.get("bob", loader));
+    }
+
+    @Test
+    public void anInvalidationOnlyAffectsTheLoadInFlight() {
+        cache.get("alice", new Loader(user("alice")));
+        cache.invalidate("alice");
+        final Loader loader = new Loader(user("alice", "acme"));
+        cache.get("alice", loader);
+        cache.get("alice", loader);
+        assertEquals(1, loader.calls.get());
+    }
+
+    static UserDetails user(final String name, final String... authorities) {
+        return new CfUserDetails(name, AuthoritySet.of(Arrays.asList(authorities)));
+    }
+
+    private void assertNotFound(final String userName, final Callable<UserDetails> loader) {
+        try {
+            cache.get(userName, loader);
+            fail(userName + " should not be found");
+        } catch (UsernameNotFoundException expected) {
+            // expected
+        }
+    }
+
+    private static void waitFor(final Callable<Boolean> condition) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /** Returns the same details at every call, and counts the calls. */
+    static final class Loader implements Callable<UserDetails> {
+
+        final UserDetails details;
+        final AtomicInteger calls = new AtomicInteger();
+
+        Loader(final UserDetails details) {
+            this.details = details;
+        }
+
+        public UserDetails call() {
+            calls.incrementAndGet();
+            return details;
+        }
+    }
+}
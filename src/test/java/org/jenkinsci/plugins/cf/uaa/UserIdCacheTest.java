@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserIdCacheTest {
+
+    private static final long IDLE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final FakeClock clock = new FakeClock();
+
+    @Test
+    public void keepsTheIdsInUse() {
+        final UserIdCache cache = new UserIdCache(10, IDLE_TTL_MILLIS, clock);
+        cache.put("alice", "id-alice");
+        for (int i = 0; i < 3; i++) {
+            clock.advance(IDLE_TTL_MILLIS - 1, TimeUnit.MILLISECONDS);
+            assertEquals("id-alice", cache.get("alice"));
+        }
+    }
+
+    @Test
+    public void dropsIdleIds() {
+        final UserIdCache cache = new UserIdCache(10, IDLE_TTL_MILLIS, clock);
+        cache.put("alice", "id-alice");
+        cache.put("bob", "id-bob");
+        clock.advance(IDLE_TTL_MILLIS + 1, TimeUnit.MILLISECONDS);
+
+        assertNull(cache.get("alice"));
+        // bob is dropped too, without being looked up.
+        cache.put("carol", "id-carol");
+        assertEquals(1, cache.getSize());
+        assertEquals(2, cache.getExpiredCount());
+    }
+
+    @Test
+    public void evictsIdsOnceFull() {
+        final UserIdCache cache = new UserIdCache(100, IDLE_TTL_MILLIS, clock);
+        for (int i = 0; i < 150; i++) {
+            cache.put("user-" + i, "id-" + i);
+        }
+
+        assertTrue(cache.getSize() <= 100);
+        assertEquals(150 - cache.getSize(), cache.getEvictionCount());
+        assertEquals("id-149", cache.get("user-149"));
+    }
+
+    @Test
+    public void restoresOnlyTheIdsUsedRecently() {
+        final UserIdCache cache = new UserIdCache(10, IDLE_TTL_MILLIS, clock);
+        final long now = clock.millis();
+        cache.restore("alice", "id-alice", now - IDLE_TTL_MILLIS / 2);
+        cache.restore("bob", "id-bob", now - IDLE_TTL_MILLIS - 1);
+
+        assertEquals(1, cache.getSize());
+        assertEquals("id-alice", cache.get("alice"));
+    }
+
+    @Test
+    public void restoredIdsKeepTheirLastUse() {
+        final UserIdCache cache = new UserIdCache(10, IDLE_TTL_MILLIS, clock);
+        cache.restore("alice", "id-alice", clock.millis() - IDLE_TTL_MILLIS / 2);
+        clock.advance(IDLE_TTL_MILLIS / 2 + 1, TimeUnit.MILLISECONDS);
+
+        assertNull(cache.get("alice"));
+        assertEquals(1, cache.getExpiredCount());
+    }
+}
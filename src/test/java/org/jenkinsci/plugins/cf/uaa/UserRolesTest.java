@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UserRolesTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void grantsTheOrganizationNamesFirstThenTheRoles() {
+        final UserRoles roles = new UserRoles();
+        roles.addOrganization("org-1", "acme", true);
+        roles.addSpace("space-1", "staging", "org-1");
+        roles.addSpaceRole("space-1", "developer");
+        roles.addOrganizationRole("org-1", "manager");
+        roles.addOrganizationRole("org-1", UserRoles.MEMBER);
+
+        assertEquals(Arrays.asList("acme", "acme:manager", "acme/staging:developer"), roles.getAuthorities());
+    }
+
+    @Test
+    public void grantsNothingInASuspendedOrganization() {
+        final UserRoles roles = new UserRoles();
+        roles.addOrganization("org-1", "acme", false);
+        roles.addSpace("space-1", "staging", "org-1");
+        roles.addOrganizationRole("org-1", UserRoles.MEMBER);
+        roles.addSpaceRole("space-1", "developer");
+
+        assertEquals(Arrays.<String>asList(), roles.getAuthorities());
+    }
+
+    @Test
+    public void leavesOutTheRolesOfUndescribedOrganizationsAndSpaces() {
+        final UserRoles roles = new UserRoles();
+        roles.addOrganizationRole("org-1", UserRoles.MEMBER);
+        roles.addSpaceRole("space-1", "developer");
+        assertEquals(Arrays.<String>asList(), roles.getAuthorities());
+
+        // the organization and space may come on a later page.
+        final UserRoles page = new UserRoles();
+        page.addOrganization("org-1", "acme", true);
+        page.addSpace("space-1", "staging", "org-1");
+        roles.addAll(page);
+        assertEquals(Arrays.asList("acme", "acme/staging:developer"), roles.getAuthorities());
+    }
+
+    @Test
+    public void readsTheV2UserSummary() throws IOException {
+        final UserRoles roles = CfJson.readUserSummary(json("{'metadata':{'guid':'user-1'},'entity':{"
+                + "'organizations':[{'metadata':{'guid':'org-1'},'entity':{'name':'acme','status':'active',"
+                + "'quota_definition':{'name':'default'}}}],"
+                + "'managed_organizations':["
+                + "{'metadata':{'guid':'org-1'},'entity':{'name':'acme','status':'active'}},"
+                + "{'metadata':{'guid':'org-2'},'entity':{'name':'globex','status':'suspended'}}],"
+                + "'spaces':["
+                + "{'metadata':{'guid':'space-1'},'entity':{'name':'staging','organization_guid':'org-1'}}],"
+                + "'audited_spaces':[]}}"));
+
+        assertEquals(Arrays.asList("acme", "acme:manager", "acme/staging:developer"), roles.getAuthorities());
+    }
+
+    @Test
+    public void readsTheV3RolesPages() throws IOException {
+        final UserRoles roles = new UserRoles();
+        final String next = CfJson.readV3Roles(json("{'pagination':{'next':{'href':'https://api/v3/roles?page=2'}},"
+                + "'resources':[{'type':'organization_user',"
+                + "'relationships':{'organization':{'data':{'guid':'org-1'}},'space':{'data':null}}},"
+                + "{'type':'space_developer','relationships':{'space':{'data':{'guid':'space-1'}}}}],"
+                + "'included':{'organizations':[{'guid':'org-1','name':'acme','suspended':false}],"
+                + "'spaces':[{'guid':'space-1','name':'staging',"
+                + "'relationships':{'organization':{'data':{'guid':'org-1'}}}}]}}"), roles);
+        assertEquals("https://api/v3/roles?page=2", next);
+
+        final UserRoles page = new UserRoles();
+        assertNull(CfJson.readV3Roles(json("{'pagination':{'next':null},"
+                + "'resources':[{'type':'organization_auditor',"
+                + "'relationships':{'organization':{'data':{'guid':'org-1'}}}}],"
+                + "'included':{'organizations':[{'guid':'org-1','name':'acme','suspended':false}]}}"), page));
+        roles.addAll(page);
+
+        assertEquals(Arrays.asList("acme", "acme:auditor", "acme/staging:developer"), roles.getAuthorities());
+    }
+
+    private static InputStream json(final String singleQuoted) {
+        return new ByteArrayInputStream(singleQuoted.replace('\'', '"').getBytes(UTF8));
+    }
+}
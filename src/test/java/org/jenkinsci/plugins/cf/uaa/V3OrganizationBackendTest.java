@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.cf.uaa;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jenkinsci.plugins.cf.uaa.models.AccessToken;
+import org.jenkinsci.plugins.cf.uaa.models.UserAccessToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class V3OrganizationBackendTest {
+
+    private final AtomicInteger v3Requests = new AtomicInteger();
+    private final V2 v2 = new V2();
+
+    private ExecutorService handlers;
+    private HttpServer server;
+    private CfHttpClient http;
+    private V3OrganizationBackend backend;
+
+    @Before
+    public void start() throws IOException {
+        handlers = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(handlers);
+        server.start();
+        http = new CfHttpClient(10, 5, 60);
+        backend = new V3OrganizationBackend(http, "http://127.0.0.1:" + server.getAddress().getPort(), v2);
+    }
+
+    @After
+    public void stop() {
+        http.close();
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    public void followsTheNextPageLinks() {
+        final String next = "http://127.0.0.1:" + server.getAddress().getPort() + "/v3/roles?page=2";
+        server.createContext("/v3/roles", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                v3Requests.incrementAndGet();
+                if (exchange.getRequestURI().getQuery().contains("page=2")) {
+                    CfApiUtilTest.respond(exchange, "{\"pagination\":{\"next\":null},\"resources\":[{\"type\":"
+                            + "\"organization_user\"}],\"included\":{\"organizations\":[{\"name\":\"globex\"}]}}");
+                } else {
+                    CfApiUtilTest.respond(exchange, "{\"pagination\":{\"next\":{\"href\":\"" + next + "\"}},"
+                            + "\"resources\":[],\"included\":{\"organizations\":[{\"name\":\"acme\"}]}}");
+                }
+            }
+        });
+
+        assertEquals(Arrays.asList("acme", "globex"), userOrganizations());
+        assertEquals(2, v3Requests.get());
+        assertEquals(0, v2.calls.get());
+    }
+
+    @Test
+    public void fallsBackToV2ForGoodOnceV3IsMissing() {
+        server.createContext("/v3/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                v3Requests.incrementAndGet();
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+
+        assertEquals(Arrays.asList("v2-org"), userOrganizations());
+        assertEquals(Arrays.asList("v2-org"), CfFutures.await(backend.getCurrentUserOrganizations(token())));
+        assertEquals(Arrays.asList("v2-org"), userOrganizations());
+        assertEquals(1, v3Requests.get());
+        assertEquals(3, v2.calls.get());
+    }
+
+    @Test
+    public void keepsUsingV3AfterAnotherFailure() {
+        server.createContext("/v3/roles", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (v3Requests.incrementAndGet() == 1) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                } else {
+                    CfApiUtilTest.respond(exchange, "{\"included\":{\"organizations\":[{\"name\":\"acme\"}]}}");
+                }
+            }
+        });
+
+        try {
+            userOrganizations();
+            fail("the Cloud Controller failed");
+        } catch (CfApiException expected) {
+            assertEquals(500, expected.getStatus());
+        }
+        assertEquals(Arrays.asList("acme"), userOrganizations());
+        assertEquals(0, v2.calls.get());
+    }
+
+    private List<String> userOrganizations() {
+        return CfFutures.await(backend.getUserOrganizations("user-1", token()));
+    }
+
+    private static AccessToken token() {
+        final UserAccessToken token = new UserAccessToken();
+        token.setTokenType("bearer");
+        token.setAccessToken("client-token");
+        return token;
+    }
+
+    /** Stands for the v2 backend, and counts the calls. */
+    private static final class V2 implements OrganizationBackend {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public ListenableFuture<List<String>> getUserOrganizations(final String userId,
+                                                                   final AccessToken accessToken) {
+            calls.incrementAndGet();
+            return Futures.immediateFuture(Arrays.asList("v2-org"));
+        }
+
+        public ListenableFuture<List<String>> getCurrentUserOrganizations(final AccessToken accessToken) {
+            calls.incrementAndGet();
+            return Futures.immediateFuture(Arrays.asList("v2-org"));
+        }
+
+        public ListenableFuture<List<String>> getUserRoles(final String userId, final AccessToken accessToken,
+                                                           final RateLimiter.Priority priority) {
+            calls.incrementAndGet();
+            return Futures.immediateFuture(Arrays.asList("v2-org", "v2-org:manager"));
+        }
+    }
+}